@@ -1,16 +1,19 @@
 package edu.harvard.dbmi.avillach.data.entity;
 
-import java.io.*;
 import java.sql.Date;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.persistence.*;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import edu.harvard.dbmi.avillach.util.QueryCodec;
 
 @Entity(name = "query")
 public class Query extends BaseEntity {
+
+	private static final Logger logger = LoggerFactory.getLogger(Query.class);
 	
 	//TODO may not need these two things
 	private Date startTime;
@@ -75,39 +78,30 @@ public class Query extends BaseEntity {
 	}
 
 	public String getQuery() {
-		
-		if (this.query == null || this.query.length == 0) {
-            return "";
-        }
-		
-		String outStr = "";
-		try (GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(this.query));
-	        BufferedReader bf = new BufferedReader(new InputStreamReader(gis, "UTF-8"));){
-	        
-	        String line;
-	        while ((line=bf.readLine())!=null) {
-	          outStr += line;
-	        }
-		} catch (IOException e) {
-			e.printStackTrace();
+		try {
+			return QueryCodec.decode(this.query);
+		} catch (IllegalArgumentException e) {
+			logger.error("Unable to decode the stored query of query " + getUuid(), e);
+			return "";
 		}
-        return outStr;
 	}
 
+	/**
+	 * Stores the query compressed, in the format of {@link QueryCodec#configured()}.
+	 */
 	public void setQuery(String queryStr) {
 		if (queryStr == null || queryStr.length() == 0) {
 			this.query = new byte[0];
-            return;
-        }
-       
-		try (ByteArrayOutputStream obj=new ByteArrayOutputStream();
-			GZIPOutputStream gzip = new GZIPOutputStream(obj);){
-			gzip.write(queryStr.getBytes("UTF-8"));
-	        gzip.close();
-	        this.query = obj.toByteArray();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return;
 		}
+		this.query = QueryCodec.configured().encode(queryStr);
+	}
+
+	/**
+	 * @return the query as it is stored, compressed
+	 */
+	public byte[] getQueryBytes() {
+		return query;
 	}
 
 	public byte[] getMetadata() {
@@ -117,4 +111,20 @@ public class Query extends BaseEntity {
 	public void setMetadata(byte[] metadata) {
 		this.metadata = metadata;
 	}
+
+	/**
+	 * @return a copy of this query, sharing its resource, for callers that keep it while others change this one
+	 */
+	public Query copy() {
+		Query copy = new Query();
+		copy.setUuid(getUuid());
+		copy.startTime = startTime;
+		copy.readyTime = readyTime;
+		copy.status = status;
+		copy.resourceResultId = resourceResultId;
+		copy.query = query;
+		copy.resource = resource;
+		copy.metadata = metadata;
+		return copy;
+	}
 }
@@ -1,14 +1,84 @@
 package edu.harvard.dbmi.avillach.data.repository;
 
 import edu.harvard.dbmi.avillach.data.entity.Query;
+import org.hibernate.Session;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.transaction.Transactional;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Collection;
 import java.util.UUID;
 
 @Transactional
 @ApplicationScoped
 public class QueryRepository extends BaseRepository<Query, UUID>{
 
+    private static final String INSERT = "INSERT INTO query "
+            + "(uuid, query, readyTime, resourceResultId, startTime, status, resourceId, metadata) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE = "UPDATE query "
+            + "SET readyTime = ?, resourceResultId = ?, status = ?, metadata = ? WHERE uuid = ?";
+
     protected QueryRepository() {super(Query.class);}
+
+    /**
+     * Inserts new queries and updates the fields that change after a query is created (ready time, resource result
+     * id, status and metadata) of existing ones, as one JDBC batch each in a single transaction. Unlike persist, new
+     * queries must already have an id.
+     */
+    public void writeAll(Collection<Query> inserts, Collection<Query> updates) {
+        if (inserts.isEmpty() && updates.isEmpty()) {
+            return;
+        }
+        em().unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement insert = connection.prepareStatement(INSERT);
+                 PreparedStatement update = connection.prepareStatement(UPDATE)) {
+                for (Query query : inserts) {
+                    insert.setBytes(1, toBytes(query.getUuid()));
+                    insert.setBytes(2, query.getQueryBytes());
+                    insert.setDate(3, query.getReadyTime());
+                    insert.setString(4, query.getResourceResultId());
+                    insert.setDate(5, query.getStartTime());
+                    setStatus(insert, 6, query);
+                    insert.setBytes(7, query.getResource() == null ? null : toBytes(query.getResource().getUuid()));
+                    insert.setBytes(8, query.getMetadata());
+                    insert.addBatch();
+                }
+                for (Query query : updates) {
+                    update.setDate(1, query.getReadyTime());
+                    update.setString(2, query.getResourceResultId());
+                    setStatus(update, 3, query);
+                    update.setBytes(4, query.getMetadata());
+                    update.setBytes(5, toBytes(query.getUuid()));
+                    update.addBatch();
+                }
+                if (!inserts.isEmpty()) {
+                    insert.executeBatch();
+                }
+                if (!updates.isEmpty()) {
+                    update.executeBatch();
+                }
+            }
+        });
+    }
+
+    private static void setStatus(PreparedStatement statement, int index, Query query) throws SQLException {
+        // stored as the ordinal, like the entity mapping does
+        if (query.getStatus() == null) {
+            statement.setNull(index, Types.INTEGER);
+        } else {
+            statement.setInt(index, query.getStatus().ordinal());
+        }
+    }
+
+    private static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
 }
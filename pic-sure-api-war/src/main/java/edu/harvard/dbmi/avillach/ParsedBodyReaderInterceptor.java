@@ -0,0 +1,49 @@
+package edu.harvard.dbmi.avillach;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import java.io.IOException;
+
+/**
+ * Hands resource methods the {@link QueryRequest} that JWTFilter already parsed from the request body, so the body
+ * is only deserialized once per request.
+ *
+ * Bodies that are not a QueryRequest, or that the filter did not parse, are read from the entity stream as usual.
+ */
+@Provider
+public class ParsedBodyReaderInterceptor implements ReaderInterceptor {
+
+    public static final String QUERY_REQUEST_PROPERTY = "picsure.queryRequest";
+
+    /**
+     * Binds the parsed body to a QueryRequest and keeps it on the request for the resource method. Bodies that do
+     * not bind are left to the resource method, which reports the error the same way it always has.
+     */
+    public static void share(ContainerRequestContext requestContext, JsonNode body) {
+        if (body == null || !body.isObject()) {
+            return;
+        }
+        try {
+            requestContext.setProperty(QUERY_REQUEST_PROPERTY, PicSureWarInit.objectMapper.treeToValue(body, QueryRequest.class));
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            // not a QueryRequest
+        }
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext interceptorContext) throws IOException, WebApplicationException {
+        Object parsed = interceptorContext.getProperty(QUERY_REQUEST_PROPERTY);
+        if (parsed != null && interceptorContext.getType() == QueryRequest.class) {
+            interceptorContext.removeProperty(QUERY_REQUEST_PROPERTY);
+            return parsed;
+        }
+        return interceptorContext.proceed();
+    }
+}
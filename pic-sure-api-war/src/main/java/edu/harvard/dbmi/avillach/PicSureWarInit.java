@@ -8,6 +8,10 @@ import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.harvard.dbmi.avillach.util.AsyncHttpClientUtil;
+import edu.harvard.dbmi.avillach.util.HttpClientRegistry;
+
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.ejb.Singleton;
 import javax.enterprise.context.ApplicationScoped;
@@ -46,6 +50,12 @@ public class PicSureWarInit {
                 .build();
     }
 
+    @PreDestroy
+    public void shutdown() {
+        // release the pooled connections to resources and their threads when the application is undeployed
+        HttpClientRegistry.shutdown();
+        AsyncHttpClientUtil.shutdown();
+    }
 
     public String getToken_introspection_url() {
         return token_introspection_url;
@@ -2,17 +2,26 @@ package edu.harvard.dbmi.avillach;
 
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
 import edu.harvard.dbmi.avillach.domain.*;
 import edu.harvard.dbmi.avillach.service.PicsureInfoService;
 import edu.harvard.dbmi.avillach.service.PicsureQueryService;
 import edu.harvard.dbmi.avillach.service.PicsureSearchService;
+import edu.harvard.dbmi.avillach.service.QueryStatusSubscriber;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.info.Info;
@@ -50,11 +59,12 @@ public class PicsureRS {
 					)
 			)}
 	)
-	public ResourceInfo resourceInfo(@Parameter(description="The UUID of the resource to fetch information about") @PathParam("resourceId") String resourceId,
+	public void resourceInfo(@Parameter(description="The UUID of the resource to fetch information about") @PathParam("resourceId") String resourceId,
 									 @Parameter QueryRequest credentialsQueryRequest,
-									 @Context HttpHeaders headers) {
+									 @Context HttpHeaders headers,
+									 @Suspended AsyncResponse asyncResponse) {
 		System.out.println("Resource info requested for : " + resourceId);
-		return infoService.info(UUID.fromString(resourceId), credentialsQueryRequest, headers);
+		resume(asyncResponse, () -> infoService.infoAsync(UUID.fromString(resourceId), credentialsQueryRequest, headers));
 	}
 	
 	@GET
@@ -115,10 +125,11 @@ public class PicsureRS {
 				)
 		)
 	)
-	public SearchResults search(@Parameter(description="The UUID of the resource to search") @PathParam("resourceId") UUID resourceId,
+	public void search(@Parameter(description="The UUID of the resource to search") @PathParam("resourceId") UUID resourceId,
 								@Parameter(hidden = true) QueryRequest searchQueryRequest,
-								@Context HttpHeaders headers) {
-		return searchService.search(resourceId, searchQueryRequest, headers);
+								@Context HttpHeaders headers,
+								@Suspended AsyncResponse asyncResponse) {
+		resume(asyncResponse, () -> searchService.searchAsync(resourceId, searchQueryRequest, headers));
 	}
 
 	@POST
@@ -137,8 +148,9 @@ public class PicsureRS {
 					)
 			}
 	)
-	public QueryStatus query(@Parameter QueryRequest dataQueryRequest, @Context HttpHeaders headers) {
-		return queryService.query(dataQueryRequest, headers);
+	public void query(@Parameter QueryRequest dataQueryRequest, @Context HttpHeaders headers,
+					  @Suspended AsyncResponse asyncResponse) {
+		resume(asyncResponse, () -> queryService.queryAsync(dataQueryRequest, headers));
 	}
 	
 	@POST
@@ -157,10 +169,63 @@ public class PicsureRS {
 					)
 			}
 	)
-	public QueryStatus queryStatus(@Parameter(description="The UUID of the query to fetch the status of. The UUID is " +
+	public void queryStatus(@Parameter(description="The UUID of the query to fetch the status of. The UUID is " +
 			"returned by the /query endpoint as the \"picsureResultId\" in the response object") @PathParam("queryId") UUID queryId,
-								   @Parameter QueryRequest credentialsQueryRequest, @Context HttpHeaders headers) {
-		return queryService.queryStatus(queryId, credentialsQueryRequest, headers);
+								   @Parameter QueryRequest credentialsQueryRequest, @Context HttpHeaders headers,
+								   @Parameter(description="Optional. If the query is still running, wait up to this many " +
+										   "milliseconds for its status to change before answering") @QueryParam("waitMs") @DefaultValue("0") long waitMs,
+								   @Suspended AsyncResponse asyncResponse) {
+		resume(asyncResponse, () -> queryService.queryStatusAsync(queryId, credentialsQueryRequest, headers, waitMs));
+	}
+
+	@GET
+	@Path("/query/{queryId}/events")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	@Consumes("*/*")
+	@Operation(
+			summary = "Streams the status of the given query as server-sent events, until the query is AVAILABLE or in ERROR. " +
+					"No resource credentials can be sent this way, resources that need them are followed with a POST instead",
+			responses = {
+					@io.swagger.v3.oas.annotations.responses.ApiResponse(
+							responseCode = "200",
+							description = "\"status\" events, each holding a query status",
+							content = @io.swagger.v3.oas.annotations.media.Content(
+									schema = @io.swagger.v3.oas.annotations.media.Schema(
+											implementation = QueryStatus.class
+									)
+							)
+					)
+			}
+	)
+	public void queryEvents(@Parameter(description="The UUID of the query to follow. The UUID is " +
+			"returned by the /query endpoint as the \"picsureResultId\" in the response object") @PathParam("queryId") UUID queryId,
+							@Context HttpHeaders headers, @Context SseEventSink sink, @Context Sse sse) {
+		queryService.queryEvents(queryId, null, headers, QueryStatusSubscriber.sse(sink, sse));
+	}
+
+	@POST
+	@Path("/query/{queryId}/events")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	@Operation(
+			summary = "Streams the status of the given query as server-sent events, until the query is AVAILABLE or in ERROR, " +
+					"polling the resource with the given resource credentials",
+			responses = {
+					@io.swagger.v3.oas.annotations.responses.ApiResponse(
+							responseCode = "200",
+							description = "\"status\" events, each holding a query status",
+							content = @io.swagger.v3.oas.annotations.media.Content(
+									schema = @io.swagger.v3.oas.annotations.media.Schema(
+											implementation = QueryStatus.class
+									)
+							)
+					)
+			}
+	)
+	public void queryEvents(@Parameter(description="The UUID of the query to follow. The UUID is " +
+			"returned by the /query endpoint as the \"picsureResultId\" in the response object") @PathParam("queryId") UUID queryId,
+							@Parameter QueryRequest credentialsQueryRequest, @Context HttpHeaders headers,
+							@Context SseEventSink sink, @Context Sse sse) {
+		queryService.queryEvents(queryId, credentialsQueryRequest, headers, QueryStatusSubscriber.sse(sink, sse));
 	}
 	
 	@POST
@@ -202,10 +267,11 @@ public class PicsureRS {
 					)
 			}
 	)
-	public Response querySync(@Context HttpHeaders headers,
+	public void querySync(@Context HttpHeaders headers,
 			@Parameter(description="Object with field named 'resourceCredentials' which is a key-value map, " +
-										"key is identifier for resource, value is token for resource") QueryRequest credentialsQueryRequest) {
-		return queryService.querySync(credentialsQueryRequest, headers);
+										"key is identifier for resource, value is token for resource") QueryRequest credentialsQueryRequest,
+			@Suspended AsyncResponse asyncResponse) {
+		resume(asyncResponse, () -> queryService.querySyncAsync(credentialsQueryRequest, headers));
 	}
 	
 	@GET
@@ -229,5 +295,26 @@ public class PicsureRS {
 	public QueryStatus queryMetadata(@PathParam("queryId") UUID queryId, @Context HttpHeaders headers){
 		return queryService.queryMetadata(queryId, headers);
 	}
+
+	/**
+	 * Resumes the suspended request with the outcome of the resource call. The request thread is released as soon
+	 * as the call has been sent, failures are handed to the usual exception mappers.
+	 */
+	private static void resume(AsyncResponse asyncResponse, Supplier<? extends CompletionStage<?>> resourceCall) {
+		CompletionStage<?> result;
+		try {
+			result = resourceCall.get();
+		} catch (RuntimeException e) {
+			asyncResponse.resume(e);
+			return;
+		}
+		result.whenComplete((entity, error) -> {
+			if (error == null) {
+				asyncResponse.resume(entity);
+			} else {
+				asyncResponse.resume(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+			}
+		});
+	}
 	
 }
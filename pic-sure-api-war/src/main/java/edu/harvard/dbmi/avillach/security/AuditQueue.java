@@ -0,0 +1,263 @@
+package edu.harvard.dbmi.avillach.security;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static edu.harvard.dbmi.avillach.util.Utilities.buildHttpClientContext;
+
+/**
+ * Sends audit records to PSAMA from a background task on the container's managed scheduled executor, so that
+ * auditing a request never holds up the request.
+ *
+ * Records are introspection requests, the form PSAMA audits today. They wait in a bounded in-memory queue that is
+ * flushed every <code>picsure.audit.flushIntervalMs</code> (default 1000) in batches of up to
+ * <code>picsure.audit.batchSize</code> (default 100). If <code>picsure.audit.batchUrl</code> is set, each batch is
+ * posted there as one JSON array. Otherwise each record is replayed against the token introspection endpoint.
+ *
+ * If the queue (<code>picsure.audit.queueSize</code>, default 10000) is full or PSAMA cannot be reached, records are
+ * appended to the spill file <code>picsure.audit.spillFile</code> (default picsure-audit-spill.jsonl in the server's
+ * data directory, <code>jboss.server.data.dir</code>). They are sent once PSAMA answers again. Records hold
+ * the user's token, so the file is created readable by its owner only, and records are never appended to a file that
+ * is a symbolic link or belongs to another user.
+ *
+ * Spilled records are moved to a file of the same name ending in <code>.sending</code> while they are sent, and that
+ * file is only deleted once PSAMA has taken all of them; a server that stops part way sends it again when it starts.
+ * Delivery is at least once: a batch that fails part way is sent again in full, and so are spilled records sent
+ * before a later batch failed.
+ */
+@ApplicationScoped
+public class AuditQueue {
+
+	private final Logger logger = LoggerFactory.getLogger(AuditQueue.class);
+
+	private static final int BATCH_SIZE = Integer.getInteger("picsure.audit.batchSize", 100);
+	private static final long FLUSH_INTERVAL_MS = Long.getLong("picsure.audit.flushIntervalMs", 1000);
+
+	@Inject
+	PicSureWarInit picSureWarInit;
+
+	String batchUrl = System.getProperty("picsure.audit.batchUrl");
+
+	Path spillFile = Paths.get(System.getProperty("picsure.audit.spillFile",
+			Paths.get(System.getProperty("jboss.server.data.dir", System.getProperty("user.home")), "picsure-audit-spill.jsonl").toString()));
+
+	private final Object spillLock = new Object();
+
+	private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(Integer.getInteger("picsure.audit.queueSize", 10000));
+
+	@Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+	ManagedScheduledExecutorService scheduler;
+
+	private ScheduledFuture<?> worker;
+
+	@PostConstruct
+	public void start() {
+		worker = scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (worker != null) {
+			// the container owns the executor, only this task is stopped
+			worker.cancel(false);
+		}
+		// whatever could not be sent is kept for the next start, once a flush that is running has finished
+		List<String> remaining = new ArrayList<>();
+		synchronized (this) {
+			queue.drainTo(remaining);
+		}
+		spill(remaining);
+	}
+
+	/**
+	 * Queues an introspection request to be sent to PSAMA for auditing.
+	 */
+	public void submit(String introspectionRequest) {
+		if (queue.offer(introspectionRequest)) {
+			Metrics.increment("audit.queued");
+		} else {
+			spill(List.of(introspectionRequest));
+		}
+	}
+
+	/**
+	 * Sends everything spilled to disk and then everything queued, stopping at the first batch PSAMA does not take.
+	 */
+	synchronized void flush() {
+		try {
+			if (!sendSpilled()) {
+				return;
+			}
+			List<String> batch = new ArrayList<>(BATCH_SIZE);
+			while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+				if (!send(batch)) {
+					spill(batch);
+					return;
+				}
+				batch.clear();
+			}
+		} catch (RuntimeException e) {
+			// keep the task scheduled
+			logger.error("flush() failed to send audit records", e);
+		}
+	}
+
+	int queued() {
+		return queue.size();
+	}
+
+	Path sendingFile() {
+		return spillFile.resolveSibling(spillFile.getFileName() + ".sending");
+	}
+
+	private boolean sendSpilled() {
+		Path sending = sendingFile();
+		List<String> spilled;
+		try {
+			synchronized (spillLock) {
+				if (!Files.exists(sending, LinkOption.NOFOLLOW_LINKS)) {
+					if (!Files.exists(spillFile, LinkOption.NOFOLLOW_LINKS)) {
+						return true;
+					}
+					checkOwned(spillFile);
+					Files.move(spillFile, sending, StandardCopyOption.ATOMIC_MOVE);
+				}
+			}
+			// left over from a send that did not finish, or just moved aside; new records spill to a fresh file
+			checkOwned(sending);
+			spilled = Files.readAllLines(sending, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			logger.error("sendSpilled() cannot read audit spill file " + spillFile, e);
+			return false;
+		}
+		for (int start = 0; start < spilled.size(); start += BATCH_SIZE) {
+			if (!send(spilled.subList(start, Math.min(spilled.size(), start + BATCH_SIZE)))) {
+				return false;
+			}
+		}
+		try {
+			Files.delete(sending);
+		} catch (IOException e) {
+			logger.error("sendSpilled() cannot delete sent audit records " + sending + ", they will be sent again", e);
+		}
+		return true;
+	}
+
+	private boolean send(List<String> batch) {
+		boolean sent = batchUrl != null && !batchUrl.isEmpty()
+				? post(batchUrl, "[" + String.join(",", batch) + "]")
+				: batch.stream().allMatch(record -> post(picSureWarInit.getToken_introspection_url(), record));
+		if (sent) {
+			Metrics.add("audit.sent", batch.size());
+		}
+		return sent;
+	}
+
+	private boolean post(String url, String body) {
+		HttpPost post = new HttpPost(url);
+		post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		post.setHeader("Authorization", "Bearer " + picSureWarInit.getToken_introspection_token());
+		try (CloseableHttpResponse response = PicSureWarInit.CLOSEABLE_HTTP_CLIENT.execute(post, buildHttpClientContext())) {
+			EntityUtils.consume(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != 200) {
+				logger.error("post() audit host server [" + url + "] returned " + response.getStatusLine().getStatusCode());
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("post() IOException when sending audit records to " + url + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void spill(List<String> records) {
+		if (records.isEmpty()) {
+			return;
+		}
+		synchronized (spillLock) {
+			try {
+				try (BufferedWriter writer = new BufferedWriter(openSpillFile())) {
+					for (String record : records) {
+						writer.write(record);
+						writer.newLine();
+					}
+				}
+				Metrics.add("audit.spilled", records.size());
+			} catch (IOException e) {
+				logger.error("spill() lost " + records.size() + " audit records, cannot write " + spillFile, e);
+				Metrics.add("audit.dropped", records.size());
+			}
+		}
+	}
+
+	/**
+	 * Creates the spill file readable by this process only, or opens the existing one if this process owns it.
+	 */
+	private Writer openSpillFile() throws IOException {
+		FileAttribute<?>[] ownerOnly = spillFile.getFileSystem().supportedFileAttributeViews().contains("posix")
+				? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+				: new FileAttribute<?>[0];
+		try {
+			return writer(Files.newByteChannel(spillFile, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), ownerOnly));
+		} catch (FileAlreadyExistsException e) {
+			checkOwned(spillFile);
+			return writer(Files.newByteChannel(spillFile, Set.of(StandardOpenOption.WRITE, StandardOpenOption.APPEND, LinkOption.NOFOLLOW_LINKS)));
+		}
+	}
+
+	private static Writer writer(ByteChannel channel) {
+		return new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Refuses files someone else could read or have planted, as the spill files hold users' tokens.
+	 */
+	private void checkOwned(Path file) throws IOException {
+		if (Files.isSymbolicLink(file)) {
+			throw new IOException(file + " is a symbolic link");
+		}
+		UserPrincipal processOwner = file.getFileSystem().getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+		if (!processOwner.equals(Files.getOwner(file, LinkOption.NOFOLLOW_LINKS))) {
+			throw new IOException(file + " is not owned by " + processOwner.getName());
+		}
+	}
+}
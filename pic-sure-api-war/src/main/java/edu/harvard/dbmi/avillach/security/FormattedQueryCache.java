@@ -0,0 +1,144 @@
+package edu.harvard.dbmi.avillach.security;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.util.ExpiringLruCache;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Human readable versions of queries, as returned by a resource's /query/format, for the audit log.
+ *
+ * Formatting is a call to the resource, so it is kept off the request path: {@link #get} only answers from the cache,
+ * and {@link #formatAsync} fetches a missing format on the container's managed executor, with at most 1000 formats
+ * waiting or running at once. Entries are kept per resource, keyed by a hash
+ * of the query serialized with sorted keys so that the same query always has the same key, for
+ * <code>picsure.queryFormat.cache.ttlSeconds</code> (default 3600). At most
+ * <code>picsure.queryFormat.cache.maxEntries</code> (default 1000) formats are kept.
+ */
+@ApplicationScoped
+public class FormattedQueryCache {
+
+	private final Logger logger = LoggerFactory.getLogger(FormattedQueryCache.class);
+
+	private static final long TTL_SECONDS = Long.getLong("picsure.queryFormat.cache.ttlSeconds", 3600);
+
+	private static final ObjectMapper canonicalMapper = new ObjectMapper()
+			.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+			.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+	@Inject
+	ResourceWebClient resourceWebClient;
+
+	@Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ManagedExecutorService formatExecutor;
+
+	private final Semaphore outstanding = new Semaphore(1000);
+
+	private final ExpiringLruCache<String, String> formats =
+			new ExpiringLruCache<>(Integer.getInteger("picsure.queryFormat.cache.maxEntries", 1000));
+
+	/**
+	 * @return the cached format of the query, or null if it has not been formatted yet
+	 */
+	public String get(UUID resourceUUID, Object query) {
+		String formatted = formats.get(key(resourceUUID, query));
+		Metrics.increment(formatted == null ? "queryFormat.cache.miss" : "queryFormat.cache.hit");
+		return formatted;
+	}
+
+	/**
+	 * Asks the resource to format the query on a background thread and caches the outcome.
+	 *
+	 * @return a future completing with the formatted query, or with null if the resource could not format it
+	 */
+	public CompletableFuture<String> formatAsync(String resourceRSPath, String resourceToken, UUID resourceUUID, Object query) {
+		QueryRequest queryRequest = new QueryRequest();
+		queryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resourceToken);
+		queryRequest.setResourceUUID(resourceUUID);
+		queryRequest.setQuery(query);
+		String key = key(resourceUUID, query);
+		if (!outstanding.tryAcquire()) {
+			return rejected(resourceUUID);
+		}
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					String formatted = format(resourceRSPath, queryRequest);
+					if (formatted != null) {
+						formats.put(key, formatted, TTL_SECONDS, TimeUnit.SECONDS);
+					}
+					return formatted;
+				} finally {
+					outstanding.release();
+				}
+			}, formatExecutor);
+		} catch (RejectedExecutionException e) {
+			outstanding.release();
+			return rejected(resourceUUID);
+		}
+	}
+
+	/**
+	 * Drops every format from the resource, for when its implementation may have changed.
+	 */
+	public void invalidate(UUID resourceUUID) {
+		String prefix = resourceUUID + ":";
+		formats.invalidateIf(key -> key.startsWith(prefix));
+	}
+
+	private CompletableFuture<String> rejected(UUID resourceUUID) {
+		logger.warn("formatAsync() too many queries waiting to be formatted, skipping " + resourceUUID);
+		Metrics.increment("queryFormat.rejected");
+		return CompletableFuture.completedFuture(null);
+	}
+
+	private String format(String resourceRSPath, QueryRequest queryRequest) {
+		try {
+			Response formatResponse = resourceWebClient.queryFormat(resourceRSPath, queryRequest);
+			try (InputStream entity = formatResponse.getEntity() instanceof InputStream ? (InputStream) formatResponse.getEntity() : null) {
+				if (formatResponse.getStatus() != 200 || entity == null) {
+					return null;
+				}
+				String formattedQuery = IOUtils.toString(entity, StandardCharsets.UTF_8);
+				logger.debug("Formatted response: " + formattedQuery);
+				return formattedQuery;
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn("format() could not format query for " + resourceRSPath + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static String key(UUID resourceUUID, Object query) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(canonicalMapper.writeValueAsBytes(query));
+			return resourceUUID + ":" + Base64.getEncoder().encodeToString(digest);
+		} catch (JsonProcessingException | NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,18 +1,23 @@
 package edu.harvard.dbmi.avillach.security;
 
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.ParsedBodyReaderInterceptor;
 import edu.harvard.dbmi.avillach.PicSureWarInit;
 import edu.harvard.dbmi.avillach.data.entity.Query;
 import edu.harvard.dbmi.avillach.data.entity.User;
-import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
-import edu.harvard.dbmi.avillach.domain.QueryRequest;
-import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.service.QueryJsonCache;
+import edu.harvard.dbmi.avillach.service.QueryWriteBehind;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
+import edu.harvard.dbmi.avillach.util.ExpiringLruCache;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.SingleFlight;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
@@ -35,15 +40,61 @@ import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.Provider;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static edu.harvard.dbmi.avillach.util.Utilities.buildHttpClientContext;
 
+/**
+ * Authenticates every request by token introspection against PSAMA, which also records the request for auditing.
+ *
+ * Introspection outcomes are cached, keyed by a hash of the introspection request. The request holds the token and
+ * the audited request, since PSAMA's decision can depend on both, so repeated identical calls such as status polls
+ * are answered from the cache. Cached entries live for <code>picsure.auth.cache.ttlSeconds</code> (default 60, 0
+ * disables the cache) or until the token's <code>exp</code>, whichever comes first. Rejected tokens are cached for
+ * <code>picsure.auth.cache.negativeTtlSeconds</code> (default 10). At most <code>picsure.auth.cache.maxEntries</code>
+ * (default 10000) outcomes are kept. On a cache hit the introspection request is handed to the {@link AuditQueue}
+ * instead, so the call is still audited without waiting for PSAMA. Identical introspection requests that arrive
+ * while one is in flight, such as parallel calls from the UI, wait for that one instead of each calling PSAMA, and
+ * are audited through the queue. Neither the call to PSAMA nor the wait for it may take longer than
+ * <code>picsure.auth.introspection.timeoutMs</code> (default 10000).
+ *
+ * The formatted query is only added to the introspection request if the {@link FormattedQueryCache} already has it.
+ * Otherwise the introspection request gets a random <code>auditId</code>, the resource formats the query in the
+ * background once the user is authenticated, and a supplemental record with the same auditId and only the formatted
+ * query is sent through the audit queue. The request itself is still audited once.
+ *
+ * If local validation is configured, tokens for eligible requests are checked in-process by the
+ * {@link LocalJwtValidator} first and only audited through the queue, see there for which requests qualify.
+ *
+ * The request body is read and parsed once here. The resource method gets the same parsed QueryRequest through
+ * {@link ParsedBodyReaderInterceptor}. Bodies over <code>picsure.request.maxBufferedBytes</code> (default 16MB) are
+ * rejected with 413 before the token is introspected, since PSAMA authorizes on the query and must see all of it.
+ */
 @Provider
 public class JWTFilter implements ContainerRequestFilter {
 
 	private final Logger logger = LoggerFactory.getLogger(JWTFilter.class);
 
+	private static final long CACHE_TTL_SECONDS = Long.getLong("picsure.auth.cache.ttlSeconds", 60);
+	private static final long NEGATIVE_CACHE_TTL_SECONDS = Long.getLong("picsure.auth.cache.negativeTtlSeconds", 10);
+	private static final int INTROSPECTION_TIMEOUT_MS = Integer.getInteger("picsure.auth.introspection.timeoutMs", 10000);
+
+	long maxBufferedBodyBytes = Long.getLong("picsure.request.maxBufferedBytes", 16 * 1024 * 1024);
+
+	LocalJwtValidator localJwtValidator = LocalJwtValidator.fromSystemProperties();
+
+	ExpiringLruCache<String, Introspection> introspectionCache =
+			new ExpiringLruCache<>(Integer.getInteger("picsure.auth.cache.maxEntries", 10000));
+
+	private final SingleFlight<String, Introspection> introspections = new SingleFlight<>("auth.introspection");
+
 	@Context
 	UriInfo uriInfo;
 
@@ -51,10 +102,7 @@ public class JWTFilter implements ContainerRequestFilter {
 	ResourceInfo resourceInfo;
 
 	@Inject
-	ResourceRepository resourceRepo;
-
-	@Inject
-	ResourceWebClient resourceWebClient;
+	ResourceRegistry resourceRegistry;
 
 	@Resource(mappedName = "java:global/user_id_claim")
 	private String userIdClaim;
@@ -65,7 +113,16 @@ public class JWTFilter implements ContainerRequestFilter {
 	PicSureWarInit picSureWarInit;
 
 	@Inject
-	QueryRepository queryRepo;
+	QueryWriteBehind queryWriter;
+
+	@Inject
+	QueryJsonCache queryJsonCache;
+
+	@Inject
+	AuditQueue auditQueue;
+
+	@Inject
+	FormattedQueryCache formattedQueryCache;
 
 	@Override
 	public void filter(ContainerRequestContext requestContext) throws IOException {
@@ -106,6 +163,8 @@ public class JWTFilter implements ContainerRequestFilter {
 
 				logger.info("User - " + userForLogging + " - has just passed all the authentication and authorization layers.");
 
+			} catch (RequestBodyTooLargeException e) {
+				requestContext.abortWith(PICSUREResponse.protocolError(Response.Status.REQUEST_ENTITY_TOO_LARGE, e.getMessage()));
 			} catch (NotAuthorizedException e) {
 				// the detail of this exception should be logged right before the exception thrown out
 				//			logger.error("User - " + userForLogging + " - is not authorized. " + e.getChallenges());
@@ -151,25 +210,36 @@ public class JWTFilter implements ContainerRequestFilter {
 
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 		HashMap<String, Object> requestMap = new HashMap<String, Object>();
+		Supplier<CompletableFuture<String>> pendingFormat = null;
 		try {
 			String requestPath = requestContext.getUriInfo().getPath();
 			requestMap.put("Target Service", requestPath);
 
-			Query initialQuery = null;
+			String initialQuery = null;
 			//Read the query from the backing store if we are getting the results (full query may not be specified in request)
 			if(requestPath.startsWith("/query/") && (requestPath.endsWith("result") || requestPath.endsWith("result/"))) {
 				//Path:   /query/{queryId}/result
 				String[] pathParts = requestPath.split("/");
 				UUID uuid = UUID.fromString(pathParts[2]);
-				initialQuery = queryRepo.getById(uuid);
+				initialQuery = queryJsonCache.get(uuid);
+				if (initialQuery == null) {
+					// through the write-behind, so that a query that is not written yet is found
+					Query query = queryWriter.getById(uuid);
+					initialQuery = query == null ? null : queryJsonCache.get(query);
+				}
 			}
 
 			if(initialQuery != null) {
-				IOUtils.copy(new ByteArrayInputStream(initialQuery.getQuery().getBytes()), buffer);
+				buffer.write(initialQuery.getBytes());
 			} else {
 				//This stream is only consumable once, so we need to save & reset it.
 				InputStream entityStream = requestContext.getEntityStream();
-				IOUtils.copy(entityStream, buffer);
+				if (IOUtils.copyLarge(entityStream, buffer, 0, maxBufferedBodyBytes + 1) > maxBufferedBodyBytes) {
+					// PSAMA authorizes on the query, so a query it cannot see in full is not let through
+					logger.warn("Request body to " + requestPath + " is over " + maxBufferedBodyBytes + " bytes, rejecting it");
+					Metrics.increment("request.body.tooLarge");
+					throw new RequestBodyTooLargeException("Request body is over " + maxBufferedBodyBytes + " bytes");
+				}
 				requestContext.setEntityStream(new ByteArrayInputStream(buffer.toByteArray()));
 			}
 
@@ -179,7 +249,11 @@ public class JWTFilter implements ContainerRequestFilter {
 				 * part of token introspection. These credentials are between the backing resource and the user, PIC-SURE should
 				 * do its best to keep them confidential.
 				 */
-				Object queryObject = new ObjectMapper().readValue(new ByteArrayInputStream(buffer.toByteArray()), Object.class);
+				JsonNode body = json.readTree(buffer.toByteArray());
+				if (initialQuery == null) {
+					ParsedBodyReaderInterceptor.share(requestContext, body);
+				}
+				Object queryObject = json.convertValue(body, Object.class);
 				if (queryObject instanceof Collection) {
 					for (Object query: (Collection)queryObject) {
 						if (query instanceof Map) {
@@ -200,20 +274,18 @@ public class JWTFilter implements ContainerRequestFilter {
 					}
 
 					if(resourceUUID != null) {
-						edu.harvard.dbmi.avillach.data.entity.Resource resource = resourceRepo.getById(resourceUUID);
-						//logger.info("resource obj: " + resource + "    path: " + resource.getResourceRSPath());
-						if (resource != null && resource.getResourceRSPath() != null){
-							QueryRequest queryRequest = new QueryRequest();
-							queryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
-							queryRequest.setResourceUUID(resourceUUID);
-							queryRequest.setQuery(((Map)queryObject).get("query"));
-
-							Response formatResponse = resourceWebClient.queryFormat(resource.getResourceRSPath(), queryRequest);
-							if(formatResponse.getStatus() == 200) {
-								//add the formatted query if available
-								String formattedQuery = IOUtils.toString((InputStream)formatResponse.getEntity(), "UTF-8");
-								logger.debug("Formatted response: " + formattedQuery); 
-								requestMap.put("formattedQuery", formattedQuery);
+						Object query = ((Map)queryObject).get("query");
+						String formattedQuery = formattedQueryCache.get(resourceUUID, query);
+						if (formattedQuery != null) {
+							//add the formatted query if available
+							requestMap.put("formattedQuery", formattedQuery);
+						} else {
+							edu.harvard.dbmi.avillach.data.entity.Resource resource = resourceRegistry.getById(resourceUUID);
+							if (resource != null && resource.getResourceRSPath() != null){
+								String resourceRSPath = resource.getResourceRSPath();
+								String resourceToken = resource.getToken();
+								UUID formatResourceUUID = resourceUUID;
+								pendingFormat = () -> formattedQueryCache.formatAsync(resourceRSPath, resourceToken, formatResourceUUID, query);
 							}
 						}
 					}
@@ -227,35 +299,109 @@ public class JWTFilter implements ContainerRequestFilter {
 			logger.error("IOException caught trying to build requestMap for auditing.", e1);
 			throw new NotAuthorizedException("The request could not be properly audited. If you recieve this error multiple times, please contact an administrator.");
 		}
+		String payload;
+		String cacheKey;
+		String auditId = null;
 		StringEntity entity = null;
 		try {
-			entity = new StringEntity(json.writeValueAsString(tokenMap));
+			payload = json.writeValueAsString(tokenMap);
+			// identical requests share an outcome whatever their auditId
+			cacheKey = sha256(payload);
+			if (pendingFormat != null) {
+				auditId = UUID.randomUUID().toString();
+				requestMap.put("auditId", auditId);
+				payload = json.writeValueAsString(tokenMap);
+			}
+			entity = new StringEntity(payload);
 		} catch (IOException e) {
 			logger.error("callTokenIntroEndpoint() - " + e.getClass().getSimpleName() + " when composing post");
 			return null;
 		}
+
+		String localUser = localJwtValidator.validate(token, requestContext.getUriInfo().getPath(), userIdClaim);
+		if (localUser != null) {
+			auditQueue.submit(payload);
+			auditFormattedQuery(pendingFormat, token, requestMap, auditId);
+			return new User().setSubject(localUser).setUserId(localUser);
+		}
+
+		Introspection cached = introspectionCache.get(cacheKey);
+		if (cached != null) {
+			Metrics.increment("auth.introspection.cache.hit");
+			auditQueue.submit(payload);
+			if (!cached.active) {
+				logger.error("callTokenIntroEndpoint() Token rejected by a recent introspection");
+				throw new NotAuthorizedException("Token invalid or expired");
+			}
+			auditFormattedQuery(pendingFormat, token, requestMap, auditId);
+			return new User().setSubject(cached.subject).setUserId(cached.subject);
+		}
+		Metrics.increment("auth.introspection.cache.miss");
+
 		post.setEntity(entity);
 		post.setHeader("Content-Type", "application/json");
 		//Authorize into the token introspection endpoint
 		post.setHeader("Authorization", "Bearer " + token_introspection_token);
+		post.setConfig(RequestConfig.custom()
+				.setConnectTimeout(INTROSPECTION_TIMEOUT_MS)
+				.setConnectionRequestTimeout(INTROSPECTION_TIMEOUT_MS)
+				.setSocketTimeout(INTROSPECTION_TIMEOUT_MS)
+				.build());
+
+		boolean[] sentByThisRequest = {false};
+		Introspection outcome;
+		try {
+			outcome = introspections.execute(cacheKey, () -> {
+				sentByThisRequest[0] = true;
+				return introspect(client, post, cacheKey);
+			}, INTROSPECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.error("callTokenIntroEndpoint() timed out waiting for token introspection from " + token_introspection_url);
+			throw new ApplicationException("Token introspection timed out. Please see the log");
+		}
+		if (!sentByThisRequest[0]) {
+			// the outcome came from an identical request, which PSAMA audited instead of this one
+			auditQueue.submit(payload);
+		}
+		if (outcome == null) {
+			return null;
+		}
+		if (!outcome.active) {
+			throw new NotAuthorizedException("Token invalid or expired");
+		}
+		auditFormattedQuery(pendingFormat, token, requestMap, auditId);
+		return new User().setSubject(outcome.subject).setUserId(outcome.subject);
+	}
+
+	/**
+	 * Sends the introspection request to PSAMA and caches the outcome.
+	 *
+	 * @return the outcome, or null if PSAMA could not be reached
+	 */
+	private Introspection introspect(CloseableHttpClient client, HttpPost post, String cacheKey) {
+		ObjectMapper json = PicSureWarInit.objectMapper;
 		CloseableHttpResponse response = null;
 		try {
 			response = client.execute(post, buildHttpClientContext());
 			if (response.getStatusLine().getStatusCode() != 200){
 				logger.error("callTokenIntroEndpoint() error back from token intro host server ["
-						+ token_introspection_url + "]: " + EntityUtils.toString(response.getEntity()));
+						+ post.getURI() + "]: " + EntityUtils.toString(response.getEntity()));
 				throw new ApplicationException("Token Introspection host server return " + response.getStatusLine().getStatusCode() +
 						". Please see the log");
 			}
 			JsonNode responseContent = json.readTree(response.getEntity().getContent());
 			if (!responseContent.get("active").asBoolean()){
 				logger.error("callTokenIntroEndpoint() Token intro endpoint return invalid token, content: " + responseContent);
-				throw new NotAuthorizedException("Token invalid or expired");
+				introspectionCache.put(cacheKey, Introspection.REJECTED, NEGATIVE_CACHE_TTL_SECONDS, TimeUnit.SECONDS);
+				return Introspection.REJECTED;
 			}
 
 			String sub = responseContent.get(userIdClaim) != null ? responseContent.get(userIdClaim).asText() : null;
-			User user = new User().setSubject(sub).setUserId(sub);
-			return user;
+			Introspection accepted = new Introspection(true, sub);
+			if (sub != null) {
+				introspectionCache.put(cacheKey, accepted, cacheTtlSeconds(responseContent), TimeUnit.SECONDS);
+			}
+			return accepted;
 		} catch (IOException ex){
 			logger.error("callTokenIntroEndpoint() IOException when hitting url: " + post
 					+ " with exception msg: " + ex.getMessage());
@@ -271,7 +417,82 @@ public class JWTFilter implements ContainerRequestFilter {
 		return null;
 	}
 
+	/**
+	 * Never cache an outcome for longer than the token is valid.
+	 */
+	private long cacheTtlSeconds(JsonNode introspection) {
+		JsonNode exp = introspection.get("exp");
+		if (exp == null || !exp.canConvertToLong()) {
+			return CACHE_TTL_SECONDS;
+		}
+		long remaining = exp.asLong() - TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		return Math.min(CACHE_TTL_SECONDS, remaining);
+	}
+
+	/**
+	 * Formats the query now that the request has been accepted, and sends the formatted query in a supplemental
+	 * record once the resource has answered. The record refers to the audit record of the request by its auditId,
+	 * and does not repeat the request.
+	 */
+	private void auditFormattedQuery(Supplier<CompletableFuture<String>> pendingFormat, String token,
+			Map<String, Object> requestMap, String auditId) {
+		if (pendingFormat == null) {
+			return;
+		}
+		pendingFormat.get().thenAccept(formattedQuery -> {
+			if (formattedQuery == null) {
+				return;
+			}
+			Map<String, Object> supplement = new HashMap<>();
+			supplement.put("Target Service", requestMap.get("Target Service"));
+			supplement.put("auditId", auditId);
+			supplement.put("formattedQuery", formattedQuery);
+			Map<String, Object> record = new HashMap<>();
+			record.put("token", token);
+			record.put("request", supplement);
+			try {
+				auditQueue.submit(PicSureWarInit.objectMapper.writeValueAsString(record));
+			} catch (JsonProcessingException e) {
+				logger.error("auditFormattedQuery() cannot serialize audit record", e);
+			}
+		});
+	}
+
+	private static String sha256(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Outcome of an introspection.
+	 */
+	static class Introspection {
+		static final Introspection REJECTED = new Introspection(false, null);
+
+		final boolean active;
+		final String subject;
+
+		Introspection(boolean active, String subject) {
+			this.active = active;
+			this.subject = subject;
+		}
+	}
+
 	void setUserIdClaim(String userIdClaim) {
 		this.userIdClaim = userIdClaim;
 	}
+
+	private static class RequestBodyTooLargeException extends RuntimeException {
+		RequestBodyTooLargeException(String message) {
+			super(message);
+		}
+	}
 }
@@ -0,0 +1,145 @@
+package edu.harvard.dbmi.avillach.security;
+
+import edu.harvard.dbmi.avillach.util.Metrics;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.NotAuthorizedException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Validates PSAMA issued tokens in-process, so that eligible requests can skip the round trip to token
+ * introspection.
+ *
+ * Off unless <code>picsure.auth.local.secret</code> (the HMAC secret tokens are signed with) or
+ * <code>picsure.auth.local.publicKeyFile</code> (a PEM file with one or more RSA or EC public keys) is set.
+ *
+ * Local validation only proves who the user is. PSAMA's access rules, which can depend on the query, are not
+ * applied, so only requests whose path matches <code>picsure.auth.local.paths</code> (default: info and query
+ * status) are validated locally. Everything else still goes through introspection, as do:
+ * <ul>
+ *     <li>tokens that live longer than <code>picsure.auth.local.maxLifetimeSeconds</code> (default 3600), which are
+ *     the ones that can be revoked in PSAMA before they expire</li>
+ *     <li>a random <code>picsure.auth.local.introspectionSampleRate</code> (default 0) share of requests</li>
+ *     <li>tokens that do not verify against the configured keys, or lack an expiry or the user id claim</li>
+ * </ul>
+ */
+public class LocalJwtValidator {
+
+	private final Logger logger = LoggerFactory.getLogger(LocalJwtValidator.class);
+
+	private static final Pattern PEM_KEY = Pattern.compile("-----BEGIN PUBLIC KEY-----([^-]+)-----END PUBLIC KEY-----");
+
+	private final List<Key> keys;
+	private final Pattern paths;
+	private final long maxLifetimeSeconds;
+	private final double introspectionSampleRate;
+
+	public LocalJwtValidator(List<Key> keys, Pattern paths, long maxLifetimeSeconds, double introspectionSampleRate) {
+		this.keys = keys;
+		this.paths = paths;
+		this.maxLifetimeSeconds = maxLifetimeSeconds;
+		this.introspectionSampleRate = introspectionSampleRate;
+	}
+
+	public static LocalJwtValidator fromSystemProperties() {
+		List<Key> keys = new ArrayList<>();
+		String secret = System.getProperty("picsure.auth.local.secret");
+		if (secret != null && !secret.isEmpty()) {
+			keys.add(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA512"));
+		}
+		String publicKeyFile = System.getProperty("picsure.auth.local.publicKeyFile");
+		if (publicKeyFile != null && !publicKeyFile.isEmpty()) {
+			try {
+				keys.addAll(readPublicKeys(new String(Files.readAllBytes(Paths.get(publicKeyFile)), StandardCharsets.US_ASCII)));
+			} catch (IOException | GeneralSecurityException e) {
+				LoggerFactory.getLogger(LocalJwtValidator.class)
+						.error("Cannot read public keys from " + publicKeyFile + ", local token validation is off", e);
+			}
+		}
+		return new LocalJwtValidator(keys,
+				Pattern.compile(System.getProperty("picsure.auth.local.paths", "/info/.*|/query/[^/]+/status/?")),
+				Long.getLong("picsure.auth.local.maxLifetimeSeconds", 3600),
+				Double.parseDouble(System.getProperty("picsure.auth.local.introspectionSampleRate", "0")));
+	}
+
+	/**
+	 * Reads every PEM encoded public key in the text.
+	 */
+	public static List<Key> readPublicKeys(String pem) throws GeneralSecurityException {
+		List<Key> keys = new ArrayList<>();
+		Matcher matcher = PEM_KEY.matcher(pem);
+		while (matcher.find()) {
+			X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.getMimeDecoder().decode(matcher.group(1)));
+			try {
+				keys.add(KeyFactory.getInstance("RSA").generatePublic(spec));
+			} catch (GeneralSecurityException e) {
+				keys.add(KeyFactory.getInstance("EC").generatePublic(spec));
+			}
+		}
+		return keys;
+	}
+
+	public boolean isEnabled() {
+		return !keys.isEmpty();
+	}
+
+	/**
+	 * @return the user id of a valid token, or null if the request has to go through introspection
+	 * @throws NotAuthorizedException if the token is correctly signed but has expired
+	 */
+	public String validate(String token, String requestPath, String userIdClaim) {
+		if (keys.isEmpty() || requestPath == null || !paths.matcher(requestPath).matches()) {
+			return null;
+		}
+		if (introspectionSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < introspectionSampleRate) {
+			Metrics.increment("auth.local.sampled");
+			return null;
+		}
+		Claims claims = null;
+		for (Key key : keys) {
+			try {
+				claims = Jwts.parser().setSigningKey(key).parseClaimsJws(token).getBody();
+				break;
+			} catch (ExpiredJwtException e) {
+				Metrics.increment("auth.local.expired");
+				throw new NotAuthorizedException("Token invalid or expired");
+			} catch (JwtException | IllegalArgumentException e) {
+				// signed with another key, or not a token we can check
+			}
+		}
+		if (claims == null || claims.getExpiration() == null || claims.get(userIdClaim) == null) {
+			Metrics.increment("auth.local.fallback");
+			return null;
+		}
+		Date issuedAt = claims.getIssuedAt();
+		if (issuedAt == null || (claims.getExpiration().getTime() - issuedAt.getTime()) / 1000 > maxLifetimeSeconds) {
+			// long lived tokens can be revoked before they expire, only PSAMA knows
+			Metrics.increment("auth.local.fallback");
+			return null;
+		}
+		Metrics.increment("auth.local.accepted");
+		logger.debug("validate() token for {} validated locally", claims.get(userIdClaim));
+		return String.valueOf(claims.get(userIdClaim));
+	}
+}
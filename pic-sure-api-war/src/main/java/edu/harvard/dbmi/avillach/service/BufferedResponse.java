@@ -0,0 +1,125 @@
+package edu.harvard.dbmi.avillach.service;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A resource response read into memory, so that it can be sent to more than one client. Streamed bodies are read
+ * to the end; any other entity is kept as is and shared.
+ *
+ * {@link #copyWhileSending} reads a streamed body as it is sent to the client instead, keeping a copy only while it is
+ * small enough, so that a large body is never held in memory.
+ */
+class BufferedResponse {
+
+	private final int status;
+	private final Object entity;
+	private final MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+
+	private BufferedResponse(int status, Object entity, MultivaluedMap<String, Object> headers) {
+		this.status = status;
+		this.entity = entity;
+		if (headers != null) {
+			headers.forEach((name, values) -> this.headers.put(name, new ArrayList<>(values)));
+		}
+	}
+
+	static BufferedResponse read(Response response) throws IOException {
+		Object entity = response.getEntity();
+		if (entity instanceof String) {
+			entity = ((String) entity).getBytes(StandardCharsets.UTF_8);
+		} else if (entity instanceof StreamingOutput) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			((StreamingOutput) entity).write(body);
+			entity = body.toByteArray();
+		}
+		return new BufferedResponse(response.getStatus(), entity, response.getHeaders());
+	}
+
+	/**
+	 * Sends the response's body as it comes, and hands a buffered copy of it to <code>whenRead</code> once it has been
+	 * sent to the end, if it was at most <code>maxBytes</code> long. Bodies that are not streamed are read right away.
+	 *
+	 * @return a response to send in place of the given one
+	 */
+	static Response copyWhileSending(Response response, int maxBytes, Consumer<BufferedResponse> whenRead) throws IOException {
+		if (!(response.getEntity() instanceof StreamingOutput)) {
+			BufferedResponse buffered = read(response);
+			if (buffered.size() >= 0 && buffered.size() <= maxBytes) {
+				whenRead.accept(buffered);
+			}
+			return buffered.response();
+		}
+		StreamingOutput body = (StreamingOutput) response.getEntity();
+		StreamingOutput copied = output -> {
+			CappedCopy copy = new CappedCopy(output, maxBytes);
+			body.write(copy);
+			if (copy.bytes != null) {
+				whenRead.accept(new BufferedResponse(response.getStatus(), copy.bytes.toByteArray(), response.getHeaders()));
+			}
+		};
+		return new BufferedResponse(response.getStatus(), copied, response.getHeaders()).response();
+	}
+
+	/**
+	 * Passes everything through, and keeps a copy of it until it grows past its limit.
+	 */
+	private static class CappedCopy extends FilterOutputStream {
+		private final int maxBytes;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		CappedCopy(OutputStream out, int maxBytes) {
+			super(out);
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			keep(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			keep(b, off, len);
+		}
+
+		private void keep(byte[] b, int off, int len) {
+			if (bytes == null) {
+				return;
+			}
+			if (bytes.size() + len > maxBytes) {
+				// too big to keep, the rest is only passed through
+				bytes = null;
+			} else {
+				bytes.write(b, off, len);
+			}
+		}
+	}
+
+	/**
+	 * @return the length of the body, or -1 if the entity is not a body that has been read
+	 */
+	int size() {
+		return entity instanceof byte[] ? ((byte[]) entity).length : -1;
+	}
+
+	/**
+	 * @return a new response with the status, headers and body of the buffered one
+	 */
+	Response response() {
+		Response.ResponseBuilder builder = Response.status(status).entity(entity);
+		headers.forEach((name, values) -> values.forEach(value -> builder.header(name, value)));
+		return builder.build();
+	}
+}
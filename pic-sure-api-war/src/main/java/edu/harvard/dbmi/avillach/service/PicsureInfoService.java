@@ -2,7 +2,6 @@ package edu.harvard.dbmi.avillach.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.ResourceInfo;
 import edu.harvard.dbmi.avillach.util.Utilities;
@@ -16,6 +15,7 @@ import javax.ws.rs.core.HttpHeaders;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class PicsureInfoService {
@@ -25,29 +25,35 @@ public class PicsureInfoService {
 	private final static ObjectMapper mapper = new ObjectMapper();
 
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 
 	@Inject
-	ResourceWebClient resourceWebClient;
+	AsyncResourceWebClient asyncResourceWebClient;
+
+	@Inject
+	ResourceGuards resourceGuards;
 
 	/**
 	 * Retrieve resource info for a specific resource.
 	 *
 	 * @param resourceId - Resource UUID
 	 * @param credentialsQueryRequest - Contains resource specific credentials map
-	 * @return a {@link edu.harvard.dbmi.avillach.domain.ResourceInfo ResourceInfo}
+	 * @return a future completing with the {@link edu.harvard.dbmi.avillach.domain.ResourceInfo ResourceInfo}
 	 */
-	public ResourceInfo info(UUID resourceId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
-		Resource resource = resourceRepo.getById(resourceId);
+	public CompletableFuture<ResourceInfo> infoAsync(UUID resourceId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
+		QueryRequest infoRequest = credentialsQueryRequest == null ? new QueryRequest() : credentialsQueryRequest;
+		Resource resource = prepareInfoRequest(resourceId, infoRequest, headers);
+		return resourceGuards.callHedgedAsync(resource, bulkhead -> asyncResourceWebClient.info(resource.getResourceRSPath(), infoRequest, bulkhead));
+	}
+
+	private Resource prepareInfoRequest(UUID resourceId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
+		Resource resource = resourceRegistry.getById(resourceId);
 		if (resource == null){
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
 		if (resource.getResourceRSPath() == null){
 			throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
 		}
-		if (credentialsQueryRequest == null){
-			credentialsQueryRequest = new QueryRequest();
-		}
 		if (credentialsQueryRequest.getResourceCredentials() == null){
 			credentialsQueryRequest.setResourceCredentials(new HashMap<String, String>());
 		}
@@ -59,7 +65,7 @@ public class PicsureInfoService {
 		);
 
 		credentialsQueryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
-		return resourceWebClient.info(resource.getResourceRSPath(), credentialsQueryRequest);
+		return resource;
 	}
 
 	/**
@@ -69,6 +75,6 @@ public class PicsureInfoService {
 	 */
 	public Map<UUID, String> resources(HttpHeaders headers) {
 		logger.info("path=/info/resources, requestSource={}", Utilities.getRequestSourceFromHeader(headers));
-		return resourceRepo.list().stream().collect(Collectors.toMap(Resource::getUuid, Resource::getName));
+		return resourceRegistry.list().stream().collect(Collectors.toMap(Resource::getUuid, Resource::getName));
 	}
 }
@@ -4,26 +4,33 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.dbmi.avillach.data.entity.Query;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
-import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.QueryStatus;
 import edu.harvard.dbmi.avillach.security.JWTFilter;
+import edu.harvard.dbmi.avillach.util.HttpClientUtil;
 import edu.harvard.dbmi.avillach.util.Utilities;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
-import javax.transaction.Transactional;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.sql.Date;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 /**
  * Service handling business logic for queries to resources
+ *
+ * None of the methods calling a resource are transactional. The repositories run each read and write in a short
+ * transaction of its own, so no database connection is held while waiting on the resource. Query entities are
+ * written through {@link QueryWriteBehind}. The outcome of a resource call is recorded on the container's managed
+ * executor, never on the thread that completed the call, except for /query/sync results, which are recorded and sent
+ * on {@link ResultStreams}.
  */
 public class PicsureQueryService {
 
@@ -38,24 +45,53 @@ public class PicsureQueryService {
 	JWTFilter jwtFilter;
 
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 
 	@Inject
-	QueryRepository queryRepo;
+	QueryWriteBehind queryWriter;
 
 	@Inject
 	ResourceWebClient resourceWebClient;
 
+	@Inject
+	AsyncResourceWebClient asyncResourceWebClient;
+
+	@Inject
+	ResourceGuards resourceGuards;
+
+	@Inject
+	QueryJsonCache queryJsonCache;
+
+	@Inject
+	QueryStatusTracker statusTracker;
+
+	@Inject
+	SyncResultCache syncResultCache;
+
+	@Inject
+	SyncQueryCoalescer coalescer;
+
+	@Inject
+	ResultStreams resultStreams;
+
+	@javax.annotation.Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ManagedExecutorService managedExecutor;
+
 	/**
 	 * Executes a query on a PIC-SURE resource and creates a Query entity in the
-	 * database for the query.
+	 * database for the query, once the resource has accepted it.
 	 *
 	 * @param dataQueryRequest - - {@link QueryRequest} containing resource specific credentials object
 	 *                         and resource specific query (could be a string or a json object)
-	 * @return {@link QueryStatus}
+	 * @return a future completing with the {@link QueryStatus}
 	 */
-	@Transactional
-	public QueryStatus query(QueryRequest dataQueryRequest, HttpHeaders headers) {
+	public CompletableFuture<QueryStatus> queryAsync(QueryRequest dataQueryRequest, HttpHeaders headers) {
+		Resource resource = prepareQuery(dataQueryRequest, headers);
+		return resourceGuards.callAsync(resource, () -> asyncResourceWebClient.query(resource.getResourceRSPath(), dataQueryRequest))
+				.thenApplyAsync(results -> recordQuery(resource, dataQueryRequest, results), managedExecutor);
+	}
+
+	private Resource prepareQuery(QueryRequest dataQueryRequest, HttpHeaders headers) {
 		if (dataQueryRequest == null) {
 			throw new ProtocolException(ProtocolException.MISSING_DATA);
 		}
@@ -63,7 +99,7 @@ public class PicsureQueryService {
 		if (resourceId == null){
 			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
 		}
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.getById(resourceId);
 		if (resource == null){
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
@@ -80,9 +116,10 @@ public class PicsureQueryService {
 		);
 
 		dataQueryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
+		return resource;
+	}
 
-		QueryStatus results = resourceWebClient.query(resource.getResourceRSPath(), dataQueryRequest);
-
+	private QueryStatus recordQuery(Resource resource, QueryRequest dataQueryRequest, QueryStatus results) {
 		Query queryEntity = new Query();
 		queryEntity.setResourceResultId(results.getResourceResultId());
 		queryEntity.setResource(resource);
@@ -108,7 +145,8 @@ public class PicsureQueryService {
 				logger.warn("Unable to parse metadata ", e);
 			}
 		}
-		queryRepo.persist(queryEntity);
+		queryWriter.persist(queryEntity);
+		queryJsonCache.put(queryEntity.getUuid(), queryJson);
 
 		logger.debug("PicsureQueryService() persisted queryEntity with id: " + queryEntity.getUuid());
 		results.setPicsureResultId(queryEntity.getUuid());
@@ -116,27 +154,82 @@ public class PicsureQueryService {
 		if (queryEntity.getResourceResultId() == null){
 		    results.setResourceResultId(queryEntity.getUuid().toString());
 			queryEntity.setResourceResultId(results.getPicsureResultId().toString());
-			queryRepo.persist(queryEntity);
+			queryWriter.merge(queryEntity);
 		}
-		results.setResourceID(resourceId);
+		results.setResourceID(dataQueryRequest.getResourceUUID());
 		return results;
 	}
 
 	/**
 	 * Retrieves the {@link QueryStatus} for a given queryId by looking up the target resource
 	 * from the database and calling the target resource for an updated status. The Query entities
-	 * in the database are updated each time this is called.
+	 * in the database are updated each time the status changes.
+	 *
+	 * @param queryId - id of targeted resource
+	 * @param credentialsQueryRequest - contains resource specific credentials object
+	 * @return a future completing with the {@link QueryStatus}
+	 */
+	public CompletableFuture<QueryStatus> queryStatusAsync(UUID queryId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
+		return queryStatusAsync(queryId, credentialsQueryRequest, headers, 0);
+	}
+
+	/**
+	 * Long-polling version of {@link #queryStatusAsync(UUID, QueryRequest, HttpHeaders)}. If the query is still
+	 * running, the future only completes once its status changes or <code>waitMs</code> has passed, see
+	 * {@link QueryStatusTracker}.
 	 *
 	 * @param queryId - id of targeted resource
 	 * @param credentialsQueryRequest - contains resource specific credentials object
-	 * @return {@link QueryStatus}
+	 * @param waitMs - how long to wait for the status to change, 0 to answer right away
+	 * @return a future completing with the {@link QueryStatus}
+	 */
+	public CompletableFuture<QueryStatus> queryStatusAsync(UUID queryId, QueryRequest credentialsQueryRequest, HttpHeaders headers, long waitMs) {
+		Query query = prepareQueryStatus("/query/{queryId}/status", queryId, credentialsQueryRequest, headers);
+		Supplier<CompletableFuture<QueryStatus>> poll = statusPoll(query, credentialsQueryRequest);
+		CompletableFuture<QueryStatus> current = poll.get();
+		if (waitMs <= 0) {
+			return current;
+		}
+		return current.thenCompose(status -> statusTracker.awaitChange(status, waitMs, poll));
+	}
+
+	/**
+	 * Sends the status of the query to the subscriber, and then every change of its status until it finishes.
+	 * The resource is polled by {@link QueryStatusTracker}, once however many subscribers the query has.
+	 *
+	 * @param queryId - id of targeted resource
+	 * @param credentialsQueryRequest - contains resource specific credentials object, null if the client sent none
+	 * @param subscriber - receives the statuses
 	 */
-	@Transactional
-	public QueryStatus queryStatus(UUID queryId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
+	public void queryEvents(UUID queryId, QueryRequest credentialsQueryRequest, HttpHeaders headers, QueryStatusSubscriber subscriber) {
+		if (credentialsQueryRequest == null) {
+			credentialsQueryRequest = new QueryRequest();
+		}
+		Query query = prepareQueryStatus("/query/{queryId}/events", queryId, credentialsQueryRequest, headers);
+
+		QueryStatus current = new QueryStatus();
+		current.setPicsureResultId(query.getUuid());
+		current.setResourceID(query.getResource().getUuid());
+		current.setResourceResultId(query.getResourceResultId());
+		current.setStatus(query.getStatus());
+		current.setStartTime(query.getStartTime().getTime());
+		if (!statusTracker.subscribe(current, subscriber, statusPoll(query, credentialsQueryRequest))) {
+			throw new ApplicationException("Too many clients are following query statuses, please poll /query/" + queryId + "/status instead");
+		}
+	}
+
+	private Supplier<CompletableFuture<QueryStatus>> statusPoll(Query query, QueryRequest credentialsQueryRequest) {
+		Resource resource = query.getResource();
+		return () -> resourceGuards.callHedgedAsync(resource, bulkhead ->
+				asyncResourceWebClient.queryStatus(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest, bulkhead))
+				.thenApplyAsync(status -> recordQueryStatus(query, status), managedExecutor);
+	}
+
+	private Query prepareQueryStatus(String path, UUID queryId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
 		if (queryId == null){
 			throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
 		}
-		Query query = queryRepo.getById(queryId);
+		Query query = queryWriter.getById(queryId);
 		if (query == null){
 			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
 		}
@@ -158,19 +251,26 @@ public class PicsureQueryService {
 			credentialsQueryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
 		}
 
-		logger.info("path=/query/{queryId}/status, queryId={}, requestSource={}, queryRequest={}",
+		logger.info("path={}, queryId={}, requestSource={}, queryRequest={}",
+				path,
 				queryId,
 				Utilities.getRequestSourceFromHeader(headers),
 				Utilities.convertQueryRequestToString(mapper, credentialsQueryRequest)
 		);
+		return query;
+	}
 
+	private QueryStatus recordQueryStatus(Query query, QueryStatus status) {
 		//Update status on query object
-		QueryStatus status = resourceWebClient.queryStatus(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest);
-		status.setPicsureResultId(queryId);
-		query.setStatus(status.getStatus());
-		queryRepo.persist(query);
+		status.setPicsureResultId(query.getUuid());
+		if (query.getStatus() != status.getStatus()) {
+			// only transitions are written
+			query.setStatus(status.getStatus());
+			queryWriter.merge(query);
+		}
 		status.setStartTime(query.getStartTime().getTime());
-		status.setResourceID(resource.getUuid());
+		status.setResourceID(query.getResource().getUuid());
+		statusTracker.update(status);
 		return status;
 	}
 
@@ -183,12 +283,11 @@ public class PicsureQueryService {
 	 * @param credentialsQueryRequest - contains resource specific credentials object
 	 * @return Response
 	 */
-	@Transactional
 	public Response queryResult(UUID queryId, QueryRequest credentialsQueryRequest, HttpHeaders headers) {
 		if (queryId == null){
 			throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
 		}
-		Query query = queryRepo.getById(queryId);
+		Query query = queryWriter.getById(queryId);
 		if (query == null){
 			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
 		}
@@ -214,18 +313,42 @@ public class PicsureQueryService {
 
 
 		credentialsQueryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
-		return resourceWebClient.queryResult(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest);
+		if (headers != null && HttpClientUtil.acceptsGzip(headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING))) {
+			// the client can take the result exactly as the resource compressed it
+			return resourceGuards.call(resource, () ->
+					resourceWebClient.queryResult(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest, true));
+		}
+		return resourceGuards.call(resource, () ->
+				resourceWebClient.queryResult(resource.getResourceRSPath(), query.getResourceResultId(), credentialsQueryRequest));
 	}
 
 	/**
 	 * Streams the result for a query by looking up the target resource
 	 * from the database and calling the target resource for a result.
+	 * The result is streamed from the resource once it starts responding.
+	 * COUNT and CROSS_COUNT results of resources that opted in are answered
+	 * from {@link SyncResultCache} when the same query was run recently, and
+	 * share one call to the resource with identical queries in flight.
 	 *
 	 * @param queryRequest - contains resource specific credentials object
-	 * @return Response
+	 * @return a future completing with the Response
 	 */
-	@Transactional
-	public Response querySync(QueryRequest queryRequest, HttpHeaders headers) {
+	public CompletableFuture<Response> querySyncAsync(QueryRequest queryRequest, HttpHeaders headers) {
+		Query queryEntity = prepareQuerySync(queryRequest, headers);
+		Resource resource = queryEntity.getResource();
+		String cacheKey = syncResultCache.key(resource, queryRequest);
+		Response cached = syncResultCache.get(cacheKey);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(recordQuerySync(queryEntity, cached));
+		}
+		return coalescer.callAsync(resource, queryRequest, () ->
+				resourceGuards.callAsync(resource, () -> asyncResourceWebClient.querySync(resource.getResourceRSPath(), queryRequest))
+						.thenApply(syncResponse -> syncResultCache.put(cacheKey, resource, syncResponse)))
+				// the request is resumed, and so the result sent, on the thread this completes on
+				.thenApplyAsync(syncResponse -> recordQuerySync(queryEntity, syncResponse), resultStreams);
+	}
+
+	private Query prepareQuerySync(QueryRequest queryRequest, HttpHeaders headers) {
 		if (queryRequest == null){
 			throw new ProtocolException(ProtocolException.MISSING_DATA);
 		}
@@ -233,7 +356,7 @@ public class PicsureQueryService {
 		if (resourceId == null){
 			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
 		}
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.getById(resourceId);
 		if (resource == null){
 			throw new ApplicationException(ApplicationException.MISSING_RESOURCE);
 		}
@@ -268,10 +391,13 @@ public class PicsureQueryService {
 		}
 
 		queryEntity.setQuery(queryJson);
-		queryRepo.persist(queryEntity);
+		queryWriter.persist(queryEntity);
+		queryJsonCache.put(queryEntity.getUuid(), queryJson);
 		queryRequest.getResourceCredentials().put(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken());
+		return queryEntity;
+	}
 
-		Response syncResponse = resourceWebClient.querySync(resource.getResourceRSPath(), queryRequest);
+	private Response recordQuerySync(Query queryEntity, Response syncResponse) {
 		String queryMetadata = queryEntity.getUuid().toString(); // if no response ID, use the queryID (maintain behavior)
 
 		if (syncResponse.getHeaders() != null) {
@@ -291,7 +417,7 @@ public class PicsureQueryService {
 		}
 
 		queryEntity.setResourceResultId(queryMetadata);
-		queryRepo.persist(queryEntity);
+		queryWriter.merge(queryEntity);
 
 		return syncResponse;
 	}
@@ -301,7 +427,7 @@ public class PicsureQueryService {
      * @return a QueryStatus object containing the metadata stored about the given query
      */
 	public QueryStatus queryMetadata(UUID queryId, HttpHeaders headers){
-        Query query = queryRepo.getById(queryId);
+        Query query = queryWriter.getById(queryId);
         if (query == null){
 			throw new ProtocolException(ProtocolException.QUERY_NOT_FOUND + queryId.toString());
         }
@@ -320,7 +446,7 @@ public class PicsureQueryService {
 
         Map<String, Object> metadata = new HashMap<String, Object>();
         try {
-			metadata.put(QUERY_JSON_FIELD, new ObjectMapper().readValue(query.getQuery(), Object.class));
+			metadata.put(QUERY_JSON_FIELD, new ObjectMapper().readValue(queryJsonCache.get(query), Object.class));
 			metadata.put(QUERY_RESULT_METADATA_FIELD, String.valueOf(query.getMetadata()));
 		} catch (JsonProcessingException e) {
 			logger.warn("Unable to use object mapper", e);
@@ -1,6 +1,8 @@
 package edu.harvard.dbmi.avillach.service;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 import javax.inject.Inject;
 import javax.transaction.Transactional;
@@ -13,6 +15,7 @@ import org.slf4j.LoggerFactory;
 
 import edu.harvard.dbmi.avillach.data.entity.Resource;
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.security.FormattedQueryCache;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponse;
 
 /**
@@ -26,6 +29,15 @@ public class PicsureResourceService extends PicsureBaseEntityService<Resource>{
     @Inject
     ResourceRepository resourceRepo;
 
+    @Inject
+    FormattedQueryCache formattedQueryCache;
+
+    @Inject
+    ResourceRegistry resourceRegistry;
+
+    @Inject
+    SyncResultCache syncResultCache;
+
     public PicsureResourceService() {
         super(Resource.class);
     }
@@ -55,21 +67,72 @@ public class PicsureResourceService extends PicsureBaseEntityService<Resource>{
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("/")
     public Response addResource(List<Resource> resources){
-        return addEntity(resources, resourceRepo);
+        Response response = addEntity(resources, resourceRepo);
+        if (resources != null) {
+            // a new resource may reuse the id or URL of one removed earlier
+            resources.forEach(this::invalidate);
+        }
+        resourceRegistry.reload();
+        return response;
     }
 
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("/")
     public Response updateResource(List<Resource> resources){
-        return updateEntity(resources, resourceRepo);
+        List<Resource> previous = new ArrayList<>();
+        if (resources != null) {
+            for (Resource resource : resources) {
+                Resource existing = resource.getUuid() == null ? null : resourceRepo.getById(resource.getUuid());
+                if (existing != null) {
+                    previous.add(existing);
+                }
+            }
+        }
+        Response response = updateEntity(resources, resourceRepo);
+        previous.forEach(this::invalidate);
+        resourceRegistry.reload();
+        return response;
+    }
+
+    /**
+     * Drops the cached query results of the resource, to be called once the resource's data has been reloaded.
+     */
+    @POST
+    @Path("/{resourceId}/invalidate")
+    public Response invalidateResults(@PathParam("resourceId") final String resourceId) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(resourceId);
+        } catch (IllegalArgumentException e) {
+            return PICSUREResponse.protocolError("The resourceId is not a valid UUID: " + resourceId);
+        }
+        syncResultCache.invalidate(uuid);
+        return PICSUREResponse.success("Cached results of resource " + resourceId + " have been dropped");
     }
 
     @Transactional
     @DELETE
     @Path("/{resourceId}")
     public Response removeEntityById(@PathParam("resourceId") final String resourceId) {
-        return removeEntityById(resourceId, resourceRepo);
+        Resource existing = resourceRepo.getById(UUID.fromString(resourceId));
+        Response response = removeEntityById(resourceId, resourceRepo);
+        if (existing != null) {
+            invalidate(existing);
+            resourceRegistry.reload();
+        }
+        return response;
+    }
+
+    /**
+     * Drops everything cached about the resource: its endpoint, formatted queries and query results.
+     */
+    private void invalidate(Resource resource) {
+        ResourceEndpoint.invalidate(resource.getResourceRSPath());
+        if (resource.getUuid() != null) {
+            formattedQueryCache.invalidate(resource.getUuid());
+            syncResultCache.invalidate(resource.getUuid());
+        }
     }
 
 }
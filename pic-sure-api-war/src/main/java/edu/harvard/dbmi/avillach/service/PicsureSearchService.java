@@ -2,7 +2,6 @@ package edu.harvard.dbmi.avillach.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
-import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.PaginatedSearchResult;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.SearchResults;
@@ -16,6 +15,7 @@ import javax.inject.Inject;
 import javax.ws.rs.core.HttpHeaders;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class PicsureSearchService {
 
@@ -24,11 +24,17 @@ public class PicsureSearchService {
 	private final static ObjectMapper mapper = new ObjectMapper();
 
 	@Inject
-	ResourceRepository resourceRepo;
+	ResourceRegistry resourceRegistry;
 
 	@Inject
 	ResourceWebClient resourceWebClient;
 
+	@Inject
+	AsyncResourceWebClient asyncResourceWebClient;
+
+	@Inject
+	ResourceGuards resourceGuards;
+
 	/**
 	 * Executes a concept search against a target resource
 	 *
@@ -36,13 +42,18 @@ public class PicsureSearchService {
 	 * @param searchQueryRequest - {@link QueryRequest} containing resource specific credentials object
 	 *                           and resource specific query (could be a string or a json object)
 	 * @param headers
-	 * @return {@link SearchResults}
+	 * @return a future completing with the {@link SearchResults}
 	 */
-	public SearchResults search(UUID resourceId, QueryRequest searchQueryRequest, HttpHeaders headers) {
+	public CompletableFuture<SearchResults> searchAsync(UUID resourceId, QueryRequest searchQueryRequest, HttpHeaders headers) {
+		Resource resource = prepareSearchRequest(resourceId, searchQueryRequest, headers);
+		return resourceGuards.callAsync(resource, () -> asyncResourceWebClient.search(resource.getResourceRSPath(), searchQueryRequest));
+	}
+
+	private Resource prepareSearchRequest(UUID resourceId, QueryRequest searchQueryRequest, HttpHeaders headers) {
 		if (resourceId == null){
 			throw new ProtocolException(ProtocolException.MISSING_RESOURCE_ID);
 		}
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.getById(resourceId);
 		if (resource == null) {
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
@@ -62,12 +73,12 @@ public class PicsureSearchService {
 		if (searchQueryRequest.getResourceCredentials() == null){
 			searchQueryRequest.setResourceCredentials(new HashMap<String, String>());
 		}
-		return resourceWebClient.search(resource.getResourceRSPath(), searchQueryRequest);
+		return resource;
 	}
 
 	public PaginatedSearchResult<?> searchGenomicConceptValues(UUID resourceId, QueryRequest queryRequest, String conceptPath, String query, Integer page, Integer size
 			, HttpHeaders headers) {
-		Resource resource = resourceRepo.getById(resourceId);
+		Resource resource = resourceRegistry.getById(resourceId);
 		if (resource == null){
 			throw new ProtocolException(ProtocolException.RESOURCE_NOT_FOUND + resourceId.toString());
 		}
@@ -82,7 +93,7 @@ public class PicsureSearchService {
 				conceptPath,
 				query);
 
-		return resourceWebClient.searchConceptValues(resource.getResourceRSPath(), queryRequest, conceptPath, query, page, size);
+		return resourceGuards.call(resource, () -> resourceWebClient.searchConceptValues(resource.getResourceRSPath(), queryRequest, conceptPath, query, page, size));
 	}
 
 }
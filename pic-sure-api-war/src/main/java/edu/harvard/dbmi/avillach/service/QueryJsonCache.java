@@ -0,0 +1,52 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.util.ExpiringLruCache;
+import edu.harvard.dbmi.avillach.util.Metrics;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompressed query JSON of recently created queries, keyed by query id, so that auditing a result download does
+ * not have to read the query from the database and gunzip it.
+ *
+ * Holds at most <code>picsure.queryJson.cache.maxEntries</code> (default 1000) queries for
+ * <code>picsure.queryJson.cache.ttlSeconds</code> (default 3600).
+ */
+@ApplicationScoped
+public class QueryJsonCache {
+
+	private static final long TTL_SECONDS = Long.getLong("picsure.queryJson.cache.ttlSeconds", 3600);
+
+	private final ExpiringLruCache<UUID, String> queries =
+			new ExpiringLruCache<>(Integer.getInteger("picsure.queryJson.cache.maxEntries", 1000));
+
+	public void put(UUID queryId, String queryJson) {
+		if (queryId != null && queryJson != null) {
+			queries.put(queryId, queryJson, TTL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return the query JSON, or null if the query is not cached
+	 */
+	public String get(UUID queryId) {
+		String queryJson = queries.get(queryId);
+		Metrics.increment(queryJson == null ? "queryJson.cache.miss" : "queryJson.cache.hit");
+		return queryJson;
+	}
+
+	/**
+	 * @return the query JSON of the entity, decompressing and caching it if it is not cached yet
+	 */
+	public String get(Query query) {
+		String queryJson = get(query.getUuid());
+		if (queryJson == null) {
+			queryJson = query.getQuery();
+			put(query.getUuid(), queryJson);
+		}
+		return queryJson;
+	}
+}
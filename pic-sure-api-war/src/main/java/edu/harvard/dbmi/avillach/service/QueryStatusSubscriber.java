@@ -0,0 +1,181 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.domain.QueryStatus;
+import edu.harvard.dbmi.avillach.util.Metrics;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A client receiving the status changes of one query from {@link QueryStatusTracker}.
+ *
+ * Statuses are sent one at a time, the next one only once the client has taken the previous one. Statuses waiting
+ * to be sent are buffered, at most <code>picsure.query.events.bufferSize</code> (default 16) per client. When a slow
+ * client's buffer is full the oldest status is dropped, the latest one is always sent. The client is closed once the
+ * query has finished and everything buffered has been sent, or as soon as a send fails or the client is found to have
+ * disconnected. {@link #heartbeat()} sends a message carrying nothing, so that a client that went away while the query
+ * does not change is noticed too.
+ */
+public abstract class QueryStatusSubscriber {
+
+	private static final int BUFFER_SIZE = Integer.getInteger("picsure.query.events.bufferSize", 16);
+
+	private final static ObjectMapper mapper = new ObjectMapper();
+
+	private final Deque<QueryStatus> buffer = new ArrayDeque<>();
+
+	private boolean sending;
+	private boolean finishing;
+	private boolean closed;
+
+	/**
+	 * @return a stage completing once the client has taken the status
+	 */
+	protected abstract CompletionStage<?> send(QueryStatus status);
+
+	/**
+	 * Ends the connection to the client.
+	 */
+	protected abstract void close();
+
+	/**
+	 * @return a stage completing once the client has taken a message carrying nothing
+	 */
+	protected CompletionStage<?> ping() {
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * @return true if the client is known to have gone away
+	 */
+	protected boolean disconnected() {
+		return false;
+	}
+
+	/**
+	 * Streams statuses as server-sent events named "status", with the QueryStatus as JSON data.
+	 */
+	public static QueryStatusSubscriber sse(SseEventSink sink, Sse sse) {
+		return new QueryStatusSubscriber() {
+			@Override
+			protected CompletionStage<?> send(QueryStatus status) {
+				if (sink.isClosed()) {
+					return CompletableFuture.failedFuture(new IllegalStateException("Client disconnected"));
+				}
+				try {
+					return sink.send(sse.newEventBuilder()
+							.name("status")
+							.mediaType(MediaType.APPLICATION_JSON_TYPE)
+							.data(String.class, mapper.writeValueAsString(status))
+							.build());
+				} catch (JsonProcessingException e) {
+					return CompletableFuture.failedFuture(e);
+				}
+			}
+
+			@Override
+			protected void close() {
+				sink.close();
+			}
+
+			@Override
+			protected CompletionStage<?> ping() {
+				if (sink.isClosed()) {
+					return CompletableFuture.failedFuture(new IllegalStateException("Client disconnected"));
+				}
+				return sink.send(sse.newEventBuilder().comment("heartbeat").build());
+			}
+
+			@Override
+			protected boolean disconnected() {
+				return sink.isClosed();
+			}
+		};
+	}
+
+	public synchronized void offer(QueryStatus status) {
+		if (closed) {
+			return;
+		}
+		if (buffer.size() >= BUFFER_SIZE) {
+			buffer.removeFirst();
+			Metrics.increment("query.events.dropped");
+		}
+		buffer.addLast(status);
+		drain();
+	}
+
+	/**
+	 * Closes the client once everything buffered has been sent.
+	 */
+	public synchronized void finish() {
+		finishing = true;
+		if (!sending && buffer.isEmpty()) {
+			closeNow();
+		}
+	}
+
+	/**
+	 * Sends a message carrying nothing, unless a status is being sent already. The client is closed if it fails.
+	 */
+	public synchronized void heartbeat() {
+		if (closed || sending) {
+			return;
+		}
+		sending = true;
+		CompletionStage<?> sent;
+		try {
+			sent = ping();
+		} catch (RuntimeException e) {
+			sent = CompletableFuture.failedFuture(e);
+		}
+		sent.whenComplete((ignored, error) -> sent(error));
+	}
+
+	public synchronized boolean isClosed() {
+		if (!closed && disconnected()) {
+			closeNow();
+		}
+		return closed;
+	}
+
+	private void drain() {
+		if (sending || buffer.isEmpty()) {
+			return;
+		}
+		sending = true;
+		CompletionStage<?> sent;
+		try {
+			sent = send(buffer.removeFirst());
+		} catch (RuntimeException e) {
+			sent = CompletableFuture.failedFuture(e);
+		}
+		sent.whenComplete((ignored, error) -> sent(error));
+	}
+
+	private synchronized void sent(Throwable error) {
+		sending = false;
+		if (error != null) {
+			closeNow();
+		} else if (buffer.isEmpty() && finishing) {
+			closeNow();
+		} else {
+			drain();
+		}
+	}
+
+	private void closeNow() {
+		if (!closed) {
+			closed = true;
+			buffer.clear();
+			close();
+		}
+	}
+}
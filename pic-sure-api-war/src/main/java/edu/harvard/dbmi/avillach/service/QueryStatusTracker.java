@@ -0,0 +1,405 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.domain.QueryStatus;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Polls resources for the status of running queries, so that clients can be told when the status changes instead
+ * of polling themselves.
+ *
+ * A query is tracked from the moment a client starts watching it, through a long-polling /query/{queryId}/status
+ * request or a /query/{queryId}/events subscription, until it is AVAILABLE or in ERROR, or for at most
+ * <code>picsure.query.status.maxTrackedMs</code> (default 24 hours). Each tracked query is polled once however many
+ * clients watch it, with the credentials of the client that started watching it first. While anyone watches, the
+ * resource is polled every <code>picsure.query.status.pollIntervalMs</code> (default 1000). Otherwise the interval
+ * doubles after every poll that finds the status unchanged, and the query is no longer tracked once it reaches
+ * <code>picsure.query.status.maxPollIntervalMs</code> (default 30000) with no one watching. A query is also no longer
+ * tracked after <code>picsure.query.status.maxPollErrors</code> (default 5) polls in a row fail; its subscribers are
+ * then told that the stream is over.
+ *
+ * Every status fetched for a query, by this poll or by any other status request, wakes long-polling requests waiting
+ * for it to change and is sent to the query's subscribers. Long-polling requests wait at most
+ * <code>picsure.query.status.maxWaitMs</code> (default 30000), and at most <code>picsure.query.events.maxSubscribers</code>
+ * (default 1000) subscriptions are open at once. Neither holds a thread while waiting. Subscribers are sent a
+ * heartbeat every <code>picsure.query.events.heartbeatMs</code> (default 15000), so that clients that disconnected
+ * stop counting towards that limit even while their query does not change. Polls, timeouts and heartbeats are
+ * scheduled on the container's managed scheduled executor and run on its managed executor.
+ */
+@ApplicationScoped
+public class QueryStatusTracker {
+
+	private final Logger logger = LoggerFactory.getLogger(QueryStatusTracker.class);
+
+	static final long POLL_INTERVAL_MS = Long.getLong("picsure.query.status.pollIntervalMs", 1000);
+	static final long MAX_POLL_INTERVAL_MS = Long.getLong("picsure.query.status.maxPollIntervalMs", 30000);
+	static final long MAX_WAIT_MS = Long.getLong("picsure.query.status.maxWaitMs", 30000);
+	static final long MAX_TRACKED_MS = Long.getLong("picsure.query.status.maxTrackedMs", TimeUnit.HOURS.toMillis(24));
+	static final int MAX_SUBSCRIBERS = Integer.getInteger("picsure.query.events.maxSubscribers", 1000);
+	static final int MAX_POLL_ERRORS = Integer.getInteger("picsure.query.status.maxPollErrors", 5);
+	static final long HEARTBEAT_MS = Long.getLong("picsure.query.events.heartbeatMs", 15000);
+
+	@Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+	ManagedScheduledExecutorService scheduler;
+
+	@Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ManagedExecutorService executor;
+
+	private final Map<UUID, Tracked> tracked = new HashMap<>();
+
+	private int subscribers;
+
+	private ScheduledFuture<?> heartbeats;
+
+	public QueryStatusTracker() {
+	}
+
+	public QueryStatusTracker(ManagedScheduledExecutorService scheduler, ManagedExecutorService executor) {
+		this.scheduler = scheduler;
+		this.executor = executor;
+	}
+
+	private class Tracked {
+		final UUID queryId;
+		final Supplier<CompletableFuture<QueryStatus>> poll;
+		final long trackedSince = System.currentTimeMillis();
+		final List<Waiter> waiters = new ArrayList<>();
+		final List<QueryStatusSubscriber> subscribers = new ArrayList<>();
+		final AtomicBoolean polling = new AtomicBoolean();
+		QueryStatus latest;
+		long interval = POLL_INTERVAL_MS;
+		int errors;
+		ScheduledFuture<?> next;
+
+		Tracked(UUID queryId, Supplier<CompletableFuture<QueryStatus>> poll) {
+			this.queryId = queryId;
+			this.poll = poll;
+		}
+
+		boolean watched() {
+			return !waiters.isEmpty() || !subscribers.isEmpty();
+		}
+
+		void poll() {
+			if (!polling.compareAndSet(false, true)) {
+				// the previous poll has not answered yet
+				return;
+			}
+			CompletableFuture<QueryStatus> status;
+			try {
+				// off the scheduler's thread, which only hands polls out
+				status = CompletableFuture.supplyAsync(poll, executor).thenCompose(Function.identity());
+			} catch (RuntimeException e) {
+				status = CompletableFuture.failedFuture(e);
+			}
+			status.whenComplete((polled, error) -> {
+				polling.set(false);
+				Metrics.increment("query.status.polled");
+				if (error == null) {
+					scheduleNext(this, update(polled));
+				} else {
+					fail(this, error);
+				}
+			});
+		}
+	}
+
+	private static class Waiter {
+		final PicSureStatus from;
+		final CompletableFuture<QueryStatus> changed;
+
+		Waiter(PicSureStatus from, CompletableFuture<QueryStatus> changed) {
+			this.from = from;
+			this.changed = changed;
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		List<QueryStatusSubscriber> open = new ArrayList<>();
+		synchronized (this) {
+			// the container owns the executor, only the polls and heartbeats are stopped
+			if (heartbeats != null) {
+				heartbeats.cancel(false);
+				heartbeats = null;
+			}
+			tracked.values().forEach(query -> {
+				query.next.cancel(false);
+				open.addAll(query.subscribers);
+			});
+			tracked.clear();
+		}
+		open.forEach(QueryStatusSubscriber::finish);
+	}
+
+	/**
+	 * @param current the status the caller has
+	 * @param waitMs how long to wait for the status to change, capped at <code>picsure.query.status.maxWaitMs</code>
+	 * @param poll fetches the status from the resource, used if no one watches the query yet
+	 * @return a future completing with the first status different from <code>current</code>, or with the latest
+	 * status once the wait is over
+	 */
+	public CompletableFuture<QueryStatus> awaitChange(QueryStatus current, long waitMs, Supplier<CompletableFuture<QueryStatus>> poll) {
+		if (waitMs <= 0 || isFinal(current.getStatus())) {
+			return CompletableFuture.completedFuture(current);
+		}
+		UUID queryId = current.getPicsureResultId();
+		Waiter waiter = new Waiter(current.getStatus(), new CompletableFuture<>());
+		synchronized (this) {
+			Tracked query = trackedFor(current, poll);
+			query.waiters.add(waiter);
+			watch(query);
+		}
+		Metrics.increment("query.status.waiting");
+		ScheduledFuture<?> timeout = scheduler.schedule(() -> waiter.changed.completeAsync(() -> latest(queryId, current), executor),
+				Math.min(waitMs, MAX_WAIT_MS), TimeUnit.MILLISECONDS);
+		waiter.changed.whenComplete((status, error) -> {
+			timeout.cancel(false);
+			remove(queryId, waiter);
+		});
+		return waiter.changed;
+	}
+
+	/**
+	 * Sends the latest status to the subscriber, and then every change until the query finishes.
+	 *
+	 * @param current the status the query has now
+	 * @param poll fetches the status from the resource, used if no one watches the query yet
+	 * @return false if there are too many subscriptions, the subscriber is then left untouched
+	 */
+	public boolean subscribe(QueryStatus current, QueryStatusSubscriber subscriber, Supplier<CompletableFuture<QueryStatus>> poll) {
+		synchronized (this) {
+			if (subscribers >= MAX_SUBSCRIBERS) {
+				// make room for the new subscriber if some are gone
+				tracked.values().forEach(this::prune);
+			}
+			if (subscribers >= MAX_SUBSCRIBERS) {
+				Metrics.increment("query.events.rejected");
+				return false;
+			}
+			if (!isFinal(current.getStatus())) {
+				if (heartbeats == null) {
+					heartbeats = scheduler.scheduleAtFixedRate(() -> executor.execute(this::heartbeat),
+							HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+				}
+				Tracked query = trackedFor(current, poll);
+				query.subscribers.add(subscriber);
+				subscribers++;
+				watch(query);
+				// offered while holding the lock, so that no change can be sent before it
+				subscriber.offer(query.latest);
+				return true;
+			}
+		}
+		subscriber.offer(current);
+		subscriber.finish();
+		return true;
+	}
+
+	/**
+	 * Records a status fetched from a resource. Wakes the requests waiting for the query's status to change, and
+	 * sends the status to the query's subscribers if it changed.
+	 *
+	 * @return true if the status changed since it was last fetched
+	 */
+	public boolean update(QueryStatus status) {
+		if (status == null || status.getPicsureResultId() == null) {
+			return false;
+		}
+		List<Waiter> woken = new ArrayList<>();
+		List<QueryStatusSubscriber> notified = new ArrayList<>();
+		boolean changed;
+		boolean finished = isFinal(status.getStatus());
+		synchronized (this) {
+			Tracked query = tracked.get(status.getPicsureResultId());
+			if (query == null) {
+				return false;
+			}
+			changed = query.latest == null || query.latest.getStatus() != status.getStatus();
+			query.latest = status;
+			for (Waiter waiter : query.waiters) {
+				if (waiter.from != status.getStatus()) {
+					woken.add(waiter);
+				}
+			}
+			prune(query);
+			if (changed) {
+				notified.addAll(query.subscribers);
+			}
+			if (finished) {
+				untrack(query);
+			}
+		}
+		// completed outside the lock, completing removes the waiter
+		woken.forEach(waiter -> waiter.changed.complete(status));
+		for (QueryStatusSubscriber subscriber : notified) {
+			subscriber.offer(status);
+			if (finished) {
+				subscriber.finish();
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Drops the subscribers that disconnected, and sends every other subscriber a heartbeat, which closes it if it
+	 * has disconnected since.
+	 */
+	void heartbeat() {
+		List<QueryStatusSubscriber> open = new ArrayList<>();
+		synchronized (this) {
+			tracked.values().forEach(query -> {
+				prune(query);
+				open.addAll(query.subscribers);
+			});
+		}
+		open.forEach(QueryStatusSubscriber::heartbeat);
+	}
+
+	/**
+	 * @return how many subscriptions are open
+	 */
+	synchronized int subscribers() {
+		return subscribers;
+	}
+
+	/**
+	 * @return how many queries are being polled
+	 */
+	synchronized int tracked() {
+		return tracked.size();
+	}
+
+	/**
+	 * @return the interval at which the query is polled, or 0 if it is not
+	 */
+	synchronized long interval(UUID queryId) {
+		Tracked query = tracked.get(queryId);
+		return query == null ? 0 : query.interval;
+	}
+
+	private Tracked trackedFor(QueryStatus current, Supplier<CompletableFuture<QueryStatus>> poll) {
+		Tracked query = tracked.get(current.getPicsureResultId());
+		if (query == null) {
+			query = new Tracked(current.getPicsureResultId(), poll);
+			query.latest = current;
+			tracked.put(query.queryId, query);
+			schedule(query);
+		}
+		return query;
+	}
+
+	private void watch(Tracked query) {
+		if (query.interval > POLL_INTERVAL_MS) {
+			// polled at the idle pace until now, poll sooner for the new watcher
+			query.interval = POLL_INTERVAL_MS;
+			if (query.next.cancel(false)) {
+				// otherwise a poll is running, and schedules the next one at the new interval
+				schedule(query);
+			}
+		}
+	}
+
+	private void schedule(Tracked query) {
+		query.next = scheduler.schedule(query::poll, query.interval, TimeUnit.MILLISECONDS);
+	}
+
+	private void scheduleNext(Tracked query, boolean changed) {
+		List<QueryStatusSubscriber> expired = new ArrayList<>();
+		synchronized (this) {
+			if (tracked.get(query.queryId) != query) {
+				return;
+			}
+			query.errors = 0;
+			if (System.currentTimeMillis() - query.trackedSince > MAX_TRACKED_MS) {
+				logger.info("Stopped tracking query {}, it is still {} after {} ms", query.queryId,
+						query.latest == null ? null : query.latest.getStatus(), MAX_TRACKED_MS);
+				expired.addAll(query.subscribers);
+				untrack(query);
+			} else {
+				prune(query);
+				if (changed || query.watched()) {
+					query.interval = POLL_INTERVAL_MS;
+					schedule(query);
+				} else if (query.interval >= MAX_POLL_INTERVAL_MS) {
+					// no one has watched it for a while
+					untrack(query);
+				} else {
+					query.interval = Math.min(query.interval * 2, MAX_POLL_INTERVAL_MS);
+					schedule(query);
+				}
+			}
+		}
+		expired.forEach(QueryStatusSubscriber::finish);
+	}
+
+	private void fail(Tracked query, Throwable error) {
+		List<Waiter> failed;
+		List<QueryStatusSubscriber> finished = new ArrayList<>();
+		synchronized (this) {
+			failed = new ArrayList<>(query.waiters);
+			if (tracked.get(query.queryId) == query) {
+				if (++query.errors >= MAX_POLL_ERRORS) {
+					logger.warn("Stopped tracking query {}, {} polls in a row failed: {}", query.queryId, query.errors, error.getMessage());
+					Metrics.increment("query.status.abandoned");
+					finished.addAll(query.subscribers);
+					untrack(query);
+				} else {
+					logger.warn("Unable to poll the status of query {}: {}", query.queryId, error.getMessage());
+					prune(query);
+					schedule(query);
+				}
+			}
+		}
+		failed.forEach(waiter -> waiter.changed.completeExceptionally(error));
+		finished.forEach(QueryStatusSubscriber::finish);
+	}
+
+	private synchronized QueryStatus latest(UUID queryId, QueryStatus otherwise) {
+		Tracked query = tracked.get(queryId);
+		return query == null || query.latest == null ? otherwise : query.latest;
+	}
+
+	private synchronized void remove(UUID queryId, Waiter waiter) {
+		Tracked query = tracked.get(queryId);
+		if (query != null) {
+			query.waiters.remove(waiter);
+		}
+	}
+
+	private void prune(Tracked query) {
+		// subscribers that disconnected
+		int before = query.subscribers.size();
+		query.subscribers.removeIf(QueryStatusSubscriber::isClosed);
+		subscribers -= before - query.subscribers.size();
+	}
+
+	private void untrack(Tracked query) {
+		query.next.cancel(false);
+		subscribers -= query.subscribers.size();
+		tracked.remove(query.queryId);
+	}
+
+	static boolean isFinal(PicSureStatus status) {
+		return status == PicSureStatus.AVAILABLE || status == PicSureStatus.ERROR;
+	}
+}
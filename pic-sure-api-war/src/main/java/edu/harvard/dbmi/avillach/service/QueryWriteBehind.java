@@ -0,0 +1,229 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes Query entities to the database for {@link PicsureQueryService}.
+ *
+ * With <code>picsure.query.durability</code> set to <code>writeBehind</code> (the default), new queries and changes
+ * to existing ones are kept in memory and written by a background worker every
+ * <code>picsure.query.writeBehind.intervalMs</code> (default 200) on the container's managed scheduled executor, in one transaction with a JDBC batch of inserts and one of updates.
+ * Several changes to the same query before a flush are written once. If more than
+ * <code>picsure.query.writeBehind.maxPending</code> (default 1000) queries are waiting, a flush is started right away
+ * on the same executor. If a batch fails, its queries are written one by one, and a query that still fails is kept
+ * for the next flush, until <code>picsure.query.writeBehind.maxAttempts</code> (default 5) flushes have failed to write
+ * it. It is then dropped and logged.
+ *
+ * Until a query is written, {@link #getById} answers from memory, so /query/{id}/status and /query/{id}/metadata see
+ * it on this server. Callers are given copies, the queries waiting to be written are only changed through
+ * {@link #merge}. Queries that are not yet written are lost if the server stops without shutting down, and other
+ * servers behind the same load balancer do not see them for up to one interval. Deployments that cannot accept
+ * either set <code>picsure.query.durability</code> to <code>sync</code>, which writes each change in its own
+ * transaction as it happens.
+ */
+@ApplicationScoped
+public class QueryWriteBehind {
+
+	private final Logger logger = LoggerFactory.getLogger(QueryWriteBehind.class);
+
+	private static final long FLUSH_INTERVAL_MS = Long.getLong("picsure.query.writeBehind.intervalMs", 200);
+	private static final int MAX_PENDING = Integer.getInteger("picsure.query.writeBehind.maxPending", 1000);
+	private static final int MAX_ATTEMPTS = Integer.getInteger("picsure.query.writeBehind.maxAttempts", 5);
+
+	@Inject
+	QueryRepository queryRepo;
+
+	private final boolean writeBehind;
+
+	private final Map<UUID, Pending> pending = new ConcurrentHashMap<>();
+
+	private final Map<UUID, Pending> flushing = new ConcurrentHashMap<>();
+
+	@Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+	ManagedScheduledExecutorService scheduler;
+
+	private ScheduledFuture<?> worker;
+
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private static class Pending {
+		final Query query;
+		final boolean insert;
+		final int attempts;
+
+		Pending(Query query, boolean insert, int attempts) {
+			this.query = query;
+			this.insert = insert;
+			this.attempts = attempts;
+		}
+	}
+
+	public QueryWriteBehind() {
+		this(null, !"sync".equalsIgnoreCase(System.getProperty("picsure.query.durability", "writeBehind")));
+	}
+
+	/**
+	 * @param writeBehind false to write every change as it happens
+	 */
+	public QueryWriteBehind(QueryRepository queryRepo, boolean writeBehind) {
+		this.queryRepo = queryRepo;
+		this.writeBehind = writeBehind;
+	}
+
+	@PostConstruct
+	public void start() {
+		if (!writeBehind) {
+			return;
+		}
+		worker = scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (worker != null) {
+			// the container owns the executor, only this task is stopped
+			worker.cancel(false);
+		}
+		flush();
+	}
+
+	/**
+	 * Saves a new query. Its id is assigned before this returns.
+	 */
+	public void persist(Query query) {
+		if (!writeBehind) {
+			queryRepo.persist(query);
+			return;
+		}
+		if (query.getUuid() == null) {
+			query.setUuid(UUID.randomUUID());
+		}
+		pending.put(query.getUuid(), new Pending(query.copy(), true, 0));
+		queued();
+	}
+
+	/**
+	 * Saves changes to a query that was saved before.
+	 */
+	public void merge(Query query) {
+		if (!writeBehind) {
+			queryRepo.merge(query);
+			return;
+		}
+		// a query that is still waiting to be inserted is inserted with the change
+		Query changed = query.copy();
+		pending.compute(query.getUuid(), (uuid, previous) -> previous == null
+				? new Pending(changed, false, 0) : new Pending(changed, previous.insert, previous.attempts));
+		queued();
+	}
+
+	/**
+	 * @return the query with its latest changes, whether or not they are written yet, or null if there is no such query
+	 */
+	public Query getById(UUID queryId) {
+		Pending written = pending.get(queryId);
+		if (written == null) {
+			written = flushing.get(queryId);
+		}
+		if (written != null) {
+			Metrics.increment("query.writeBehind.overlay.hit");
+			return written.query.copy();
+		}
+		return queryRepo.getById(queryId);
+	}
+
+	/**
+	 * Writes everything waiting. Changes that fail to write are kept for the next flush, up to the maximum attempts.
+	 */
+	synchronized void flush() {
+		flushRequested.set(false);
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<Query> inserts = new ArrayList<>();
+		List<Query> updates = new ArrayList<>();
+		for (Map.Entry<UUID, Pending> entry : pending.entrySet()) {
+			// moved to flushing before it is removed from pending, so getById always finds it
+			flushing.put(entry.getKey(), entry.getValue());
+			if (pending.remove(entry.getKey(), entry.getValue())) {
+				(entry.getValue().insert ? inserts : updates).add(entry.getValue().query);
+			} else {
+				// changed since it was read, the newer change is written by the next flush
+				flushing.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		try {
+			queryRepo.writeAll(inserts, updates);
+			Metrics.add("query.writeBehind.flushed", inserts.size() + updates.size());
+		} catch (RuntimeException e) {
+			logger.error("flush() failed to write " + inserts.size() + " new and " + updates.size()
+					+ " changed queries, writing them one by one", e);
+			Metrics.increment("query.writeBehind.failed");
+			flushing.values().forEach(this::writeOne);
+		} finally {
+			flushing.clear();
+		}
+	}
+
+	/**
+	 * Writes a query of a batch that failed, so that one bad row does not hold back the others.
+	 */
+	private void writeOne(Pending written) {
+		Query query = written.query;
+		try {
+			if (written.insert) {
+				queryRepo.writeAll(List.of(query), Collections.emptyList());
+			} else {
+				queryRepo.writeAll(Collections.emptyList(), List.of(query));
+			}
+			Metrics.increment("query.writeBehind.flushed");
+			return;
+		} catch (RuntimeException e) {
+			Pending failed = new Pending(query, written.insert, written.attempts + 1);
+			if (failed.attempts >= MAX_ATTEMPTS) {
+				logger.error("Dropped " + (written.insert ? "new" : "changed") + " query " + query.getUuid() + " of resource "
+						+ (query.getResource() == null ? null : query.getResource().getUuid()) + " with status " + query.getStatus()
+						+ " and resource result id " + query.getResourceResultId() + " after " + failed.attempts + " failed writes", e);
+				Metrics.increment("query.writeBehind.dropped");
+				// a change made since is still written, as the whole row
+				pending.computeIfPresent(query.getUuid(), (uuid, newer) -> new Pending(newer.query, newer.insert || written.insert, 0));
+				return;
+			}
+			logger.warn("Unable to write query " + query.getUuid() + ", retrying on the next flush: " + e.getMessage());
+			pending.merge(query.getUuid(), failed,
+					(newer, unused) -> new Pending(newer.query, newer.insert || failed.insert, failed.attempts));
+		}
+	}
+
+	int waiting() {
+		return pending.size();
+	}
+
+	private void queued() {
+		Metrics.increment("query.writeBehind.queued");
+		if (pending.size() >= MAX_PENDING && flushRequested.compareAndSet(false, true)) {
+			// never on the caller's thread, which is serving a request
+			scheduler.execute(this::flush);
+		}
+	}
+}
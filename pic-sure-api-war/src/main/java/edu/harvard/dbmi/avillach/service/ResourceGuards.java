@@ -0,0 +1,275 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.util.Bulkhead;
+import edu.harvard.dbmi.avillach.util.CircuitBreaker;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Per-resource bulkhead and circuit breaker wrapped around every call to a resource, so that one slow or failing
+ * resource cannot use up the threads and connections needed to serve the others.
+ *
+ * Limits are read from the resource's metadata, falling back to the defaults below:
+ * <pre>
+ * {
+ *   "circuitBreaker": { "failureThreshold": 5, "openMs": 30000, "halfOpenProbes": 1 },
+ *   "bulkhead": { "maxConcurrent": 50, "maxQueue": 100, "queueTimeoutMs": 5000, "callTimeoutMs": 300000 }
+ * }
+ * </pre>
+ * Only blocking calls queue for a slot. Non-blocking calls run on threads that must not be held up, such as HTTP
+ * client callbacks and the status poller, so they are rejected if no slot is free, and they give up on the resource
+ * after <code>callTimeoutMs</code>. A response whose body is streamed from the resource keeps its slot until the body
+ * has been sent; one that is still unsent <code>callTimeoutMs</code> after it arrived is dropped. Hedged calls hand
+ * the bulkhead on, so that each hedge takes a slot of its own.
+ *
+ * Only failures that say something about the health of the resource count towards opening the circuit: the resource
+ * could not be reached, did not respond in time, or answered with a 5xx status. A 4xx answer is the caller's
+ * problem. Rejected calls fail fast with a ResourceInterfaceException.
+ */
+@ApplicationScoped
+public class ResourceGuards {
+
+	private final Logger logger = LoggerFactory.getLogger(ResourceGuards.class);
+
+	private final Map<UUID, Guard> guards = new ConcurrentHashMap<>();
+
+	/**
+	 * Runs a blocking call to the resource inside its bulkhead and circuit breaker.
+	 */
+	public <T> T call(Resource resource, Supplier<T> resourceCall) {
+		Guard guard = acquire(resource, true);
+		try {
+			T result = resourceCall.get();
+			guard.breaker.onSuccess();
+			return result;
+		} catch (RuntimeException e) {
+			guard.record(e);
+			throw e;
+		} finally {
+			guard.bulkhead.release();
+		}
+	}
+
+	/**
+	 * Runs a non-blocking call to the resource inside its bulkhead and circuit breaker. The bulkhead slot is held
+	 * until the returned future completes, and past that until a streamed body has been sent. If the call times out
+	 * it is cancelled and the future fails with a ResourceInterfaceException.
+	 */
+	public <T> CompletableFuture<T> callAsync(Resource resource, Supplier<CompletableFuture<T>> resourceCall) {
+		return callHedgedAsync(resource, bulkhead -> resourceCall.get());
+	}
+
+	/**
+	 * Runs a non-blocking call as {@link #callAsync(Resource, Supplier)} does, passing it the bulkhead it was admitted
+	 * by so that any hedged request it sends takes a slot too.
+	 */
+	public <T> CompletableFuture<T> callHedgedAsync(Resource resource, Function<Bulkhead, CompletableFuture<T>> resourceCall) {
+		Guard guard = acquire(resource, false);
+		CompletableFuture<T> result;
+		try {
+			result = resourceCall.apply(guard.bulkhead);
+		} catch (RuntimeException e) {
+			guard.record(e);
+			guard.bulkhead.release();
+			throw e;
+		}
+		return result.copy().orTimeout(guard.callTimeoutMs, TimeUnit.MILLISECONDS).handle((value, error) -> {
+			if (error == null) {
+				guard.breaker.onSuccess();
+				return guard.releaseWhenSent(value);
+			}
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			if (cause instanceof TimeoutException) {
+				// abandon the request, nobody is waiting for it any more
+				result.cancel(true);
+				Metrics.increment("resource.guard.timeout");
+				cause = new ResourceInterfaceException("Resource " + guard.name + " did not respond within " + guard.callTimeoutMs + " ms");
+			}
+			guard.record(cause);
+			guard.bulkhead.release();
+			throw new CompletionException(cause);
+		});
+	}
+
+	/**
+	 * @return true if any resource currently has an open circuit
+	 */
+	public boolean anyOpen() {
+		return guards.values().stream().anyMatch(guard -> guard.breaker.getState() == CircuitBreaker.State.OPEN);
+	}
+
+	/**
+	 * @return circuit and bulkhead state of every resource called since startup, keyed by resource name
+	 */
+	public Map<String, Object> status() {
+		Map<String, Object> status = new TreeMap<>();
+		for (Guard guard : guards.values()) {
+			Map<String, Object> resourceStatus = new TreeMap<>();
+			resourceStatus.put("uuid", guard.resourceId);
+			resourceStatus.put("circuit", guard.breaker.getState());
+			resourceStatus.put("consecutiveFailures", guard.breaker.getConsecutiveFailures());
+			resourceStatus.put("activeCalls", guard.bulkhead.getActive());
+			resourceStatus.put("queuedCalls", guard.bulkhead.getWaiting());
+			resourceStatus.put("maxConcurrentCalls", guard.bulkhead.getMaxConcurrent());
+			status.put(guard.name, resourceStatus);
+		}
+		return status;
+	}
+
+	private Guard acquire(Resource resource, boolean mayWait) {
+		Guard guard = guardFor(resource);
+		if (!guard.breaker.tryAcquire()) {
+			Metrics.increment("resource.guard.rejected.open");
+			throw new ResourceInterfaceException("Resource " + guard.name + " is unavailable, please try again later");
+		}
+		if (!(mayWait ? guard.bulkhead.tryAcquire() : guard.bulkhead.tryAcquireNow())) {
+			guard.breaker.onIgnored();
+			Metrics.increment("resource.guard.rejected.busy");
+			throw new ResourceInterfaceException("Resource " + guard.name + " is busy, please try again later");
+		}
+		return guard;
+	}
+
+	private Guard guardFor(Resource resource) {
+		Guard guard = guards.get(resource.getUuid());
+		if (guard == null || !Objects.equals(guard.metadata, resource.getMetadata())) {
+			// first call, or the resource has been reconfigured since the guard was built
+			guard = guards.compute(resource.getUuid(), (id, existing) ->
+					existing != null && Objects.equals(existing.metadata, resource.getMetadata()) ? existing : new Guard(resource));
+		}
+		return guard;
+	}
+
+	private class Guard {
+		private final UUID resourceId;
+		private final String name;
+		private final String metadata;
+		private final CircuitBreaker breaker;
+		private final Bulkhead bulkhead;
+		private final long callTimeoutMs;
+
+		private Guard(Resource resource) {
+			this.resourceId = resource.getUuid();
+			this.name = resource.getName() == null ? String.valueOf(resource.getUuid()) : resource.getName();
+			this.metadata = resource.getMetadata();
+
+			JsonNode config = ResourceMetadata.of(resource);
+			if (config == null) {
+				config = MissingNode.getInstance();
+			}
+			JsonNode breakerConfig = config.path("circuitBreaker");
+			JsonNode bulkheadConfig = config.path("bulkhead");
+			this.breaker = new CircuitBreaker(
+					breakerConfig.path("failureThreshold").asInt(5),
+					breakerConfig.path("openMs").asLong(30000),
+					breakerConfig.path("halfOpenProbes").asInt(1));
+			this.bulkhead = new Bulkhead(
+					bulkheadConfig.path("maxConcurrent").asInt(50),
+					bulkheadConfig.path("maxQueue").asInt(100),
+					bulkheadConfig.path("queueTimeoutMs").asLong(5000));
+			this.callTimeoutMs = bulkheadConfig.path("callTimeoutMs").asLong(300000);
+		}
+
+		/**
+		 * Releases the slot now, or, for a response streaming its body from the resource, once the body is sent.
+		 */
+		@SuppressWarnings("unchecked")
+		private <T> T releaseWhenSent(T value) {
+			if (!(value instanceof Response) || !(((Response) value).getEntity() instanceof StreamingOutput)) {
+				bulkhead.release();
+				return value;
+			}
+			Response response = (Response) value;
+			HeldBody body = new HeldBody(this, (StreamingOutput) response.getEntity());
+			CompletableFuture.delayedExecutor(callTimeoutMs, TimeUnit.MILLISECONDS).execute(body::abandon);
+			return (T) Response.fromResponse(response).entity(body).build();
+		}
+
+		private void record(Throwable error) {
+			if (isResourceFailure(error)) {
+				breaker.onFailure();
+				if (breaker.getState() == CircuitBreaker.State.OPEN) {
+					logger.warn("Circuit open for resource {} after {} consecutive failures", name, breaker.getConsecutiveFailures());
+				}
+			} else {
+				breaker.onIgnored();
+			}
+		}
+
+		private boolean isResourceFailure(Throwable error) {
+			if (!(error instanceof ResourceInterfaceException)) {
+				return false;
+			}
+			int status = ((ResourceInterfaceException) error).getResponseStatus();
+			// no status means there was no response at all
+			return status == 0 || status >= 500;
+		}
+	}
+
+	/**
+	 * A streamed body holding its resource's bulkhead slot until it has been written, or abandoned unwritten.
+	 */
+	private class HeldBody implements StreamingOutput {
+		private final Guard guard;
+		private final StreamingOutput body;
+		private final AtomicBoolean taken = new AtomicBoolean();
+
+		private HeldBody(Guard guard, StreamingOutput body) {
+			this.guard = guard;
+			this.body = body;
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException {
+			if (!taken.compareAndSet(false, true)) {
+				throw new IOException("The result of resource " + guard.name + " was not sent within " + guard.callTimeoutMs + " ms");
+			}
+			try {
+				body.write(output);
+			} finally {
+				guard.bulkhead.release();
+			}
+		}
+
+		private void abandon() {
+			if (!taken.compareAndSet(false, true)) {
+				return;
+			}
+			logger.warn("Result of resource {} was not sent within {} ms, dropping it", guard.name, guard.callTimeoutMs);
+			Metrics.increment("resource.guard.abandoned");
+			try {
+				if (body instanceof Closeable) {
+					((Closeable) body).close();
+				}
+			} catch (IOException e) {
+				logger.debug("Error closing abandoned result", e);
+			} finally {
+				guard.bulkhead.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metadata of each resource, parsed once per version of it, for the settings resources opt in to there such as
+ * <code>resultCache</code>, <code>coalesceQueries</code>, <code>http2</code> and the limits of {@link ResourceGuards}.
+ */
+final class ResourceMetadata {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResourceMetadata.class);
+
+	private final static ObjectMapper mapper = new ObjectMapper();
+
+	private static final Map<UUID, Parsed> parsed = new ConcurrentHashMap<>();
+
+	private ResourceMetadata() {
+	}
+
+	/**
+	 * @return the resource's metadata, an empty object if it has none, or null if it cannot be parsed, in which case
+	 * callers use their defaults and the resource opts in to nothing
+	 */
+	static JsonNode of(Resource resource) {
+		if (resource.getUuid() == null) {
+			return parse(resource);
+		}
+		Parsed metadata = parsed.get(resource.getUuid());
+		if (metadata == null || !Objects.equals(metadata.source, resource.getMetadata())) {
+			// first read, or the resource has been reconfigured since
+			metadata = new Parsed(resource.getMetadata(), parse(resource));
+			parsed.put(resource.getUuid(), metadata);
+		}
+		return metadata.node;
+	}
+
+	private static JsonNode parse(Resource resource) {
+		if (resource.getMetadata() == null || resource.getMetadata().isEmpty()) {
+			return mapper.createObjectNode();
+		}
+		try {
+			return mapper.readTree(resource.getMetadata());
+		} catch (IOException e) {
+			logger.warn("Unable to parse metadata for resource {}, none of its settings apply: {}", resource.getUuid(), e.getMessage());
+			return null;
+		}
+	}
+
+	private static class Parsed {
+		private final String source;
+		private final JsonNode node;
+
+		private Parsed(String source, JsonNode node) {
+			this.source = source;
+			this.node = node;
+		}
+	}
+}
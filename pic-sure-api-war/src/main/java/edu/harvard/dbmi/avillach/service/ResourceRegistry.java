@@ -0,0 +1,210 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.util.AsyncHttpClientUtil;
+import edu.harvard.dbmi.avillach.util.HttpClientRegistry;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All configured resources, kept in memory so that serving a request does not need a database lookup.
+ *
+ * The resources are read once at startup into a snapshot that is never modified, only replaced as a whole. Each
+ * {@link #reload} also prepares the {@link ResourceEndpoint} and request headers of every resource, and switches
+ * HTTP/2 on for the resources that opt in through their metadata with <code>"http2": true</code>. HTTP/2 is set per
+ * host and port: it is on for a host if any resource on it opts in, and off again once none does. It applies to the
+ * calls made through {@link AsyncResourceWebClient}, the only client built on the JDK HttpClient.
+ * PicsureResourceService reloads after adding, updating or removing resources. On deployments with more than one
+ * server, set <code>picsure.resources.refreshSeconds</code> to also reload on an interval, on the container's managed
+ * scheduled executor, so that changes made through another server are picked up. A resource that is not in the snapshot yet is looked up in the database.
+ *
+ * The resources handed out are shared between requests and must not be modified.
+ */
+@ApplicationScoped
+public class ResourceRegistry {
+
+	private final Logger logger = LoggerFactory.getLogger(ResourceRegistry.class);
+
+	private static final long REFRESH_SECONDS = Long.getLong("picsure.resources.refreshSeconds", 0);
+
+	@Inject
+	ResourceRepository resourceRepo;
+
+	private volatile Map<UUID, Resource> snapshot;
+
+	@javax.annotation.Resource(lookup = "java:comp/DefaultManagedScheduledExecutorService")
+	ManagedScheduledExecutorService scheduler;
+
+	private ScheduledFuture<?> refresher;
+
+	public ResourceRegistry() {
+	}
+
+	public ResourceRegistry(ResourceRepository resourceRepo) {
+		this.resourceRepo = resourceRepo;
+	}
+
+	@PostConstruct
+	public void start() {
+		reload();
+		if (REFRESH_SECONDS > 0) {
+			refresher = scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					reload();
+				} catch (RuntimeException e) {
+					// keep the refresh scheduled, the current snapshot stays in use
+					logger.error("reload() failed to refresh resources", e);
+				}
+			}, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (refresher != null) {
+			refresher.cancel(false);
+		}
+	}
+
+	/**
+	 * @return the resource, or null if there is no such resource
+	 */
+	public Resource getById(UUID resourceId) {
+		Resource resource = resources().get(resourceId);
+		if (resource != null) {
+			return resource;
+		}
+		Metrics.increment("resource.registry.miss");
+		resource = resourceRepo.getById(resourceId);
+		if (resource != null) {
+			add(resource);
+		}
+		return resource;
+	}
+
+	/**
+	 * @return every resource, in the order the database lists them
+	 */
+	public List<Resource> list() {
+		return new ArrayList<>(resources().values());
+	}
+
+	/**
+	 * Replaces the snapshot with the resources currently in the database.
+	 */
+	public synchronized void reload() {
+		List<Resource> resources = resourceRepo.list();
+		if (resources == null) {
+			// the repository already logged why
+			logger.warn("reload() could not list resources, keeping the previous snapshot");
+			return;
+		}
+		Map<UUID, Resource> loaded = new LinkedHashMap<>();
+		for (Resource resource : resources) {
+			loaded.put(resource.getUuid(), resource);
+			prepare(resource);
+		}
+		Map<UUID, Resource> previous = snapshot;
+		if (previous != null) {
+			for (Resource old : previous.values()) {
+				Resource current = loaded.get(old.getUuid());
+				if (current == null || !Objects.equals(current.getResourceRSPath(), old.getResourceRSPath())) {
+					ResourceEndpoint.invalidate(old.getResourceRSPath());
+				}
+			}
+		}
+		configureHttp2(loaded.values(), previous == null ? Collections.emptyList() : previous.values());
+		snapshot = Collections.unmodifiableMap(loaded);
+		Metrics.increment("resource.registry.reload");
+	}
+
+	private Map<UUID, Resource> resources() {
+		Map<UUID, Resource> current = snapshot;
+		if (current == null) {
+			reload();
+			current = snapshot;
+		}
+		return current == null ? Collections.emptyMap() : current;
+	}
+
+	private synchronized void add(Resource resource) {
+		Map<UUID, Resource> updated = new LinkedHashMap<>(resources());
+		updated.put(resource.getUuid(), resource);
+		prepare(resource);
+		if (http2(resource)) {
+			// only switched on here, other resources on the host may still want it until the next reload
+			configureHttp2(List.of(resource), Collections.emptyList());
+		}
+		snapshot = Collections.unmodifiableMap(updated);
+	}
+
+	private void prepare(Resource resource) {
+		if (resource.getResourceRSPath() == null) {
+			return;
+		}
+		try {
+			ResourceEndpoint.of(resource.getResourceRSPath())
+					.headers(Collections.singletonMap(ResourceWebClient.BEARER_TOKEN_KEY, resource.getToken()));
+		} catch (ApplicationException e) {
+			logger.warn("Unable to prepare the endpoint of resource {}: {}", resource.getUuid(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Switches HTTP/2 on for the hosts of the resources that opt in, and off for the hosts of every other resource,
+	 * including the removed ones.
+	 */
+	private void configureHttp2(Collection<Resource> resources, Collection<Resource> removed) {
+		Map<String, Boolean> routes = new HashMap<>();
+		for (Resource resource : resources) {
+			String route = route(resource);
+			if (route != null) {
+				routes.merge(route, http2(resource), Boolean::logicalOr);
+			}
+		}
+		for (Resource resource : removed) {
+			String route = route(resource);
+			if (route != null) {
+				routes.putIfAbsent(route, false);
+			}
+		}
+		routes.forEach(AsyncHttpClientUtil::setHttp2);
+	}
+
+	private String route(Resource resource) {
+		if (resource.getResourceRSPath() == null) {
+			return null;
+		}
+		try {
+			return HttpClientRegistry.routeKey(resource.getResourceRSPath());
+		} catch (ApplicationException e) {
+			return null;
+		}
+	}
+
+	private boolean http2(Resource resource) {
+		JsonNode metadata = ResourceMetadata.of(resource);
+		return metadata != null && metadata.path("http2").asBoolean(false);
+	}
+}
@@ -0,0 +1,71 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads suspended /query/sync requests are resumed on. Resuming writes the result to the client, which takes as
+ * long as the client takes to read it, so results are not sent from the container's shared managed executor.
+ *
+ * At most <code>picsure.query.sync.streamThreads</code> (default 50) results are sent at once, and at most
+ * <code>picsure.query.sync.streamQueue</code> (default 1000) wait for a thread. Requests beyond that fail with 503.
+ * The threads come from the container's managed thread factory and are stopped when the application is undeployed.
+ */
+@ApplicationScoped
+public class ResultStreams implements Executor {
+
+	private static final int THREADS = Integer.getInteger("picsure.query.sync.streamThreads", 50);
+	private static final int QUEUE = Integer.getInteger("picsure.query.sync.streamQueue", 1000);
+
+	@Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+	ManagedThreadFactory threadFactory;
+
+	private ThreadPoolExecutor executor;
+
+	public ResultStreams() {
+	}
+
+	public ResultStreams(ThreadFactory threadFactory) {
+		this.executor = build(threadFactory);
+	}
+
+	@PostConstruct
+	public void start() {
+		executor = build(threadFactory);
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdown();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		try {
+			executor.execute(command);
+		} catch (RejectedExecutionException e) {
+			Metrics.increment("query.sync.stream.rejected");
+			throw new ApplicationException(Response.Status.SERVICE_UNAVAILABLE, "Too many results are being sent, please try again later");
+		}
+	}
+
+	private static ThreadPoolExecutor build(ThreadFactory threadFactory) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(QUEUE), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
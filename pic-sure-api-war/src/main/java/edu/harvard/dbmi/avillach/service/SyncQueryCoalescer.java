@@ -0,0 +1,92 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.SingleFlight;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Runs identical /query/sync requests that arrive while one is already in flight only once, for when many users open
+ * the same shared cohort at the same time. The one response is read into memory and sent to every caller.
+ *
+ * Requests are identical when they are for the same resource, with the same query in the canonical form used by
+ * {@link SyncResultCache}, and with the same resource credentials. The query itself has been authorized for every
+ * caller by token introspection, and the credentials are everything the resource is told about the caller, so callers
+ * sharing a response could each have run the query for the same result. A resource whose results depend on anything
+ * else about the caller opts out through its metadata with <code>"coalesceQueries": false</code>.
+ *
+ * Only COUNT and CROSS_COUNT queries are coalesced, as their results are small. They are read on the container's
+ * managed executor, never on the thread that completed the call. Callers arriving while the call is in flight are
+ * not given a time limit, the call in flight is itself bounded by the resource's time limits.
+ */
+@ApplicationScoped
+public class SyncQueryCoalescer {
+
+	private final static ObjectMapper mapper = new ObjectMapper();
+
+	private final SingleFlight<String, BufferedResponse> inFlight = new SingleFlight<>("query.sync");
+
+	@javax.annotation.Resource(lookup = "java:comp/DefaultManagedExecutorService")
+	ManagedExecutorService executor;
+
+	public SyncQueryCoalescer() {
+	}
+
+	public SyncQueryCoalescer(ManagedExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs the call, or waits for the identical call already in flight.
+	 */
+	public CompletableFuture<Response> callAsync(Resource resource, QueryRequest queryRequest, Supplier<CompletableFuture<Response>> call) {
+		String key = key(resource, queryRequest);
+		if (key == null) {
+			return call.get();
+		}
+		return inFlight.executeAsync(key, () -> call.get().thenApplyAsync(response -> buffer(resource, response), executor))
+				.thenApply(BufferedResponse::response);
+	}
+
+	/**
+	 * @return the key identical requests share, or null if the request is not coalesced
+	 */
+	String key(Resource resource, QueryRequest queryRequest) {
+		if (queryRequest.getQuery() == null || optedOut(resource)) {
+			return null;
+		}
+		JsonNode query = mapper.valueToTree(queryRequest.getQuery());
+		if (!SyncResultCache.AGGREGATE_RESULT_TYPES.contains(query.path("expectedResultType").asText())) {
+			return null;
+		}
+		ObjectNode scoped = mapper.createObjectNode();
+		scoped.set("query", query);
+		scoped.set("resourceCredentials", mapper.valueToTree(queryRequest.getResourceCredentials()));
+		return resource.getUuid() + ":" + SyncResultCache.hash(scoped);
+	}
+
+	private BufferedResponse buffer(Resource resource, Response response) {
+		try {
+			return BufferedResponse.read(response);
+		} catch (IOException e) {
+			Metrics.increment("query.sync.coalesce.failed");
+			throw new ResourceInterfaceException("Unable to read the result of resource " + resource.getUuid() + ": " + e.getMessage());
+		}
+	}
+
+	private boolean optedOut(Resource resource) {
+		JsonNode metadata = ResourceMetadata.of(resource);
+		return metadata == null || !metadata.path("coalesceQueries").asBoolean(true);
+	}
+}
@@ -0,0 +1,178 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.util.ExpiringLruCache;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent /query/sync results of COUNT and CROSS_COUNT queries, so that a query the UI sends again is answered without
+ * calling the resource.
+ *
+ * A resource opts in through its metadata, with <code>"resultCache": {"ttlSeconds": 300}</code>. Results are kept per
+ * resource, keyed by a hash of the query in a canonical form: object keys sorted, and the elements of the lists the
+ * query treats as sets sorted, so the same filters picked in a different order share an entry. Those are the field
+ * lists, such as requiredFields and anyRecordOf, and the values of each category filter; any other array keeps its
+ * order. The resource credentials are not part of the key, a resource should only opt in if its counts are the same
+ * for every caller.
+ *
+ * Only results of at most <code>picsure.query.resultCache.maxResultBytes</code> (default 65536) are kept, and at most
+ * <code>picsure.query.resultCache.maxEntries</code> (default 10000) of them. {@link #invalidate} drops the results of
+ * a resource, for when its data has been reloaded or the resource reconfigured.
+ */
+@ApplicationScoped
+public class SyncResultCache {
+
+	/**
+	 * Result types whose results are small enough to keep in memory.
+	 */
+	static final Set<String> AGGREGATE_RESULT_TYPES = Set.of("COUNT", "CROSS_COUNT");
+
+	/**
+	 * Query fields listing concept paths, whose order does not change the result.
+	 */
+	private static final Set<String> FIELD_LISTS = Set.of("fields", "requiredFields", "anyRecordOf", "crossCountFields");
+
+	/**
+	 * Query fields mapping a concept path to the values it may take, in any order.
+	 */
+	private static final Set<String> CATEGORY_FILTERS = Set.of("categoryFilters", "categoryVariantInfoFilters");
+
+	private static final int MAX_RESULT_BYTES = Integer.getInteger("picsure.query.resultCache.maxResultBytes", 64 * 1024);
+
+	private final static ObjectMapper mapper = new ObjectMapper();
+
+	private final ExpiringLruCache<String, BufferedResponse> results =
+			new ExpiringLruCache<>(Integer.getInteger("picsure.query.resultCache.maxEntries", 10000));
+
+	/**
+	 * @return the key of the query's result, or null if it is not cached
+	 */
+	public String key(Resource resource, QueryRequest queryRequest) {
+		if (ttlSeconds(resource) <= 0 || queryRequest.getQuery() == null) {
+			return null;
+		}
+		JsonNode query = mapper.valueToTree(queryRequest.getQuery());
+		if (!AGGREGATE_RESULT_TYPES.contains(query.path("expectedResultType").asText())) {
+			return null;
+		}
+		return resource.getUuid() + ":" + hash(query);
+	}
+
+	/**
+	 * @return a response replaying the cached result, or null if there is none
+	 */
+	public Response get(String key) {
+		if (key == null) {
+			return null;
+		}
+		BufferedResponse cached = results.get(key);
+		Metrics.increment(cached == null ? "query.resultCache.miss" : "query.resultCache.hit");
+		return cached == null ? null : cached.response();
+	}
+
+	/**
+	 * Caches the resource's response if it is small enough. A streamed body is cached once it has been sent, only a
+	 * copy of at most <code>picsure.query.resultCache.maxResultBytes</code> is kept while it is.
+	 *
+	 * @return a response to send in place of the given one
+	 */
+	public Response put(String key, Resource resource, Response response) {
+		if (key == null || response.getStatus() != 200) {
+			return response;
+		}
+		Object contentLength = response.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH);
+		if (contentLength != null && Long.parseLong(contentLength.toString()) > MAX_RESULT_BYTES) {
+			return response;
+		}
+		long ttlSeconds = ttlSeconds(resource);
+		try {
+			return BufferedResponse.copyWhileSending(response, MAX_RESULT_BYTES,
+					buffered -> results.put(key, buffered, ttlSeconds, TimeUnit.SECONDS));
+		} catch (IOException e) {
+			throw new ResourceInterfaceException("Unable to read the result of resource " + resource.getUuid() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Drops every cached result of the resource.
+	 */
+	public void invalidate(UUID resourceId) {
+		String prefix = resourceId + ":";
+		results.invalidateIf(key -> key.startsWith(prefix));
+		Metrics.increment("query.resultCache.invalidated");
+	}
+
+	/**
+	 * @return a hash of the canonical form of the JSON
+	 */
+	static String hash(JsonNode node) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(mapper.writeValueAsBytes(canonical(node)));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (JsonProcessingException | NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the query with the keys of every object, and the elements of every field list and category filter,
+	 * in a fixed order
+	 */
+	static JsonNode canonical(JsonNode node) {
+		return canonical(node, false, false);
+	}
+
+	private static JsonNode canonical(JsonNode node, boolean isSet, boolean valuesAreSets) {
+		if (node.isObject()) {
+			TreeMap<String, JsonNode> fields = new TreeMap<>();
+			for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+				Map.Entry<String, JsonNode> field = it.next();
+				fields.put(field.getKey(), canonical(field.getValue(),
+						valuesAreSets || FIELD_LISTS.contains(field.getKey()), CATEGORY_FILTERS.contains(field.getKey())));
+			}
+			ObjectNode sorted = mapper.createObjectNode();
+			fields.forEach(sorted::set);
+			return sorted;
+		}
+		if (node.isArray()) {
+			List<JsonNode> elements = new ArrayList<>();
+			node.forEach(element -> elements.add(canonical(element, false, false)));
+			if (isSet) {
+				elements.sort(Comparator.comparing(JsonNode::toString));
+			}
+			ArrayNode ordered = mapper.createArrayNode();
+			ordered.addAll(elements);
+			return ordered;
+		}
+		return node;
+	}
+
+	private long ttlSeconds(Resource resource) {
+		JsonNode metadata = ResourceMetadata.of(resource);
+		return metadata == null ? 0 : metadata.path("resultCache").path("ttlSeconds").asLong(0);
+	}
+}
@@ -4,6 +4,7 @@ import static edu.harvard.dbmi.avillach.util.Utilities.buildHttpClientContext;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -30,6 +31,7 @@ import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.ResourceInfo;
 import edu.harvard.dbmi.avillach.security.JWTFilter;
+import edu.harvard.dbmi.avillach.util.Metrics;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 
 @Path("/system")
@@ -50,6 +52,9 @@ public class SystemService {
 
 	@Inject
 	ResourceRepository resourceRepo;
+
+	@Inject
+	ResourceGuards resourceGuards;
 	
 	String token_introspection_url;
 	String token_introspection_token;
@@ -79,6 +84,7 @@ public class SystemService {
 				if( resourcesToTest != null &&  // This proves the MySQL database is serving queries
 						!resourcesToTest.isEmpty() && // This proves at least one resources is configured
 						testPSAMAResponds() &&  // This proves we can perform token introspection
+						!resourceGuards.anyOpen() && // This proves no resource is currently failing fast
 						testResourcesRespond(resourcesToTest) ){ // This proves all resources are at least serving info requests.
 					lastStatus = RUNNING;
 					return lastStatus;
@@ -93,6 +99,27 @@ public class SystemService {
 		}
 	}
 
+	/**
+	 * Circuit breaker and bulkhead state of each resource, see {@link ResourceGuards}.
+	 */
+	@GET
+	@Path("/status/resources")
+	@Produces("application/json")
+	public Map<String, Object> resourceStatus() {
+		return resourceGuards.status();
+	}
+
+	/**
+	 * Counters and timers recorded by this server since it started, see {@link Metrics}. Empty unless
+	 * <code>picsure.metrics.enabled</code> is true.
+	 */
+	@GET
+	@Path("/status/metrics")
+	@Produces("application/json")
+	public Map<String, Object> metrics() {
+		return Metrics.snapshot();
+	}
+
 	private boolean testPSAMAResponds() throws UnsupportedOperationException, IOException {
 		CloseableHttpClient client = PicSureWarInit.CLOSEABLE_HTTP_CLIENT;
 		ObjectMapper json = PicSureWarInit.objectMapper;
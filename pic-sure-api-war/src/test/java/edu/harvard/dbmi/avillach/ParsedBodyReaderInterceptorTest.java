@@ -0,0 +1,38 @@
+package edu.harvard.dbmi.avillach;
+
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import org.junit.Test;
+
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.*;
+
+public class ParsedBodyReaderInterceptorTest {
+
+    private ParsedBodyReaderInterceptor cut = new ParsedBodyReaderInterceptor();
+
+    @Test
+    public void testParsedQueryRequestIsReused() throws IOException {
+        QueryRequest parsed = new QueryRequest();
+        ReaderInterceptorContext context = mock(ReaderInterceptorContext.class);
+        when(context.getProperty(ParsedBodyReaderInterceptor.QUERY_REQUEST_PROPERTY)).thenReturn(parsed);
+        doReturn(QueryRequest.class).when(context).getType();
+
+        assertSame(parsed, cut.aroundReadFrom(context));
+        verify(context, never()).proceed();
+    }
+
+    @Test
+    public void testOtherBodiesAreReadFromTheStream() throws IOException {
+        Object read = Map.of("uuid", "value");
+        ReaderInterceptorContext context = mock(ReaderInterceptorContext.class);
+        when(context.getProperty(ParsedBodyReaderInterceptor.QUERY_REQUEST_PROPERTY)).thenReturn(new QueryRequest());
+        doReturn(Map.class).when(context).getType();
+        when(context.proceed()).thenReturn(read);
+
+        assertSame(read, cut.aroundReadFrom(context));
+    }
+}
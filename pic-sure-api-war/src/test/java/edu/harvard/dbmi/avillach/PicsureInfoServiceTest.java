@@ -4,8 +4,10 @@ import edu.harvard.dbmi.avillach.data.entity.Resource;
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.ResourceInfo;
+import edu.harvard.dbmi.avillach.service.AsyncResourceWebClient;
 import edu.harvard.dbmi.avillach.service.PicsureInfoService;
-import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.service.ResourceGuards;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 import org.junit.Before;
@@ -14,14 +16,17 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatchers;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.*;
 import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -36,14 +41,20 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
     @Mock
     private Resource mockResource = mock(Resource.class);
 
-    @Mock
     private ResourceRepository resourceRepo = mock(ResourceRepository.class);
 
+    @Spy
+    private ResourceRegistry resourceRegistry = new ResourceRegistry(resourceRepo);
+
     @Mock
-    private ResourceWebClient webClient = mock(ResourceWebClient.class);
+    private AsyncResourceWebClient webClient = mock(AsyncResourceWebClient.class);
+
+    @Spy
+    private ResourceGuards resourceGuards = new ResourceGuards();
 
     @Before
     public void setUp() {
+        when(mockResource.getUuid()).thenReturn(resourceId);
         ResourceInfo results = new ResourceInfo();
         Resource testResource = new Resource().setName("A Mock Resource");
         testResource.setUuid(resourceId);
@@ -52,21 +63,22 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
         when(mockResource.getName()).thenReturn("A Mock Resource");
         when(mockResource.getUuid()).thenReturn(resourceId);
 
-        when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
-        when(resourceRepo.getById(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
-        when(webClient.info(any(), any())).thenReturn(results);
+        // the registry answers from the listing below, these are only its fallback
+        lenient().when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
+        lenient().when(resourceRepo.getById(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
+        when(webClient.info(any(), any(), any())).thenReturn(CompletableFuture.completedFuture(results));
         when(resourceRepo.list()).thenReturn(resourceListing);
     }
 
     @Test
-    public void testInfoEndpoints() {
+    public void testInfoEndpoints() throws Exception {
         QueryRequest infoRequest = new QueryRequest();
         Map<String, String> clientCredentials = new HashMap<String, String>();
         infoRequest.setResourceCredentials(clientCredentials);
 
         //Should fail with a nonexistent id
         try {
-            ResourceInfo info = infoService.info(UUID.randomUUID(), infoRequest, null);
+            ResourceInfo info = infoService.infoAsync(UUID.randomUUID(), infoRequest, null).get();
             fail();
         } catch (ProtocolException e){
             assertNotNull(e.getContent());
@@ -74,7 +86,7 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
 
         //Should fail without the url in the resource
         try {
-            ResourceInfo info = infoService.info(resourceId, infoRequest, null);
+            ResourceInfo info = infoService.infoAsync(resourceId, infoRequest, null).get();
             fail();
         } catch (ApplicationException e){
             assertNotNull(e.getContent());
@@ -82,11 +94,11 @@ public class PicsureInfoServiceTest extends BaseServiceTest {
         }
         when(mockResource.getResourceRSPath()).thenReturn("resourceRsPath");
 
-        ResourceInfo responseInfo = infoService.info(resourceId, infoRequest, null);
+        ResourceInfo responseInfo = infoService.infoAsync(resourceId, infoRequest, null).get();
         assertNotNull("Resource response should not be null", responseInfo);
 
         //Should also work without clientCredentials
-        responseInfo = infoService.info(resourceId, null, null);
+        responseInfo = infoService.infoAsync(resourceId, null, null).get();
         assertNotNull("Resource response should not be null", responseInfo);
     }
 
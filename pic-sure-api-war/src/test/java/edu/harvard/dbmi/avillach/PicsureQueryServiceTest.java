@@ -6,11 +6,16 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
@@ -21,6 +26,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
@@ -31,8 +37,17 @@ import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
 import edu.harvard.dbmi.avillach.domain.QueryStatus;
+import edu.harvard.dbmi.avillach.service.AsyncResourceWebClient;
 import edu.harvard.dbmi.avillach.service.PicsureQueryService;
+import edu.harvard.dbmi.avillach.service.QueryJsonCache;
+import edu.harvard.dbmi.avillach.service.QueryStatusTracker;
+import edu.harvard.dbmi.avillach.service.QueryWriteBehind;
+import edu.harvard.dbmi.avillach.service.ResourceGuards;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.service.ResultStreams;
+import edu.harvard.dbmi.avillach.service.SyncQueryCoalescer;
+import edu.harvard.dbmi.avillach.service.SyncResultCache;
 import edu.harvard.dbmi.avillach.util.PicSureStatus;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
@@ -52,15 +67,43 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	@Mock
 	private Resource mockResource = mock(Resource.class);
 
-	@Mock
 	private ResourceRepository resourceRepo = mock(ResourceRepository.class);
 
-	@Mock
+	@Spy
+	private ResourceRegistry resourceRegistry = new ResourceRegistry(resourceRepo);
+
 	private QueryRepository queryRepo = mock(QueryRepository.class);
 
 	@Mock
 	private ResourceWebClient webClient = mock(ResourceWebClient.class);
 
+	@Mock
+	private AsyncResourceWebClient asyncWebClient = mock(AsyncResourceWebClient.class);
+
+	@Spy
+	private ResourceGuards resourceGuards = new ResourceGuards();
+
+	@Spy
+	private QueryJsonCache queryJsonCache = new QueryJsonCache();
+
+	@Spy
+	private QueryStatusTracker statusTracker = new QueryStatusTracker(new TestManagedExecutor(), new TestManagedExecutor());
+
+	@Spy
+	private SyncResultCache syncResultCache = new SyncResultCache();
+
+	@Spy
+	private SyncQueryCoalescer coalescer = new SyncQueryCoalescer(new TestManagedExecutor());
+
+	@Spy
+	private QueryWriteBehind queryWriter = new QueryWriteBehind(queryRepo, false);
+
+	@Mock
+	private ManagedExecutorService managedExecutor = mock(ManagedExecutorService.class);
+
+	@Mock
+	private ResultStreams resultStreams = mock(ResultStreams.class);
+
 	@Before
 	public void setUp() {
 		resourceId = UUID.randomUUID();
@@ -74,7 +117,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		results.setStartTime(new Date().getTime());
 
 		// Return mocks when needed
-		when(webClient.query(any(), any())).thenReturn(results);
+		when(asyncWebClient.query(any(), any())).thenReturn(CompletableFuture.completedFuture(results));
 		when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
 		when(mockResource.getResourceRSPath()).thenReturn("resourceRsPath");
 		when(mockResource.getUuid()).thenReturn(resourceId);
@@ -89,14 +132,24 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 				return null;
 			}
 		}).when(queryRepo).persist(any(Query.class));
+
+		// Run the continuations of the non-blocking methods on the test thread
+		lenient().doAnswer(invocation -> {
+			((Runnable) invocation.getArgument(0)).run();
+			return null;
+		}).when(managedExecutor).execute(any(Runnable.class));
+		lenient().doAnswer(invocation -> {
+			((Runnable) invocation.getArgument(0)).run();
+			return null;
+		}).when(resultStreams).execute(any(Runnable.class));
 	}
 
 	@Test
-	public void testQueryEmptyRequest() {
+	public void testQueryEmptyRequest() throws Exception {
 
 		// Test missing query data
 		try {
-			QueryStatus result = queryService.query(null, null);
+			QueryStatus result = queryService.queryAsync(null, null).get();
 			fail("Missing query request info should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -106,7 +159,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQueryMissingResourceId() {
+	public void testQueryMissingResourceId() throws Exception {
 
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map
@@ -118,7 +171,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 
 		dataQueryRequest.setQuery(queryString);
 		try {
-			QueryStatus result = queryService.query(dataQueryRequest, null);
+			QueryStatus result = queryService.queryAsync(dataQueryRequest, null).get();
 			fail("Missing resourceId should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -129,7 +182,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQueryInvalidResourceId() {
+	public void testQueryInvalidResourceId() throws Exception {
 
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map
@@ -140,7 +193,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		// Test nonexistent resourceId
 		dataQueryRequest.setResourceUUID(UUID.randomUUID());
 		try {
-			QueryStatus result = queryService.query(dataQueryRequest, null);
+			QueryStatus result = queryService.queryAsync(dataQueryRequest, null).get();
 			fail("Nonexistent resourceId should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -151,7 +204,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQueryValidRequest() {
+	public void testQueryValidRequest() throws Exception {
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map exists
 		Map<String, String> clientCredentials = new HashMap<String, String>();
@@ -159,7 +212,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		dataQueryRequest.setResourceUUID(resourceId);
 		dataQueryRequest.setQuery(queryString);
 		
-		QueryStatus result = queryService.query(dataQueryRequest, null);
+		QueryStatus result = queryService.queryAsync(dataQueryRequest, null).get();
 		assertNotNull("Status should not be null", result.getStatus());
 		assertNotNull("Resource result id should not be null", result.getResourceResultId());
 		assertNotNull("Picsure result id should not be null", result.getPicsureResultId());
@@ -175,17 +228,20 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		assertTrue("Query Entity should have query stored", queryEntity.getQuery().contains(queryString));
 		assertEquals("Resource result id and Picsure result id should match in case of no resource result id",
 				queryEntity.getResourceResultId(), queryEntity.getUuid().toString());
+		assertEquals("Query JSON should be cached for result auditing",
+				queryEntity.getQuery(), queryJsonCache.get(queryEntity.getUuid()));
+		verify(queryRepo).merge(queryEntity);
 
 	}
 
 	@Test
-	public void testQueryStatusNoId() {
+	public void testQueryStatusNoId() throws Exception {
 
 		QueryRequest statusRequest = new QueryRequest();
 		Map<String, String> clientCredentials = new HashMap<String, String>();
 		statusRequest.setResourceCredentials(clientCredentials);
 		try {
-			QueryStatus result = queryService.queryStatus(null, statusRequest, null);
+			QueryStatus result = queryService.queryStatusAsync(null, statusRequest, null).get();
 			fail("Missing queryId should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -196,7 +252,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQueryStatusInvalidId() {
+	public void testQueryStatusInvalidId() throws Exception {
 
 		QueryRequest statusRequest = new QueryRequest();
 		Map<String, String> clientCredentials = new HashMap<String, String>();
@@ -204,7 +260,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 
 		// Nonexistent queryId
 		try {
-			QueryStatus result = queryService.queryStatus(UUID.randomUUID(), statusRequest, null);
+			QueryStatus result = queryService.queryStatusAsync(UUID.randomUUID(), statusRequest, null).get();
 			fail("Nonexistent queryId should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -215,7 +271,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQueryStatusValid() {
+	public void testQueryStatusValid() throws Exception {
 
 		QueryRequest statusRequest = new QueryRequest();
 		Map<String, String> clientCredentials = new HashMap<String, String>();
@@ -232,10 +288,10 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		
 		results.setStatus(PicSureStatus.AVAILABLE);  //this should update the DB entity status
 		results.setStartTime(new Date().getTime());
-		when(webClient.queryStatus(any(), any(), any())).thenReturn(results);
+		when(asyncWebClient.queryStatus(any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(results));
 
 		// This one should work
-		QueryStatus result = queryService.queryStatus(queryId, statusRequest, null);
+		QueryStatus result = queryService.queryStatusAsync(queryId, statusRequest, null).get();
 		// These fields are set by the method
 		assertNotNull("Result should not be null", result);
 		assertEquals("Picsure ResultId should match", queryId, result.getPicsureResultId());
@@ -311,11 +367,11 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQuerySyncNoQuery() {
+	public void testQuerySyncNoQuery() throws Exception {
 
 		// Test missing query data
 		try {
-			Response result = queryService.querySync(null, null);
+			Response result = queryService.querySyncAsync(null, null).get();
 			fail("Missing query request info should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -326,7 +382,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQuerySyncNoResourceId() {
+	public void testQuerySyncNoResourceId() throws Exception {
 
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map
@@ -337,7 +393,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		// Test missing resourceId
 		dataQueryRequest.setQuery(queryString);
 		try {
-			Response result = queryService.querySync(dataQueryRequest, null);
+			Response result = queryService.querySyncAsync(dataQueryRequest, null).get();
 			fail("Missing resourceId should throw an error");
 		} catch (ProtocolException e) {
 			assertNotNull(e.getContent());
@@ -348,7 +404,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQuerySyncInvalidResourceId() {
+	public void testQuerySyncInvalidResourceId() throws Exception {
 
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map
@@ -358,7 +414,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		// Test nonexistent resourceId
 		dataQueryRequest.setResourceUUID(UUID.randomUUID());
 		try {
-			Response result = queryService.querySync(dataQueryRequest, null);
+			Response result = queryService.querySyncAsync(dataQueryRequest, null).get();
 			fail("Nonexistent resourceId should throw an error");
 		} catch (ApplicationException e) {
 			assertNotNull(e.getContent());
@@ -369,7 +425,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 
 	@Test
-	public void testQuerySyncValidNoResponseId() {
+	public void testQuerySyncValidNoResponseId() throws Exception {
 
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map
@@ -385,7 +441,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 
 		// Return mocks when needed
 		Response resp = mock(Response.class);
-		when(webClient.querySync(any(), any())).thenReturn(resp);
+		when(asyncWebClient.querySync(any(), any())).thenReturn(CompletableFuture.completedFuture(resp));
 
 		// Mock persisting the queryentity, so that it has an ID and we can test that
 		// the correct information is stored in it
@@ -402,7 +458,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		
 		// Test correct request
 		dataQueryRequest.setResourceUUID(resourceId);
-		Response result = queryService.querySync(dataQueryRequest, null);
+		Response result = queryService.querySyncAsync(dataQueryRequest, null).get();
 		assertNotNull("Result should not be null", result.getStatus());
 
 		// Make sure the query is persisted
@@ -416,7 +472,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 	}
 	
 	@Test
-	public void testQuerySyncValidWithResponseId() {
+	public void testQuerySyncValidWithResponseId() throws Exception {
 
 		QueryRequest dataQueryRequest = new QueryRequest();
 		// At this level we don't check the credentials themselves, just that the map
@@ -439,7 +495,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		MultivaluedMap<String, Object> headerMap= new MultivaluedHashMap<String, Object>();
 		headerMap.add(ResourceWebClient.QUERY_METADATA_FIELD, resultId);
 		when(resp.getHeaders()).thenReturn(headerMap);
-		when(webClient.querySync(any(), any())).thenReturn(resp);
+		when(asyncWebClient.querySync(any(), any())).thenReturn(CompletableFuture.completedFuture(resp));
 
 		// Mock persisting the queryentity, so that it has an ID and we can test that
 		// the correct information is stored in it
@@ -455,7 +511,7 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 		
 		// Test correct request
 		dataQueryRequest.setResourceUUID(resourceId);
-		Response result = queryService.querySync(dataQueryRequest, null);
+		Response result = queryService.querySyncAsync(dataQueryRequest, null).get();
 		assertNotNull("Result should not be null", result.getStatus());
 
 		// Make sure the query is persisted
@@ -467,4 +523,35 @@ public class PicsureQueryServiceTest extends BaseServiceTest {
 				resultId, queryEntity.getResourceResultId());
 
 	}
+
+	@Test
+	public void testQuerySyncCountIsCached() throws Exception {
+		when(mockResource.getMetadata()).thenReturn("{\"resultCache\": {\"ttlSeconds\": 60}}");
+		String resultId = UUID.randomUUID().toString();
+		when(asyncWebClient.querySync(any(), any())).thenReturn(CompletableFuture.completedFuture(
+				Response.ok("42").header(ResourceWebClient.QUERY_METADATA_FIELD, resultId).build()));
+
+		Map<String, Object> query = new HashMap<>();
+		query.put("expectedResultType", "COUNT");
+		query.put("requiredFields", Arrays.asList("\\a\\", "\\b\\"));
+		QueryRequest first = new QueryRequest();
+		first.setResourceUUID(resourceId);
+		first.setQuery(query);
+		Response firstResult = queryService.querySyncAsync(first, null).get();
+
+		// the same filters, picked in another order
+		Map<String, Object> reordered = new HashMap<>();
+		reordered.put("requiredFields", Arrays.asList("\\b\\", "\\a\\"));
+		reordered.put("expectedResultType", "COUNT");
+		QueryRequest second = new QueryRequest();
+		second.setResourceUUID(resourceId);
+		second.setQuery(reordered);
+		Response secondResult = queryService.querySyncAsync(second, null).get();
+
+		verify(asyncWebClient, times(1)).querySync(any(), any());
+		assertEquals("42", new String((byte[]) firstResult.getEntity()));
+		assertEquals("42", new String((byte[]) secondResult.getEntity()));
+		assertEquals("Cached results should still be recorded with the resource result id",
+				resultId, queryEntity.getResourceResultId());
+	}
 }
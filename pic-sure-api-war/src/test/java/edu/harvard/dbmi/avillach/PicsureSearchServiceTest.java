@@ -2,14 +2,17 @@ package edu.harvard.dbmi.avillach;
 
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
 import edu.harvard.dbmi.avillach.domain.SearchResults;
+import edu.harvard.dbmi.avillach.service.AsyncResourceWebClient;
 import edu.harvard.dbmi.avillach.service.PicsureSearchService;
-import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.service.ResourceGuards;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import edu.harvard.dbmi.avillach.data.entity.Resource;
 import edu.harvard.dbmi.avillach.domain.QueryRequest;
@@ -17,6 +20,7 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatchers;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.util.HashMap;
@@ -42,22 +46,28 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
     @Mock
     private Resource mockResource = mock(Resource.class);
 
-    @Mock
     private ResourceRepository resourceRepo = mock(ResourceRepository.class);
 
+    @Spy
+    private ResourceRegistry resourceRegistry = new ResourceRegistry(resourceRepo);
+
     @Mock
-    private ResourceWebClient webClient = mock(ResourceWebClient.class);
+    private AsyncResourceWebClient webClient = mock(AsyncResourceWebClient.class);
+
+    @Spy
+    private ResourceGuards resourceGuards = new ResourceGuards();
 
     @Before
     public void setUp() {
+        when(mockResource.getUuid()).thenReturn(resourceId);
         SearchResults results = new SearchResults();
         when(resourceRepo.getById(resourceId)).thenReturn(mockResource);
         when(resourceRepo.getById(not(ArgumentMatchers.same(resourceId)))).thenReturn(null);
-        when(webClient.search(any(), any())).thenReturn(results);
+        when(webClient.search(any(), any())).thenReturn(CompletableFuture.completedFuture(results));
     }
 
     @Test
-    public void testSearch() {
+    public void testSearch() throws Exception {
         QueryRequest searchQueryRequest = new QueryRequest();
         Map<String, String> clientCredentials = new HashMap<String, String>();
         clientCredentials.put("bearer key", "bearer token");
@@ -65,7 +75,7 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
         searchQueryRequest.setQuery("blood");
 
         try {
-            SearchResults results = searchService.search(resourceId, searchQueryRequest, null);
+            SearchResults results = searchService.searchAsync(resourceId, searchQueryRequest, null).get();
             fail("Missing request data should throw an error");
         } catch (ApplicationException e){
             assertNotNull(e.getContent());
@@ -76,7 +86,7 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
 
         //Missing requestdata should throw an error
         try {
-            SearchResults results = searchService.search(resourceId, null, null);
+            SearchResults results = searchService.searchAsync(resourceId, null, null).get();
             fail("Missing request data should throw an error");
         } catch (ProtocolException e){
             assertNotNull(e.getContent());
@@ -85,7 +95,7 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
 
         //Missing resourceId should error
         try {
-            SearchResults results = searchService.search(null, searchQueryRequest, null);
+            SearchResults results = searchService.searchAsync(null, searchQueryRequest, null).get();
             fail("Missing resourceId should throw an error");
         } catch (ProtocolException e){
             assertNotNull(e.getContent());
@@ -95,7 +105,7 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
 
         //Nonexistent resourceId should error
         try {
-            SearchResults results = searchService.search(UUID.randomUUID(), searchQueryRequest, null);
+            SearchResults results = searchService.searchAsync(UUID.randomUUID(), searchQueryRequest, null).get();
             fail("Nonexistent resourceId should throw an error");
         } catch (ProtocolException e){
             assertNotNull(e.getContent());
@@ -103,12 +113,12 @@ public class PicsureSearchServiceTest extends BaseServiceTest {
         }
 
         //This should work
-        SearchResults results = searchService.search(resourceId, searchQueryRequest, null);
+        SearchResults results = searchService.searchAsync(resourceId, searchQueryRequest, null).get();
         assertNotNull("SearchResults should not be null", results);
 
         //There should also be no problem if the resourceCredentials are null
         searchQueryRequest.setResourceCredentials(null);
-        results = searchService.search(resourceId, searchQueryRequest, null);
+        results = searchService.searchAsync(resourceId, searchQueryRequest, null).get();
         assertNotNull("SearchResults should not be null", results);
     }
 }
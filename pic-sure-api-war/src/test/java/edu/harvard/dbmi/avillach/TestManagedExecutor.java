@@ -0,0 +1,37 @@
+package edu.harvard.dbmi.avillach;
+
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.concurrent.Trigger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Stands in for the container's managed executors in tests, on daemon threads. Trigger based scheduling is not
+ * supported.
+ */
+public class TestManagedExecutor extends ScheduledThreadPoolExecutor implements ManagedScheduledExecutorService {
+
+	public TestManagedExecutor() {
+		this(2);
+	}
+
+	public TestManagedExecutor(int threads) {
+		super(threads, runnable -> {
+			Thread thread = new Thread(runnable, "picsure-test-managed");
+			thread.setDaemon(true);
+			return thread;
+		});
+		setRemoveOnCancelPolicy(true);
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, Trigger trigger) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, Trigger trigger) {
+		throw new UnsupportedOperationException();
+	}
+}
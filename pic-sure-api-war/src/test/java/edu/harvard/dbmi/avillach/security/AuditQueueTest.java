@@ -0,0 +1,150 @@
+package edu.harvard.dbmi.avillach.security;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.TestManagedExecutor;
+
+public class AuditQueueTest {
+
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+	@Rule
+	public TemporaryFolder spillFolder = new TemporaryFolder();
+
+	private AuditQueue auditQueue;
+
+	@Before
+	public void setup() {
+		PicSureWarInit picSureWarInit = mock(PicSureWarInit.class);
+		when(picSureWarInit.getToken_introspection_token()).thenReturn("INTROSPECTION_TOKEN");
+		when(picSureWarInit.getToken_introspection_url()).thenReturn("http://localhost:" + wireMockRule.port() + "/introspection_endpoint");
+		auditQueue = new AuditQueue();
+		auditQueue.picSureWarInit = picSureWarInit;
+		auditQueue.spillFile = spillFolder.getRoot().toPath().resolve("audit-spill.jsonl");
+	}
+
+	@Test
+	public void testRecordsAreReplayedAsIntrospectionRequests() {
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(200)));
+
+		auditQueue.submit("{\"token\":\"a\"}");
+		auditQueue.submit("{\"token\":\"b\"}");
+		assertEquals(2, auditQueue.queued());
+		auditQueue.flush();
+
+		assertEquals(0, auditQueue.queued());
+		verify(postRequestedFor(urlEqualTo("/introspection_endpoint"))
+				.withHeader("Authorization", equalTo("Bearer INTROSPECTION_TOKEN"))
+				.withRequestBody(equalToJson("{\"token\":\"a\"}")));
+		verify(postRequestedFor(urlEqualTo("/introspection_endpoint")).withRequestBody(equalToJson("{\"token\":\"b\"}")));
+	}
+
+	@Test
+	public void testRecordsAreSentInBatchesWhenBatchUrlIsSet() {
+		stubFor(post(urlEqualTo("/audit")).willReturn(aResponse().withStatus(200)));
+		auditQueue.batchUrl = "http://localhost:" + wireMockRule.port() + "/audit";
+
+		auditQueue.submit("{\"token\":\"a\"}");
+		auditQueue.submit("{\"token\":\"b\"}");
+		auditQueue.flush();
+
+		verify(1, postRequestedFor(urlEqualTo("/audit")).withRequestBody(equalToJson("[{\"token\":\"a\"},{\"token\":\"b\"}]")));
+		verify(0, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+	}
+
+	@Test
+	public void testRecordsAreSpilledUntilPsamaRecovers() throws Exception {
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(503)));
+
+		auditQueue.submit("{\"token\":\"a\"}");
+		auditQueue.flush();
+		assertTrue(Files.readAllLines(auditQueue.spillFile).contains("{\"token\":\"a\"}"));
+
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(200)));
+		auditQueue.flush();
+
+		assertFalse(Files.exists(auditQueue.spillFile));
+		assertFalse(Files.exists(auditQueue.sendingFile()));
+		verify(2, postRequestedFor(urlEqualTo("/introspection_endpoint")).withRequestBody(equalToJson("{\"token\":\"a\"}")));
+	}
+
+	@Test
+	public void testSpilledRecordsAreKeptUntilPsamaTakesThem() throws Exception {
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(503)));
+		auditQueue.submit("{\"token\":\"a\"}");
+		auditQueue.flush();
+
+		auditQueue.submit("{\"token\":\"b\"}");
+		auditQueue.flush();
+
+		// a stays on disk until PSAMA takes it, and b waits behind it
+		assertEquals(List.of("{\"token\":\"a\"}"), Files.readAllLines(auditQueue.sendingFile()));
+		assertFalse(Files.exists(auditQueue.spillFile));
+		assertEquals(1, auditQueue.queued());
+
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(200)));
+		auditQueue.flush();
+
+		assertFalse(Files.exists(auditQueue.sendingFile()));
+		assertFalse(Files.exists(auditQueue.spillFile));
+		verify(postRequestedFor(urlEqualTo("/introspection_endpoint")).withRequestBody(equalToJson("{\"token\":\"b\"}")));
+	}
+
+	@Test
+	public void testSpillFileIsOnlyReadableByItsOwner() throws Exception {
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(503)));
+		auditQueue.submit("{\"token\":\"a\"}");
+		auditQueue.flush();
+
+		assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(auditQueue.spillFile));
+	}
+
+	@Test
+	public void testRecordsAreNotSpilledThroughSymbolicLinks() throws Exception {
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(503)));
+		Path planted = spillFolder.newFile("planted.jsonl").toPath();
+		Files.createSymbolicLink(auditQueue.spillFile, planted);
+
+		auditQueue.submit("{\"token\":\"a\"}");
+		auditQueue.flush();
+
+		assertEquals("", new String(Files.readAllBytes(planted), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testStopLeavesTheManagedExecutorRunning() throws Exception {
+		stubFor(post(urlEqualTo("/introspection_endpoint")).willReturn(aResponse().withStatus(503)));
+		TestManagedExecutor scheduler = new TestManagedExecutor();
+		auditQueue.scheduler = scheduler;
+		auditQueue.start();
+		auditQueue.submit("{\"token\":\"a\"}");
+
+		auditQueue.stop();
+
+		assertTrue(Files.readAllLines(auditQueue.spillFile).contains("{\"token\":\"a\"}"));
+		assertFalse(scheduler.isShutdown());
+		assertTrue(scheduler.getQueue().isEmpty());
+		scheduler.shutdown();
+	}
+}
@@ -8,8 +8,20 @@ import static org.mockito.Mockito.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.crypto.spec.SecretKeySpec;
 
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.container.ContainerRequestContext;
@@ -21,17 +33,27 @@ import javax.ws.rs.core.UriInfo;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 
+import edu.harvard.dbmi.avillach.ParsedBodyReaderInterceptor;
 import edu.harvard.dbmi.avillach.PicSureWarInit;
+import edu.harvard.dbmi.avillach.TestManagedExecutor;
 import edu.harvard.dbmi.avillach.data.entity.Query;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
 import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+import edu.harvard.dbmi.avillach.service.QueryJsonCache;
+import edu.harvard.dbmi.avillach.service.QueryWriteBehind;
+import edu.harvard.dbmi.avillach.service.ResourceRegistry;
 import edu.harvard.dbmi.avillach.service.ResourceWebClient;
 import edu.harvard.dbmi.avillach.util.response.PICSUREResponseError;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
 
 public class JWTFilterTest {
 
@@ -39,6 +61,9 @@ public class JWTFilterTest {
 
 	private static final UUID RESOURCE_UUID = UUID.fromString("30ef4941-9656-4b47-af80-528f2b98cf17");
 
+	@Rule
+	public TemporaryFolder spillFolder = new TemporaryFolder();
+
 	@Rule
 	public WireMockRule wireMockRule = new WireMockRule(
 			wireMockConfig().dynamicPort().dynamicHttpsPort());
@@ -49,6 +74,10 @@ public class JWTFilterTest {
 
 	private JWTFilter filter;
 
+	private ResourceRepository resourceRepo;
+
+	private QueryRepository queryRepo;
+
 	@Before
 	public void setup() {
 		port = wireMockRule.port();
@@ -58,11 +87,19 @@ public class JWTFilterTest {
 		filter = new JWTFilter();
 		filter.setUserIdClaim("sub");
 		filter.picSureWarInit = picSureWarInit;
-		filter.resourceWebClient = new ResourceWebClient();
-		filter.queryRepo = mock(QueryRepository.class);
-		filter.resourceRepo = mock(ResourceRepository.class);
+		filter.formattedQueryCache = new FormattedQueryCache();
+		filter.formattedQueryCache.resourceWebClient = new ResourceWebClient();
+		filter.formattedQueryCache.formatExecutor = new TestManagedExecutor();
+		queryRepo = mock(QueryRepository.class);
+		filter.queryWriter = new QueryWriteBehind(queryRepo, true);
+		filter.queryJsonCache = new QueryJsonCache();
+		resourceRepo = mock(ResourceRepository.class);
+		filter.resourceRegistry = new ResourceRegistry(resourceRepo);
 		filter.uriInfo = mock(UriInfo.class);
 		when(filter.uriInfo.getPath()).thenReturn("/test");
+		filter.auditQueue = new AuditQueue();
+		filter.auditQueue.picSureWarInit = picSureWarInit;
+		filter.auditQueue.spillFile = spillFolder.getRoot().toPath().resolve("audit-spill.jsonl");
 	}
 
 	private ContainerRequestContext createRequestContext() {
@@ -80,7 +117,7 @@ public class JWTFilterTest {
 		Query query = new Query();
 		query.setQuery("{\"resourceUUID\":\""+RESOURCE_UUID+"\"}");
 		query.setResource(resource);
-		when(filter.queryRepo.getById(
+		when(queryRepo.getById(
 				QUERY_UUID))
 		.thenReturn(query);
 		return query;
@@ -92,7 +129,7 @@ public class JWTFilterTest {
 		when(resource.getToken()).thenReturn("RESOURCE_TOKEN");
 		when(resource.getUuid()).thenReturn(RESOURCE_UUID);
 
-		when(filter.resourceRepo.getById(
+		when(resourceRepo.getById(
 				RESOURCE_UUID))
 		.thenReturn(resource);
 		return resource;
@@ -175,6 +212,7 @@ public class JWTFilterTest {
 		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
 		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
 		filter.filter(ctx);
+		awaitFormattedQueryAudit();
 
 		verify(postRequestedFor(
 				urlEqualTo("/resource/query/format")));
@@ -184,10 +222,9 @@ public class JWTFilterTest {
 						"$.request.['Target Service']", matching("/query/e830138f-2943-4661-90ae-da053bd94a18/result")))
 				.withRequestBody(matchingJsonPath(
 						"$.request.query", equalToJson(query.getQuery())))
-				.withRequestBody(matchingJsonPath(
-						"$.request.formattedQuery", equalToJson("{\"formatted\":\"query\"}")))
 				.withRequestBody(matchingJsonPath(
 						"$.token", matching("USER_TOKEN"))));
+		verifyFormattedQuerySupplement();
 	}
 
 	@Test
@@ -197,8 +234,6 @@ public class JWTFilterTest {
 
 		queryFormatStub();
 
-		filter.queryRepo = mock(QueryRepository.class);
-
 		Query query = persistedQuery();
 
 		ContainerRequestContext ctx = createRequestContext();
@@ -206,6 +241,7 @@ public class JWTFilterTest {
 		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
 		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
 		filter.filter(ctx);
+		awaitFormattedQueryAudit();
 		ArgumentCaptor<Map> requestBody = ArgumentCaptor.forClass(Map.class);
 		verify(postRequestedFor(
 				urlEqualTo("/introspection_endpoint")).
@@ -213,10 +249,58 @@ public class JWTFilterTest {
 						"$.request.['Target Service']", matching("/query/e830138f-2943-4661-90ae-da053bd94a18/result/")))
 				.withRequestBody(matchingJsonPath(
 						"$.request.query", equalToJson(query.getQuery())))
-				.withRequestBody(matchingJsonPath(
-						"$.request.formattedQuery", equalToJson("{\"formatted\":\"query\"}")))
 				.withRequestBody(matchingJsonPath(
 						"$.token", matching("USER_TOKEN"))));
+		verifyFormattedQuerySupplement();
+	}
+
+	private void verifyFormattedQuerySupplement() throws IOException {
+		// the request is audited once, the formatted query follows in a record that refers to it
+		verify(1, postRequestedFor(urlEqualTo("/introspection_endpoint")).withRequestBody(matchingJsonPath("$.request.query")));
+		LoggedRequest audited = findAll(postRequestedFor(urlEqualTo("/introspection_endpoint"))
+				.withRequestBody(matchingJsonPath("$.request.query"))).get(0);
+		String auditId = PicSureWarInit.objectMapper.readTree(audited.getBodyAsString()).path("request").path("auditId").asText();
+		verify(1, postRequestedFor(urlEqualTo("/introspection_endpoint"))
+				.withRequestBody(matchingJsonPath("$.request.auditId", equalTo(auditId)))
+				.withRequestBody(matchingJsonPath("$.request.formattedQuery", equalToJson("{\"formatted\":\"query\"}")))
+				.withRequestBody(matchingJsonPath("$.token", matching("USER_TOKEN"))));
+	}
+
+	private void awaitFormattedQueryAudit() {
+		// the query is formatted in the background and audited through the audit queue
+		for (int i = 0; i < 100 && filter.auditQueue.queued() == 0; i++) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		filter.auditQueue.flush();
+	}
+
+	@Test
+	public void testFormattedQueryIsCachedForRepeatedQueries() throws IOException {
+		tokenIntrospectionStub("true");
+		queryFormatStub();
+		persistedQuery();
+
+		for (int i = 0; i < 2; i++) {
+			ContainerRequestContext ctx = createRequestContext();
+			when(ctx.getUriInfo().getPath()).thenReturn("/query/" + QUERY_UUID + "/result");
+			when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+			when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
+			filter.filter(ctx);
+			awaitFormattedQueryAudit();
+		}
+
+		verify(1, postRequestedFor(urlEqualTo("/resource/query/format")));
+		// each request is audited once, the first one's formatted query follows in a supplemental record
+		verify(3, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+		verify(2, postRequestedFor(urlEqualTo("/introspection_endpoint")).withRequestBody(matchingJsonPath("$.request.query")));
+		// the second request carries the cached format in the introspection request itself
+		verify(1, postRequestedFor(urlEqualTo("/introspection_endpoint"))
+				.withRequestBody(matchingJsonPath("$.request.query"))
+				.withRequestBody(matchingJsonPath("$.request.formattedQuery", equalToJson("{\"formatted\":\"query\"}"))));
 	}
 
 	private void queryFormatStub() {
@@ -286,4 +370,234 @@ public class JWTFilterTest {
 						"$.token", matching("USER_TOKEN"))));
 	}
 
+	private ContainerRequestContext statusRequestContext() {
+		ContainerRequestContext ctx = createRequestContext();
+		when(ctx.getUriInfo().getPath()).thenReturn("/query/" + QUERY_UUID + "/status");
+		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+		when(ctx.getEntityStream()).thenReturn(new ByteArrayInputStream("{}".getBytes()));
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
+		return ctx;
+	}
+
+	private void awaitIntrospectionRequests(int count) {
+		// audit records for cached outcomes are sent by the audit queue's worker
+		filter.auditQueue.flush();
+		verify(count, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+	}
+
+	@Test
+	public void testRepeatedRequestIsAuthenticatedFromCacheAndStillAudited() throws IOException {
+		tokenIntrospectionStub("true");
+		filter.filter(statusRequestContext());
+
+		// PSAMA no longer matters for the outcome, the second call is answered from the cache
+		tokenIntrospectionStub("false");
+		ContainerRequestContext ctx = statusRequestContext();
+		filter.filter(ctx);
+
+		verify(ctx).setProperty("username", "TEST_USER");
+		verify(ctx, never()).abortWith(any());
+		awaitIntrospectionRequests(2);
+	}
+
+	@Test
+	public void testRejectedTokenIsCached() throws IOException {
+		tokenIntrospectionStub("false");
+		filter.filter(statusRequestContext());
+
+		tokenIntrospectionStub("true");
+		ContainerRequestContext ctx = statusRequestContext();
+		filter.filter(ctx);
+
+		ArgumentCaptor<Response> abortedRequestContext = ArgumentCaptor.forClass(Response.class);
+		verify(ctx).abortWith(abortedRequestContext.capture());
+		assertEquals(401, abortedRequestContext.getValue().getStatus());
+		awaitIntrospectionRequests(2);
+	}
+
+	@Test
+	public void testCacheIsKeyedByToken() throws IOException {
+		tokenIntrospectionStub("true");
+		filter.filter(statusRequestContext());
+
+		ContainerRequestContext ctx = statusRequestContext();
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer OTHER_TOKEN");
+		filter.filter(ctx);
+
+		verify(2, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+		assertEquals(2, filter.introspectionCache.size());
+	}
+
+	private static String signedToken(String secret, String user, long lifetimeMillis) {
+		long now = System.currentTimeMillis();
+		return Jwts.builder()
+				.claim("sub", user)
+				.setIssuedAt(new Date(now - 1000))
+				.setExpiration(new Date(now - 1000 + lifetimeMillis))
+				.signWith(SignatureAlgorithm.HS512, secret.getBytes(StandardCharsets.UTF_8))
+				.compact();
+	}
+
+	private void enableLocalValidation(String secret) {
+		filter.localJwtValidator = new LocalJwtValidator(
+				List.of(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA512")),
+				Pattern.compile("/query/[^/]+/status/?"), 3600, 0);
+	}
+
+	@Test
+	public void testLocallyValidatedTokenSkipsIntrospection() throws IOException {
+		enableLocalValidation("CLIENT_SECRET");
+		ContainerRequestContext ctx = statusRequestContext();
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + signedToken("CLIENT_SECRET", "LOCAL_USER", 60000));
+		filter.filter(ctx);
+
+		verify(ctx).setProperty("username", "LOCAL_USER");
+		verify(0, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+		assertEquals(1, filter.auditQueue.queued());
+	}
+
+	@Test
+	public void testLocallyExpiredTokenIsRejected() throws IOException {
+		enableLocalValidation("CLIENT_SECRET");
+		ContainerRequestContext ctx = statusRequestContext();
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + signedToken("CLIENT_SECRET", "LOCAL_USER", 500));
+		filter.filter(ctx);
+
+		ArgumentCaptor<Response> abortedRequestContext = ArgumentCaptor.forClass(Response.class);
+		verify(ctx).abortWith(abortedRequestContext.capture());
+		assertEquals(401, abortedRequestContext.getValue().getStatus());
+		verify(0, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+	}
+
+	@Test
+	public void testTokensLocalValidationCannotSettleFallBackToIntrospection() throws IOException {
+		tokenIntrospectionStub("true");
+		enableLocalValidation("CLIENT_SECRET");
+
+		// signed with another secret
+		ContainerRequestContext ctx = statusRequestContext();
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + signedToken("OTHER_SECRET", "LOCAL_USER", 60000));
+		filter.filter(ctx);
+		verify(ctx).setProperty("username", "TEST_USER");
+
+		// long lived, may have been revoked
+		ctx = statusRequestContext();
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + signedToken("CLIENT_SECRET", "LOCAL_USER", 86400000));
+		filter.filter(ctx);
+		verify(ctx).setProperty("username", "TEST_USER");
+
+		// query content is authorized by PSAMA
+		ctx = createRequestContext();
+		when(ctx.getUriInfo().getPath()).thenReturn("/query/sync");
+		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+		when(ctx.getEntityStream()).thenReturn(new ByteArrayInputStream("{}".getBytes()));
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer " + signedToken("CLIENT_SECRET", "LOCAL_USER", 60000));
+		filter.filter(ctx);
+		verify(ctx).setProperty("username", "TEST_USER");
+
+		verify(3, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+	}
+
+	@Test
+	public void testParsedQueryRequestIsSharedWithResourceMethod() throws IOException {
+		tokenIntrospectionStub("true");
+
+		ContainerRequestContext ctx = createRequestContext();
+		when(ctx.getUriInfo().getPath()).thenReturn("/query/sync");
+		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+		when(ctx.getEntityStream()).thenReturn(new ByteArrayInputStream(("{\"query\":\"test\", \"resourceCredentials\":{\"key\":\"value\"}}").getBytes()));
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
+		filter.filter(ctx);
+
+		ArgumentCaptor<Object> shared = ArgumentCaptor.forClass(Object.class);
+		verify(ctx).setProperty(eq(ParsedBodyReaderInterceptor.QUERY_REQUEST_PROPERTY), shared.capture());
+		QueryRequest queryRequest = (QueryRequest) shared.getValue();
+		assertEquals("test", queryRequest.getQuery());
+		// only the audit copy has the credentials removed
+		assertEquals("value", queryRequest.getResourceCredentials().get("key"));
+	}
+
+	@Test
+	public void testOversizedBodyIsRejectedBeforeIntrospection() throws IOException {
+		tokenIntrospectionStub("true");
+		filter.maxBufferedBodyBytes = 10;
+
+		String body = "{\"query\":\"a query longer than ten bytes\"}";
+		ContainerRequestContext ctx = createRequestContext();
+		when(ctx.getUriInfo().getPath()).thenReturn("/query/sync");
+		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+		when(ctx.getEntityStream()).thenReturn(new ByteArrayInputStream(body.getBytes()));
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
+		filter.filter(ctx);
+
+		ArgumentCaptor<Response> abortedRequestContext = ArgumentCaptor.forClass(Response.class);
+		verify(ctx).abortWith(abortedRequestContext.capture());
+		assertEquals(413, abortedRequestContext.getValue().getStatus());
+		verify(ctx, never()).setProperty(eq("username"), any());
+		verify(0, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+	}
+
+	@Test
+	public void testConcurrentIdenticalIntrospectionsShareOneCall() throws Exception {
+		stubFor(post(urlEqualTo("/introspection_endpoint"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withFixedDelay(500)
+						.withHeader("Content-Type", "application/json")
+						.withBody("{\"active\":true,\"sub\":\"TEST_USER\"}")));
+
+		List<ContainerRequestContext> contexts = List.of(statusRequestContext(), statusRequestContext(), statusRequestContext());
+		ExecutorService pool = Executors.newFixedThreadPool(contexts.size());
+		try {
+			for (Future<?> request : pool.invokeAll(contexts.stream()
+					.map(ctx -> (Callable<Object>) () -> { filter.filter(ctx); return null; })
+					.collect(Collectors.toList()))) {
+				request.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		for (ContainerRequestContext ctx : contexts) {
+			verify(ctx).setProperty("username", "TEST_USER");
+		}
+		verify(1, postRequestedFor(urlEqualTo("/introspection_endpoint")));
+		// the requests that shared the call are still audited
+		assertEquals(contexts.size() - 1, filter.auditQueue.queued());
+	}
+
+	@Test
+	public void testResultAuditUsesCachedQueryJson() throws IOException {
+		tokenIntrospectionStub("true");
+		filter.queryJsonCache.put(QUERY_UUID, "{\"query\":\"cached\"}");
+
+		ContainerRequestContext ctx = createRequestContext();
+		when(ctx.getUriInfo().getPath()).thenReturn("/query/" + QUERY_UUID + "/result");
+		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
+		filter.filter(ctx);
+
+		verify(queryRepo, never()).getById(any());
+		verify(postRequestedFor(urlEqualTo("/introspection_endpoint"))
+				.withRequestBody(matchingJsonPath("$.request.query", equalToJson("{\"query\":\"cached\"}"))));
+	}
+
+	@Test
+	public void testResultAuditFindsQueriesNotWrittenYet() throws IOException {
+		tokenIntrospectionStub("true");
+		Query query = new Query();
+		query.setUuid(QUERY_UUID);
+		query.setQuery("{\"query\":\"pending\"}");
+		filter.queryWriter.persist(query);
+
+		ContainerRequestContext ctx = createRequestContext();
+		when(ctx.getUriInfo().getPath()).thenReturn("/query/" + QUERY_UUID + "/result");
+		when(ctx.getRequest().getMethod()).thenReturn(HttpMethod.POST);
+		when(ctx.getHeaderString(HttpHeaders.AUTHORIZATION)).thenReturn("Bearer USER_TOKEN");
+		filter.filter(ctx);
+
+		verify(queryRepo, never()).getById(any());
+		verify(postRequestedFor(urlEqualTo("/introspection_endpoint"))
+				.withRequestBody(matchingJsonPath("$.request.query", equalToJson("{\"query\":\"pending\"}"))));
+	}
 }
@@ -0,0 +1,151 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.domain.QueryStatus;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+public class QueryStatusSubscriberTest {
+
+	private List<PicSureStatus> sent = new ArrayList<>();
+
+	private List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+	private int closed;
+
+	private int pings;
+
+	private boolean disconnected;
+
+	private QueryStatusSubscriber subscriber = new QueryStatusSubscriber() {
+		@Override
+		protected CompletionStage<?> send(QueryStatus status) {
+			sent.add(status.getStatus());
+			CompletableFuture<Void> taken = new CompletableFuture<>();
+			pending.add(taken);
+			return taken;
+		}
+
+		@Override
+		protected void close() {
+			closed++;
+		}
+
+		@Override
+		protected CompletionStage<?> ping() {
+			pings++;
+			CompletableFuture<Void> taken = new CompletableFuture<>();
+			pending.add(taken);
+			return taken;
+		}
+
+		@Override
+		protected boolean disconnected() {
+			return disconnected;
+		}
+	};
+
+	private QueryStatus status(PicSureStatus picSureStatus) {
+		QueryStatus status = new QueryStatus();
+		status.setStatus(picSureStatus);
+		return status;
+	}
+
+	private void take() {
+		pending.get(pending.size() - 1).complete(null);
+	}
+
+	@Test
+	public void testStatusesAreSentOneAtATime() {
+		subscriber.offer(status(PicSureStatus.QUEUED));
+		subscriber.offer(status(PicSureStatus.PENDING));
+		assertEquals(List.of(PicSureStatus.QUEUED), sent);
+
+		take();
+		assertEquals(List.of(PicSureStatus.QUEUED, PicSureStatus.PENDING), sent);
+	}
+
+	@Test
+	public void testSlowClientsMissTheOldestStatuses() {
+		subscriber.offer(status(PicSureStatus.QUEUED));
+		int buffered = Integer.getInteger("picsure.query.events.bufferSize", 16);
+		for (int i = 0; i < buffered; i++) {
+			subscriber.offer(status(PicSureStatus.PENDING));
+		}
+		subscriber.offer(status(PicSureStatus.AVAILABLE));
+
+		for (int i = 0; i < buffered; i++) {
+			take();
+		}
+		assertEquals(buffered + 1, sent.size());
+		assertEquals(PicSureStatus.AVAILABLE, sent.get(sent.size() - 1));
+	}
+
+	@Test
+	public void testFinishClosesOnceEverythingIsSent() {
+		subscriber.offer(status(PicSureStatus.AVAILABLE));
+		subscriber.finish();
+		assertFalse(subscriber.isClosed());
+
+		take();
+		assertTrue(subscriber.isClosed());
+		assertEquals(1, closed);
+	}
+
+	@Test
+	public void testFailedSendsClose() {
+		subscriber.offer(status(PicSureStatus.PENDING));
+		subscriber.offer(status(PicSureStatus.AVAILABLE));
+		pending.get(0).completeExceptionally(new IllegalStateException("Client disconnected"));
+
+		assertTrue(subscriber.isClosed());
+		assertEquals(List.of(PicSureStatus.PENDING), sent);
+
+		subscriber.offer(status(PicSureStatus.AVAILABLE));
+		assertEquals(1, sent.size());
+		assertEquals(1, closed);
+	}
+
+	@Test
+	public void testHeartbeatsWaitForTheStatusBeingSent() {
+		subscriber.offer(status(PicSureStatus.PENDING));
+		subscriber.heartbeat();
+		assertEquals(0, pings);
+
+		take();
+		subscriber.heartbeat();
+		assertEquals(1, pings);
+		subscriber.offer(status(PicSureStatus.AVAILABLE));
+		assertEquals(List.of(PicSureStatus.PENDING), sent);
+
+		take();
+		assertEquals(List.of(PicSureStatus.PENDING, PicSureStatus.AVAILABLE), sent);
+	}
+
+	@Test
+	public void testFailedHeartbeatsClose() {
+		subscriber.heartbeat();
+		pending.get(0).completeExceptionally(new IllegalStateException("Client disconnected"));
+
+		assertTrue(subscriber.isClosed());
+		assertEquals(1, closed);
+	}
+
+	@Test
+	public void testDisconnectedClientsAreClosed() {
+		assertFalse(subscriber.isClosed());
+
+		disconnected = true;
+		assertTrue(subscriber.isClosed());
+		assertEquals(1, closed);
+	}
+}
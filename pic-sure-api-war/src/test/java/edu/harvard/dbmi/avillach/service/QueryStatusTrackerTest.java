@@ -0,0 +1,202 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.TestManagedExecutor;
+import edu.harvard.dbmi.avillach.domain.QueryStatus;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+public class QueryStatusTrackerTest {
+
+	private TestManagedExecutor executor = new TestManagedExecutor();
+
+	private QueryStatusTracker tracker = new QueryStatusTracker(executor, executor);
+
+	private UUID queryId = UUID.randomUUID();
+
+	private AtomicInteger polls = new AtomicInteger();
+
+	@After
+	public void tearDown() {
+		tracker.stop();
+		executor.shutdownNow();
+	}
+
+	private QueryStatus status(PicSureStatus picSureStatus) {
+		QueryStatus status = new QueryStatus();
+		status.setPicsureResultId(queryId);
+		status.setStatus(picSureStatus);
+		return status;
+	}
+
+	private Supplier<CompletableFuture<QueryStatus>> poll(PicSureStatus picSureStatus) {
+		return () -> {
+			polls.incrementAndGet();
+			return CompletableFuture.completedFuture(status(picSureStatus));
+		};
+	}
+
+	@Test
+	public void testWaitersAreWokenByAStatusChange() throws Exception {
+		CompletableFuture<QueryStatus> changed = tracker.awaitChange(status(PicSureStatus.PENDING), 60000, poll(PicSureStatus.PENDING));
+
+		tracker.update(status(PicSureStatus.PENDING));
+		assertFalse(changed.isDone());
+
+		QueryStatus available = status(PicSureStatus.AVAILABLE);
+		tracker.update(available);
+		assertSame(available, changed.get(1, TimeUnit.SECONDS));
+		assertEquals(0, tracker.tracked());
+	}
+
+	@Test
+	public void testWaitersShareOnePoll() throws Exception {
+		CompletableFuture<QueryStatus> first = tracker.awaitChange(status(PicSureStatus.PENDING), 60000, poll(PicSureStatus.AVAILABLE));
+		CompletableFuture<QueryStatus> second = tracker.awaitChange(status(PicSureStatus.PENDING), 60000, poll(PicSureStatus.AVAILABLE));
+
+		long wait = QueryStatusTracker.POLL_INTERVAL_MS * 5;
+		assertEquals(PicSureStatus.AVAILABLE, first.get(wait, TimeUnit.MILLISECONDS).getStatus());
+		assertEquals(PicSureStatus.AVAILABLE, second.get(wait, TimeUnit.MILLISECONDS).getStatus());
+		assertEquals(1, polls.get());
+	}
+
+	@Test
+	public void testWaitEndsWithTheLatestStatus() throws Exception {
+		QueryStatus pending = status(PicSureStatus.PENDING);
+		QueryStatus answer = tracker.awaitChange(pending, 50, poll(PicSureStatus.PENDING)).get(1, TimeUnit.SECONDS);
+
+		assertSame(pending, answer);
+		// still polled, only less often now that no one is waiting
+		assertEquals(1, tracker.tracked());
+	}
+
+	@Test
+	public void testFinishedQueriesAreNotWaitedOn() {
+		QueryStatus available = status(PicSureStatus.AVAILABLE);
+		CompletableFuture<QueryStatus> answer = tracker.awaitChange(available, 60000, poll(PicSureStatus.AVAILABLE));
+
+		assertTrue(answer.isDone());
+		assertSame(available, answer.join());
+		assertEquals(0, polls.get());
+	}
+
+	@Test
+	public void testSubscribersReceiveEveryChangeUntilTheQueryFinishes() {
+		List<PicSureStatus> received = new ArrayList<>();
+		AtomicInteger closed = new AtomicInteger();
+		QueryStatusSubscriber subscriber = new QueryStatusSubscriber() {
+			@Override
+			protected CompletionStage<?> send(QueryStatus status) {
+				received.add(status.getStatus());
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			protected void close() {
+				closed.incrementAndGet();
+			}
+		};
+
+		assertTrue(tracker.subscribe(status(PicSureStatus.QUEUED), subscriber, poll(PicSureStatus.QUEUED)));
+		tracker.update(status(PicSureStatus.PENDING));
+		tracker.update(status(PicSureStatus.PENDING));
+		tracker.update(status(PicSureStatus.AVAILABLE));
+
+		assertEquals(List.of(PicSureStatus.QUEUED, PicSureStatus.PENDING, PicSureStatus.AVAILABLE), received);
+		assertEquals(1, closed.get());
+		assertTrue(subscriber.isClosed());
+		assertEquals(0, tracker.tracked());
+	}
+
+	@Test
+	public void testUnwatchedQueriesArePolledLessOften() throws Exception {
+		tracker.awaitChange(status(PicSureStatus.PENDING), 50, poll(PicSureStatus.PENDING)).get(1, TimeUnit.SECONDS);
+		assertEquals(QueryStatusTracker.POLL_INTERVAL_MS, tracker.interval(queryId));
+
+		Thread.sleep(QueryStatusTracker.POLL_INTERVAL_MS * 3 / 2);
+		assertEquals(1, polls.get());
+		assertEquals(QueryStatusTracker.POLL_INTERVAL_MS * 2, tracker.interval(queryId));
+
+		tracker.awaitChange(status(PicSureStatus.PENDING), 60000, poll(PicSureStatus.PENDING));
+		assertEquals(QueryStatusTracker.POLL_INTERVAL_MS, tracker.interval(queryId));
+	}
+
+	@Test
+	public void testSubscribersAreFinishedWhenPollsKeepFailing() throws Exception {
+		CompletableFuture<Void> closed = new CompletableFuture<>();
+		QueryStatusSubscriber subscriber = new QueryStatusSubscriber() {
+			@Override
+			protected CompletionStage<?> send(QueryStatus status) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			protected void close() {
+				closed.complete(null);
+			}
+		};
+		Supplier<CompletableFuture<QueryStatus>> failing = () -> {
+			polls.incrementAndGet();
+			return CompletableFuture.failedFuture(new IllegalStateException("resource down"));
+		};
+
+		assertTrue(tracker.subscribe(status(PicSureStatus.PENDING), subscriber, failing));
+
+		closed.get(QueryStatusTracker.POLL_INTERVAL_MS * (QueryStatusTracker.MAX_POLL_ERRORS + 2), TimeUnit.MILLISECONDS);
+		assertEquals(QueryStatusTracker.MAX_POLL_ERRORS, polls.get());
+		assertEquals(0, tracker.tracked());
+	}
+
+	@Test
+	public void testDisconnectedSubscribersAreDropped() {
+		AtomicBoolean disconnected = new AtomicBoolean();
+		AtomicInteger pings = new AtomicInteger();
+		QueryStatusSubscriber subscriber = new QueryStatusSubscriber() {
+			@Override
+			protected CompletionStage<?> send(QueryStatus status) {
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			protected void close() {
+			}
+
+			@Override
+			protected CompletionStage<?> ping() {
+				pings.incrementAndGet();
+				return CompletableFuture.completedFuture(null);
+			}
+
+			@Override
+			protected boolean disconnected() {
+				return disconnected.get();
+			}
+		};
+
+		assertTrue(tracker.subscribe(status(PicSureStatus.PENDING), subscriber, poll(PicSureStatus.PENDING)));
+		tracker.heartbeat();
+		assertEquals(1, pings.get());
+		assertEquals(1, tracker.subscribers());
+
+		disconnected.set(true);
+		tracker.heartbeat();
+		assertEquals(1, pings.get());
+		assertEquals(0, tracker.subscribers());
+	}
+}
@@ -0,0 +1,139 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.TestManagedExecutor;
+import edu.harvard.dbmi.avillach.data.entity.Query;
+import edu.harvard.dbmi.avillach.data.repository.QueryRepository;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+
+public class QueryWriteBehindTest {
+
+	private QueryRepository queryRepo = mock(QueryRepository.class);
+
+	@Test
+	public void testChangesAreReadBeforeTheyAreWrittenAndWrittenOnce() {
+		QueryWriteBehind writer = new QueryWriteBehind(queryRepo, true);
+		Query query = new Query();
+		query.setStatus(PicSureStatus.QUEUED);
+
+		writer.persist(query);
+		assertNotNull(query.getUuid());
+		query.setStatus(PicSureStatus.AVAILABLE);
+		writer.merge(query);
+
+		Query read = writer.getById(query.getUuid());
+		assertNotSame("callers are given a copy they can change", query, read);
+		assertEquals(PicSureStatus.AVAILABLE, read.getStatus());
+		read.setStatus(PicSureStatus.ERROR);
+		assertEquals(PicSureStatus.AVAILABLE, writer.getById(query.getUuid()).getStatus());
+		verify(queryRepo, never()).getById(any());
+		verify(queryRepo, never()).writeAll(anyCollection(), anyCollection());
+
+		writer.flush();
+		verify(queryRepo).writeAll(List.of(query), Collections.emptyList());
+		assertEquals(0, writer.waiting());
+
+		writer.getById(query.getUuid());
+		verify(queryRepo).getById(query.getUuid());
+	}
+
+	@Test
+	public void testFailedWritesAreRetried() {
+		QueryWriteBehind writer = new QueryWriteBehind(queryRepo, true);
+		Query query = new Query();
+		// the batch, and then the query on its own
+		doThrow(new RuntimeException("database down")).doThrow(new RuntimeException("database down")).doNothing()
+				.when(queryRepo).writeAll(anyCollection(), anyCollection());
+
+		writer.persist(query);
+		writer.flush();
+		assertEquals(1, writer.waiting());
+		assertEquals(query, writer.getById(query.getUuid()));
+
+		writer.flush();
+		verify(queryRepo, times(3)).writeAll(List.of(query), Collections.emptyList());
+		assertEquals(0, writer.waiting());
+	}
+
+	@Test
+	public void testOneBadQueryDoesNotHoldBackTheOthers() {
+		QueryWriteBehind writer = new QueryWriteBehind(queryRepo, true);
+		Query good = new Query();
+		Query bad = new Query();
+		doAnswer(invocation -> {
+			if (invocation.<Collection<Query>>getArgument(0).contains(bad)) {
+				throw new RuntimeException("constraint violation");
+			}
+			return null;
+		}).when(queryRepo).writeAll(anyCollection(), anyCollection());
+
+		writer.persist(good);
+		writer.persist(bad);
+		writer.flush();
+
+		verify(queryRepo).writeAll(List.of(good), Collections.emptyList());
+		assertEquals(1, writer.waiting());
+		assertEquals(bad, writer.getById(bad.getUuid()));
+	}
+
+	@Test
+	public void testQueriesThatKeepFailingAreDropped() {
+		QueryWriteBehind writer = new QueryWriteBehind(queryRepo, true);
+		Query query = new Query();
+		doThrow(new RuntimeException("constraint violation")).when(queryRepo).writeAll(anyCollection(), anyCollection());
+
+		writer.persist(query);
+		int attempts = Integer.getInteger("picsure.query.writeBehind.maxAttempts", 5);
+		for (int i = 1; i < attempts; i++) {
+			writer.flush();
+			assertEquals(1, writer.waiting());
+		}
+		writer.flush();
+		assertEquals(0, writer.waiting());
+	}
+
+	@Test
+	public void testTooManyWaitingAreFlushedOffTheCallersThread() {
+		QueryWriteBehind writer = new QueryWriteBehind(queryRepo, true);
+		writer.scheduler = new TestManagedExecutor();
+		AtomicReference<String> writtenOn = new AtomicReference<>();
+		doAnswer(invocation -> {
+			writtenOn.set(Thread.currentThread().getName());
+			return null;
+		}).when(queryRepo).writeAll(anyCollection(), anyCollection());
+
+		int maxPending = Integer.getInteger("picsure.query.writeBehind.maxPending", 1000);
+		for (int i = 0; i < maxPending; i++) {
+			writer.persist(new Query());
+		}
+
+		verify(queryRepo, timeout(1000)).writeAll(anyCollection(), anyCollection());
+		assertEquals("picsure-test-managed", writtenOn.get());
+	}
+
+	@Test
+	public void testSynchronousWritesGoStraightToTheRepository() {
+		QueryWriteBehind writer = new QueryWriteBehind(queryRepo, false);
+		Query query = new Query();
+
+		writer.persist(query);
+		writer.merge(query);
+
+		verify(queryRepo).persist(query);
+		verify(queryRepo).merge(query);
+		assertEquals(0, writer.waiting());
+	}
+}
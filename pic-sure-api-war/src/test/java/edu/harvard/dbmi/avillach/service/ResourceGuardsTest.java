@@ -0,0 +1,249 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.util.Bulkhead;
+import edu.harvard.dbmi.avillach.util.CircuitBreaker;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+public class ResourceGuardsTest {
+
+	private ResourceGuards guards = new ResourceGuards();
+
+	private Resource resource(String metadata) {
+		Resource resource = new Resource();
+		resource.setUuid(UUID.randomUUID());
+		resource.setName("testResource");
+		resource.setMetadata(metadata);
+		return resource;
+	}
+
+	private String failingCall() {
+		throw new ResourceInterfaceException("resource down");
+	}
+
+	@Test
+	public void testCircuitOpensAfterConsecutiveFailures() {
+		Resource resource = resource("{\"circuitBreaker\":{\"failureThreshold\":2,\"openMs\":60000}}");
+		for (int i = 0; i < 2; i++) {
+			try {
+				guards.call(resource, this::failingCall);
+				fail();
+			} catch (ResourceInterfaceException e) {
+				assertEquals("resource down", e.getMessage());
+			}
+		}
+		assertTrue(guards.anyOpen());
+
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			guards.call(resource, calls::incrementAndGet);
+			fail("an open circuit should fail fast");
+		} catch (ResourceInterfaceException e) {
+			assertTrue(e.getMessage().contains("unavailable"));
+		}
+		assertEquals(0, calls.get());
+	}
+
+	@Test
+	public void testHalfOpenProbeClosesCircuit() throws InterruptedException {
+		Resource resource = resource("{\"circuitBreaker\":{\"failureThreshold\":1,\"openMs\":10}}");
+		try {
+			guards.call(resource, this::failingCall);
+			fail();
+		} catch (ResourceInterfaceException e) {
+		}
+		Thread.sleep(20);
+		assertEquals("ok", guards.call(resource, () -> "ok"));
+		assertFalse(guards.anyOpen());
+	}
+
+	@Test
+	public void testClientErrorsDoNotOpenCircuit() {
+		Resource resource = resource("{\"circuitBreaker\":{\"failureThreshold\":1}}");
+		try {
+			guards.call(resource, () -> {
+				throw new ProtocolException("bad request");
+			});
+			fail();
+		} catch (ProtocolException e) {
+		}
+		assertFalse(guards.anyOpen());
+	}
+
+	@Test
+	public void testResourceClientErrorsDoNotOpenCircuit() {
+		Resource resource = resource("{\"circuitBreaker\":{\"failureThreshold\":1}}");
+		ResourceInterfaceException badRequest = new ResourceInterfaceException("http://resource 400 Bad Request");
+		badRequest.setResponseStatus(400);
+		try {
+			guards.call(resource, () -> {
+				throw badRequest;
+			});
+			fail();
+		} catch (ResourceInterfaceException e) {
+		}
+		assertFalse(guards.anyOpen());
+
+		ResourceInterfaceException serverError = new ResourceInterfaceException("http://resource 503 Service Unavailable");
+		serverError.setResponseStatus(503);
+		try {
+			guards.call(resource, () -> {
+				throw serverError;
+			});
+			fail();
+		} catch (ResourceInterfaceException e) {
+		}
+		assertTrue(guards.anyOpen());
+	}
+
+	@Test
+	public void testAsyncCallsDoNotQueue() {
+		Resource resource = resource("{\"bulkhead\":{\"maxConcurrent\":1,\"maxQueue\":10,\"queueTimeoutMs\":60000}}");
+		CompletableFuture<String> inFlight = new CompletableFuture<>();
+		guards.callAsync(resource, () -> inFlight);
+
+		long start = System.currentTimeMillis();
+		try {
+			guards.callAsync(resource, () -> CompletableFuture.completedFuture("second"));
+			fail("the bulkhead should be full");
+		} catch (ResourceInterfaceException e) {
+			assertTrue(e.getMessage().contains("busy"));
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		inFlight.complete("first");
+	}
+
+	@Test
+	public void testAsyncCallTimesOut() {
+		Resource resource = resource("{\"circuitBreaker\":{\"failureThreshold\":1},\"bulkhead\":{\"maxConcurrent\":1,\"callTimeoutMs\":20}}");
+		CompletableFuture<String> inFlight = new CompletableFuture<>();
+		CompletableFuture<String> guarded = guards.callAsync(resource, () -> inFlight);
+		try {
+			guarded.join();
+			fail("the call should have timed out");
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof ResourceInterfaceException);
+			assertTrue(e.getCause().getMessage().contains("did not respond"));
+		}
+		assertTrue(inFlight.isCancelled());
+		assertTrue(guards.anyOpen());
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> resourceStatus = (Map<String, Object>) guards.status().get("testResource");
+		assertEquals(0, resourceStatus.get("activeCalls"));
+	}
+
+	@Test
+	public void testBulkheadRejectsWhenFull() {
+		Resource resource = resource("{\"bulkhead\":{\"maxConcurrent\":1,\"maxQueue\":0}}");
+		CompletableFuture<String> inFlight = new CompletableFuture<>();
+		CompletableFuture<String> guarded = guards.callAsync(resource, () -> inFlight);
+		try {
+			guards.call(resource, () -> "second");
+			fail("the bulkhead should be full");
+		} catch (ResourceInterfaceException e) {
+			assertTrue(e.getMessage().contains("busy"));
+		}
+
+		inFlight.complete("first");
+		assertEquals("first", guarded.join());
+		assertEquals("second", guards.call(resource, () -> "second"));
+	}
+
+	@Test
+	public void testStreamedBodyHoldsTheSlotUntilSent() throws IOException {
+		Resource resource = resource("{\"bulkhead\":{\"maxConcurrent\":1,\"maxQueue\":0}}");
+		StreamingOutput body = output -> output.write("result".getBytes());
+		Response response = guards.callAsync(resource, () -> CompletableFuture.completedFuture(Response.ok(body).header("queryMetadata", "42").build())).join();
+		assertEquals("42", response.getHeaderString("queryMetadata"));
+		try {
+			guards.call(resource, () -> "second");
+			fail("the slot should be held until the body is sent");
+		} catch (ResourceInterfaceException e) {
+			assertTrue(e.getMessage().contains("busy"));
+		}
+
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(sent);
+		assertEquals("result", sent.toString());
+		assertEquals("second", guards.call(resource, () -> "second"));
+	}
+
+	@Test
+	public void testUnsentBodyIsDropped() throws InterruptedException {
+		Resource resource = resource("{\"bulkhead\":{\"maxConcurrent\":1,\"maxQueue\":0,\"callTimeoutMs\":20}}");
+		AtomicInteger closed = new AtomicInteger();
+		class ClosableBody implements StreamingOutput, Closeable {
+			@Override
+			public void write(OutputStream output) {
+			}
+
+			@Override
+			public void close() {
+				closed.incrementAndGet();
+			}
+		}
+		Response response = guards.callAsync(resource, () -> CompletableFuture.completedFuture(Response.ok(new ClosableBody()).build())).join();
+
+		for (int i = 0; i < 100 && closed.get() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, closed.get());
+		assertEquals("second", guards.call(resource, () -> "second"));
+		try {
+			((StreamingOutput) response.getEntity()).write(new ByteArrayOutputStream());
+			fail("a dropped body cannot be sent");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("not sent"));
+		}
+	}
+
+	@Test
+	public void testHedgedCallsAreHandedTheBulkhead() {
+		Resource resource = resource("{\"bulkhead\":{\"maxConcurrent\":1,\"maxQueue\":0}}");
+		CompletableFuture<String> inFlight = new CompletableFuture<>();
+		Bulkhead[] handed = new Bulkhead[1];
+		CompletableFuture<String> guarded = guards.callHedgedAsync(resource, bulkhead -> {
+			handed[0] = bulkhead;
+			return inFlight;
+		});
+		assertFalse("a hedge finds no free slot", handed[0].tryAcquireNow());
+
+		inFlight.complete("first");
+		assertEquals("first", guarded.join());
+		assertTrue(handed[0].tryAcquireNow());
+		handed[0].release();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testStatusReportsEachResource() {
+		Resource resource = resource(null);
+		guards.call(resource, () -> "ok");
+		Map<String, Object> resourceStatus = (Map<String, Object>) guards.status().get("testResource");
+		assertEquals(CircuitBreaker.State.CLOSED, resourceStatus.get("circuit"));
+		assertEquals(0, resourceStatus.get("activeCalls"));
+		assertEquals(resource.getUuid(), resourceStatus.get("uuid"));
+	}
+}
@@ -0,0 +1,89 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.util.AsyncHttpClientUtil;
+
+public class ResourceRegistryTest {
+
+	private ResourceRepository resourceRepo = mock(ResourceRepository.class);
+
+	private ResourceRegistry registry = new ResourceRegistry(resourceRepo);
+
+	private Resource resource(String path) {
+		Resource resource = new Resource().setName("testResource").setResourceRSPath(path).setToken("RESOURCE_TOKEN");
+		resource.setUuid(UUID.randomUUID());
+		return resource;
+	}
+
+	@Test
+	public void testResourcesAreServedFromTheSnapshot() {
+		Resource resource = resource("http://resource-a/pic-sure");
+		when(resourceRepo.list()).thenReturn(List.of(resource));
+
+		registry.start();
+		for (int i = 0; i < 3; i++) {
+			assertSame(resource, registry.getById(resource.getUuid()));
+		}
+
+		assertEquals(List.of(resource), registry.list());
+		verify(resourceRepo, times(1)).list();
+		verify(resourceRepo, never()).getById(any());
+	}
+
+	@Test
+	public void testReloadReplacesTheSnapshot() {
+		Resource removed = resource("http://resource-a/pic-sure");
+		Resource added = resource("http://resource-b/pic-sure");
+		when(resourceRepo.list()).thenReturn(List.of(removed));
+		registry.start();
+
+		when(resourceRepo.list()).thenReturn(List.of(added));
+		registry.reload();
+
+		assertSame(added, registry.getById(added.getUuid()));
+		assertNull(registry.getById(removed.getUuid()));
+		assertEquals(List.of(added), registry.list());
+	}
+
+	@Test
+	public void testResourcesMissingFromTheSnapshotAreLookedUp() {
+		Resource resource = resource("http://resource-a/pic-sure");
+		when(resourceRepo.list()).thenReturn(List.of());
+		when(resourceRepo.getById(resource.getUuid())).thenReturn(resource);
+		registry.start();
+
+		assertSame(resource, registry.getById(resource.getUuid()));
+		assertSame(resource, registry.getById(resource.getUuid()));
+
+		verify(resourceRepo, times(1)).getById(resource.getUuid());
+	}
+
+	@Test
+	public void testHttp2FollowsTheMetadata() {
+		Resource resource = resource("http://hpds.example.org:8080/PIC-SURE/");
+		resource.setMetadata("{\"http2\":true}");
+		Resource other = resource("http://hpds.example.org:8080/OTHER/");
+		when(resourceRepo.list()).thenReturn(List.of(resource, other));
+		registry.start();
+		assertTrue(AsyncHttpClientUtil.isHttp2("http://hpds.example.org:8080/PIC-SURE/query/sync"));
+
+		Resource reconfigured = resource("http://hpds.example.org:8080/PIC-SURE/");
+		when(resourceRepo.list()).thenReturn(List.of(reconfigured, other));
+		registry.reload();
+		assertFalse(AsyncHttpClientUtil.isHttp2("http://hpds.example.org:8080/PIC-SURE/query/sync"));
+	}
+}
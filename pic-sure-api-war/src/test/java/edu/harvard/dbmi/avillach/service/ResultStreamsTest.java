@@ -0,0 +1,37 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+
+public class ResultStreamsTest {
+
+	private ResultStreams resultStreams = new ResultStreams(runnable -> {
+		Thread thread = new Thread(runnable, "picsure-test-stream");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Test
+	public void testResultsAreSentOnTheirOwnThreads() throws Exception {
+		CompletableFuture<String> sentOn = CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), resultStreams);
+		assertEquals("picsure-test-stream", sentOn.get(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testResultsAreRefusedOnceStopped() {
+		resultStreams.stop();
+		try {
+			resultStreams.execute(() -> {});
+			fail("Results should not be sent once the application is undeployed");
+		} catch (ApplicationException e) {
+			assertEquals(503, e.getResponse().getStatus());
+		}
+	}
+}
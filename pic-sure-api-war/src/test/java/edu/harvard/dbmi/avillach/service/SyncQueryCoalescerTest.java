@@ -0,0 +1,99 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.TestManagedExecutor;
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+
+public class SyncQueryCoalescerTest {
+
+	private SyncQueryCoalescer coalescer = new SyncQueryCoalescer(new TestManagedExecutor());
+
+	private Resource resource = resource(null);
+
+	private Resource resource(String metadata) {
+		Resource resource = new Resource().setName("testResource").setResourceRSPath("http://resource/pic-sure");
+		resource.setUuid(UUID.randomUUID());
+		resource.setMetadata(metadata);
+		return resource;
+	}
+
+	private QueryRequest request(String credential) {
+		QueryRequest request = new QueryRequest();
+		request.setResourceUUID(resource.getUuid());
+		request.getResourceCredentials().put("credential", credential);
+		request.setQuery(Map.of("expectedResultType", "COUNT"));
+		return request;
+	}
+
+	private Response count(String count) {
+		StreamingOutput body = output -> output.write(count.getBytes(StandardCharsets.UTF_8));
+		return Response.ok(body).build();
+	}
+
+	@Test
+	public void testAsyncQueriesInFlightShareOneCall() throws Exception {
+		CompletableFuture<Response> upstream = new CompletableFuture<>();
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<Response> first = coalescer.callAsync(resource, request("a"), () -> {
+			calls.incrementAndGet();
+			return upstream;
+		});
+		CompletableFuture<Response> second = coalescer.callAsync(resource, request("a"), () -> {
+			calls.incrementAndGet();
+			return CompletableFuture.completedFuture(count("not shared"));
+		});
+		upstream.complete(count("42"));
+
+		assertArrayEquals("42".getBytes(StandardCharsets.UTF_8), (byte[]) first.get(1, TimeUnit.SECONDS).getEntity());
+		assertArrayEquals("42".getBytes(StandardCharsets.UTF_8), (byte[]) second.get(1, TimeUnit.SECONDS).getEntity());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testResultsAreNotReadOnTheThreadCompletingTheCall() throws Exception {
+		AtomicReference<String> readOn = new AtomicReference<>();
+		StreamingOutput body = output -> {
+			readOn.set(Thread.currentThread().getName());
+			output.write("42".getBytes(StandardCharsets.UTF_8));
+		};
+		CompletableFuture<Response> upstream = new CompletableFuture<>();
+		CompletableFuture<Response> result = coalescer.callAsync(resource, request("a"), () -> upstream);
+		upstream.complete(Response.ok(body).build());
+
+		assertArrayEquals("42".getBytes(StandardCharsets.UTF_8), (byte[]) result.get(1, TimeUnit.SECONDS).getEntity());
+		assertEquals("picsure-test-managed", readOn.get());
+	}
+
+	@Test
+	public void testQueriesAreOnlySharedWithinTheSameScope() {
+		QueryRequest dataframe = request("a");
+		dataframe.setQuery(Map.of("expectedResultType", "DATAFRAME"));
+		Resource optedOut = resource("{\"coalesceQueries\": false}");
+
+		assertNotNull(coalescer.key(resource, request("a")));
+		assertEquals(coalescer.key(resource, request("a")), coalescer.key(resource, request("a")));
+		assertNotEquals(coalescer.key(resource, request("a")), coalescer.key(resource, request("b")));
+		assertNotEquals(coalescer.key(resource, request("a")), coalescer.key(resource(null), request("a")));
+		assertNull(coalescer.key(resource, dataframe));
+		assertNull(coalescer.key(optedOut, request("a")));
+	}
+}
@@ -0,0 +1,136 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.data.entity.Resource;
+import edu.harvard.dbmi.avillach.domain.QueryRequest;
+
+public class SyncResultCacheTest {
+
+	private SyncResultCache cache = new SyncResultCache();
+
+	private Resource resource(String metadata) {
+		Resource resource = new Resource().setName("testResource").setResourceRSPath("http://resource/pic-sure");
+		resource.setUuid(UUID.randomUUID());
+		resource.setMetadata(metadata);
+		return resource;
+	}
+
+	private QueryRequest request(Object query) {
+		QueryRequest request = new QueryRequest();
+		request.setQuery(query);
+		return request;
+	}
+
+	@Test
+	public void testFiltersInAnyOrderShareAKey() {
+		Resource resource = resource("{\"resultCache\": {\"ttlSeconds\": 60}}");
+		String key = cache.key(resource, request(Map.of(
+				"expectedResultType", "COUNT",
+				"categoryFilters", Map.of("\\sex\\", List.of("male", "female")),
+				"requiredFields", List.of("\\a\\", "\\b\\"))));
+		String reordered = cache.key(resource, request(Map.of(
+				"requiredFields", List.of("\\b\\", "\\a\\"),
+				"categoryFilters", Map.of("\\sex\\", List.of("female", "male")),
+				"expectedResultType", "COUNT")));
+		String other = cache.key(resource, request(Map.of(
+				"expectedResultType", "COUNT",
+				"requiredFields", List.of("\\a\\"))));
+
+		assertNotNull(key);
+		assertEquals(key, reordered);
+		assertNotEquals(key, other);
+	}
+
+	@Test
+	public void testOtherArraysKeepTheirOrder() {
+		Resource resource = resource("{\"resultCache\": {\"ttlSeconds\": 60}}");
+		String key = cache.key(resource, request(Map.of(
+				"expectedResultType", "COUNT",
+				"variantInfoFilters", List.of(Map.of("categoryVariantInfoFilters", Map.of("Gene_with_variant", List.of("CHD8", "BRCA1")))),
+				"bins", List.of(0, 10, 20))));
+		String valuesReordered = cache.key(resource, request(Map.of(
+				"expectedResultType", "COUNT",
+				"variantInfoFilters", List.of(Map.of("categoryVariantInfoFilters", Map.of("Gene_with_variant", List.of("BRCA1", "CHD8")))),
+				"bins", List.of(0, 10, 20))));
+		String positionsReordered = cache.key(resource, request(Map.of(
+				"expectedResultType", "COUNT",
+				"variantInfoFilters", List.of(Map.of("categoryVariantInfoFilters", Map.of("Gene_with_variant", List.of("CHD8", "BRCA1")))),
+				"bins", List.of(20, 10, 0))));
+
+		assertEquals(key, valuesReordered);
+		assertNotEquals(key, positionsReordered);
+	}
+
+	@Test
+	public void testOnlyCountsOfResourcesThatOptedInAreCached() {
+		Map<String, Object> count = Map.of("expectedResultType", "CROSS_COUNT");
+
+		assertNull(cache.key(resource(null), request(count)));
+		assertNull(cache.key(resource("{\"resultCache\": {\"ttlSeconds\": 0}}"), request(count)));
+		assertNull(cache.key(resource("{\"resultCache\": {\"ttlSeconds\": 60}}"), request(Map.of("expectedResultType", "DATAFRAME"))));
+		assertNull(cache.key(resource("{\"resultCache\": {\"ttlSeconds\": 60}}"), request("not a json query")));
+		assertNotNull(cache.key(resource("{\"resultCache\": {\"ttlSeconds\": 60}}"), request(count)));
+	}
+
+	private byte[] send(Response response) throws IOException {
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(client);
+		return client.toByteArray();
+	}
+
+	@Test
+	public void testResultsAreReplayedUntilInvalidated() throws IOException {
+		Resource resource = resource("{\"resultCache\": {\"ttlSeconds\": 60}}");
+		String key = cache.key(resource, request(Map.of("expectedResultType", "COUNT")));
+		StreamingOutput body = output -> output.write("42".getBytes(StandardCharsets.UTF_8));
+		Response response = Response.ok(body).type("text/plain").header("queryMetadata", "result-1").build();
+		assertNull(cache.get(key));
+
+		Response sent = cache.put(key, resource, response);
+		// cached once it has been sent
+		assertNull(cache.get(key));
+		assertArrayEquals("42".getBytes(StandardCharsets.UTF_8), send(sent));
+
+		Response replayed = cache.get(key);
+		assertArrayEquals("42".getBytes(StandardCharsets.UTF_8), (byte[]) replayed.getEntity());
+		assertEquals("result-1", replayed.getHeaders().getFirst("queryMetadata"));
+		assertEquals("text/plain", replayed.getMediaType().toString());
+
+		cache.invalidate(resource.getUuid());
+		assertNull(cache.get(key));
+	}
+
+	@Test
+	public void testLargeResultsAreSentWithoutBeingKept() throws IOException {
+		Resource resource = resource("{\"resultCache\": {\"ttlSeconds\": 60}}");
+		String key = cache.key(resource, request(Map.of("expectedResultType", "COUNT")));
+		byte[] chunk = new byte[1024];
+		StreamingOutput body = output -> {
+			for (int i = 0; i < 100; i++) {
+				output.write(chunk);
+			}
+		};
+
+		Response sent = cache.put(key, resource, Response.ok(body).build());
+
+		assertEquals(100 * chunk.length, send(sent).length);
+		assertNull(cache.get(key));
+	}
+}
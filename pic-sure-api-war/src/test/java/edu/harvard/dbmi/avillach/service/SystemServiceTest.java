@@ -17,6 +17,7 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import edu.harvard.dbmi.avillach.PicSureWarInit;
 import edu.harvard.dbmi.avillach.data.entity.Resource;
 import edu.harvard.dbmi.avillach.data.repository.ResourceRepository;
+import edu.harvard.dbmi.avillach.util.Metrics;
 
 public class SystemServiceTest {
 
@@ -46,6 +47,7 @@ public class SystemServiceTest {
 	private SystemService basicService() {
 		SystemService service = new SystemService();
 		service.picSureWarInit = mock(PicSureWarInit.class);
+		service.resourceGuards = new ResourceGuards();
 		when(service.picSureWarInit.getToken_introspection_token()).thenReturn("TOKEN");
 		when(service.picSureWarInit.getToken_introspection_url()).thenReturn(
 				"http://localhost:" + port + "/introspection_endpoint");
@@ -187,4 +189,16 @@ public class SystemServiceTest {
 		assertEquals(status, SystemService.ONE_OR_MORE_COMPONENTS_DEGRADED);
 		verify(service.resourceRepo, atLeast(2)).list();
 	}
+
+	@Test
+	public void testMetricsAreExposed() {
+		Metrics.setEnabled(true);
+		try {
+			Metrics.increment("system.test.counter");
+			assertEquals(1L, new SystemService().metrics().get("system.test.counter"));
+		} finally {
+			Metrics.reset();
+			Metrics.setEnabled(Boolean.getBoolean(Metrics.ENABLED_PROPERTY));
+		}
+	}
 }
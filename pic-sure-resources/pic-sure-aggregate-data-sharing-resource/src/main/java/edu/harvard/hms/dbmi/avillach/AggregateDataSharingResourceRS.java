@@ -32,6 +32,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import edu.harvard.dbmi.avillach.domain.*;
 import edu.harvard.dbmi.avillach.service.IResourceRS;
+import edu.harvard.dbmi.avillach.util.RetryPolicy;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 
@@ -125,7 +126,8 @@ public class AggregateDataSharingResourceRS implements IResourceRS {
 
 			String payload = objectMapper.writeValueAsString(chainRequest);
 
-			HttpResponse response = retrievePostResponse(composeURL(properties.getTargetPicsureUrl(), pathName), headers, payload);
+			HttpResponse response = RetryPolicy.IDEMPOTENT.execute("aggregate.info",
+					() -> retrievePostResponse(composeURL(properties.getTargetPicsureUrl(), pathName), headers, payload));
 			if (response.getStatusLine().getStatusCode() != 200) {
 				logger.error("{}{} did not return a 200: {} {} ", properties.getTargetPicsureUrl(), pathName,
 						response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
@@ -174,7 +176,8 @@ public class AggregateDataSharingResourceRS implements IResourceRS {
 
 			String payload = objectMapper.writeValueAsString(chainRequest);
 
-			HttpResponse response = retrievePostResponse(composeURL(properties.getTargetPicsureUrl(), pathName), headers, payload);
+			HttpResponse response = RetryPolicy.IDEMPOTENT.execute("aggregate.search",
+					() -> retrievePostResponse(composeURL(properties.getTargetPicsureUrl(), pathName), headers, payload));
 			if (response.getStatusLine().getStatusCode() != 200) {
 				logger.error("{}{} did not return a 200: {} {} ", properties.getTargetPicsureUrl(), pathName,
 						response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
@@ -302,7 +305,8 @@ public class AggregateDataSharingResourceRS implements IResourceRS {
 			String targetPicsureUrl = properties.getTargetPicsureUrl();
 			String queryString = json.writeValueAsString(queryRequest);
 			String composedURL = composeURL(targetPicsureUrl, pathName);
-			HttpResponse response = retrievePostResponse(composeURL(properties.getTargetPicsureUrl(), pathName), headers, queryString);
+			HttpResponse response = RetryPolicy.IDEMPOTENT.execute("aggregate.queryFormat",
+					() -> retrievePostResponse(composeURL(properties.getTargetPicsureUrl(), pathName), headers, queryString));
 			if (response.getStatusLine().getStatusCode() != 200) {
 				logger.error("Not 200 status!");
 				logger.error(
@@ -1,5 +1,7 @@
 package edu.harvard.hms.dbmi.avillach;
 
+import edu.harvard.dbmi.avillach.util.HttpClientRegistry;
+
 import javax.inject.Inject;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
@@ -24,6 +26,6 @@ public class JAXRSConfiguration extends Application implements ServletContextLis
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
-        // NOOP.
+        HttpClientRegistry.shutdown();
     }
 }
@@ -1,5 +1,7 @@
 package edu.harvard.hms.dbmi.avillach;
 
+import edu.harvard.dbmi.avillach.util.HttpClientRegistry;
+
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -19,7 +21,7 @@ public class JAXRSConfiguration extends Application implements ServletContextLis
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
-        // NOOP.
+        HttpClientRegistry.shutdown();
     }
 
 	
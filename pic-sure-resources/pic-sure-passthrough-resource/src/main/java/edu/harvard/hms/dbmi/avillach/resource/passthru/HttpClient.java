@@ -4,10 +4,8 @@ import javax.enterprise.context.ApplicationScoped;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+import edu.harvard.dbmi.avillach.util.RetryPolicy;
 
 /**
  * Wrapper class for HttpClientUtil in order used to support unit tests and mocking of responses.
@@ -17,10 +15,6 @@ import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
  */
 @ApplicationScoped
 public class HttpClient {
-	private static final int RETRY_LIMIT = 5;
-	
-	private static final Logger logger = LoggerFactory.getLogger(HttpClient.class);
-
 	public String composeURL(String baseURL, String pathName) {
 		return edu.harvard.dbmi.avillach.util.HttpClientUtil.composeURL(baseURL, pathName);
 	}
@@ -33,24 +27,13 @@ public class HttpClient {
 //		return edu.harvard.dbmi.avillach.util.HttpClientUtil.retrieveGetResponse(uri, headers);
 //	}
 
+	/**
+	 * Calls that only read from the target PIC-SURE are retried with backoff when it cannot be reached, see
+	 * {@link RetryPolicy#forPath(String)}.
+	 */
 	public HttpResponse retrievePostResponse(String uri, Header[] headers, String body) {
-		
-		HttpResponse response = null;
-		for(int i = 1; i <= RETRY_LIMIT && response == null; i++) {
-	         try {
-	        	 response = edu.harvard.dbmi.avillach.util.HttpClientUtil.retrievePostResponse(uri, headers, body);
-	        	 break;
-	         } catch (ResourceInterfaceException e) {
-	        	 if(i < RETRY_LIMIT ) {
-	        		 logger.warn("Failed to contact remote server.  Retrying");
-	        	 } else {
-	        		 logger.error("Failed to contact remote server.  Giving up!");
-	        		 throw e;
-	        	 }
-	         }
-       }
-		
-		return response;
+		return RetryPolicy.forPath(uri).execute("passthru.post",
+				() -> edu.harvard.dbmi.avillach.util.HttpClientUtil.retrievePostResponse(uri, headers, body));
 	}
 
 	public void throwResponseError(HttpResponse response, String baseURL) {
@@ -0,0 +1,196 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.harvard.dbmi.avillach.domain.*;
+import edu.harvard.dbmi.avillach.util.Bulkhead;
+import edu.harvard.dbmi.avillach.util.HedgePolicy;
+import edu.harvard.dbmi.avillach.util.ResultStreamingOutput;
+import edu.harvard.dbmi.avillach.util.RetryPolicy;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import edu.harvard.dbmi.avillach.util.exception.NotAuthorizedException;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+
+import static edu.harvard.dbmi.avillach.util.AsyncHttpClientUtil.retrievePostResponseAsync;
+import static edu.harvard.dbmi.avillach.util.AsyncHttpClientUtil.retrievePostResponseStreamAsync;
+import static edu.harvard.dbmi.avillach.util.HttpClientUtil.*;
+
+/**
+ * Non-blocking version of {@link ResourceWebClient}.
+ *
+ * Each method validates its arguments on the calling thread, the same way ResourceWebClient does, and then returns
+ * a future that completes once the resource has answered. No thread is held while the resource is working, so
+ * long running calls such as /query/sync do not tie up the container's worker threads.
+ *
+ * Info and status calls are hedged with {@link HedgePolicy#IDEMPOTENT}: a call slower than the resource usually is
+ * gets a second copy sent, and the slower of the two is cancelled. Callers that limit the calls to a resource pass
+ * their bulkhead along, so that the second copy needs a slot too.
+ */
+@ApplicationScoped
+public class AsyncResourceWebClient {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final static ObjectMapper json = new ObjectMapper();
+
+    public AsyncResourceWebClient() { }
+
+    public CompletableFuture<ResourceInfo> info(String rsURL, QueryRequest queryRequest){
+        return info(rsURL, queryRequest, null);
+    }
+
+    /**
+     * @param bulkhead the bulkhead this call holds a slot of, or null
+     */
+    public CompletableFuture<ResourceInfo> info(String rsURL, QueryRequest queryRequest, Bulkhead bulkhead){
+        logger.debug("Calling AsyncResourceWebClient info()");
+        if (queryRequest == null){
+            throw new ProtocolException(ProtocolException.MISSING_DATA);
+        }
+        if (queryRequest.getResourceCredentials() == null){
+            throw new NotAuthorizedException(NotAuthorizedException.MISSING_CREDENTIALS);
+        }
+        if (rsURL == null){
+            throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+        }
+        ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+        String body;
+        try {
+            body = json.writeValueAsString(queryRequest);
+        } catch (JsonProcessingException e){
+            throw new NotAuthorizedException("Unable to encode resource credentials", e);
+        }
+        return RetryPolicy.IDEMPOTENT.executeAsync("info",
+                () -> HedgePolicy.IDEMPOTENT.execute("info", rsURL, bulkhead,
+                        () -> retrievePostResponseAsync(endpoint.info(), endpoint.headers(queryRequest.getResourceCredentials()), body)))
+                .thenApply(response -> readOk(response, rsURL, ResourceInfo.class));
+    }
+
+    public CompletableFuture<SearchResults> search(String rsURL, QueryRequest searchQueryRequest){
+        logger.debug("Calling AsyncResourceWebClient search()");
+        if (searchQueryRequest == null || searchQueryRequest.getQuery() == null){
+            throw new ProtocolException(ProtocolException.MISSING_DATA);
+        }
+        if (rsURL == null){
+            throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+        }
+        if (searchQueryRequest.getResourceCredentials() == null){
+            throw new NotAuthorizedException(NotAuthorizedException.MISSING_CREDENTIALS);
+        }
+        ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+        String body;
+        try {
+            body = json.writeValueAsString(searchQueryRequest);
+        } catch (JsonProcessingException e){
+            logger.error("Unable to serialize search query");
+            throw new ProtocolException("Unable to serialize search query", e);
+        }
+        return RetryPolicy.IDEMPOTENT.executeAsync("search",
+                () -> retrievePostResponseAsync(endpoint.search(), endpoint.headers(searchQueryRequest.getResourceCredentials()), body))
+                .thenApply(response -> readOk(response, rsURL, SearchResults.class));
+    }
+
+    public CompletableFuture<QueryStatus> query(String rsURL, QueryRequest dataQueryRequest){
+        logger.debug("Calling AsyncResourceWebClient query()");
+        if (rsURL == null){
+            throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+        }
+        if (dataQueryRequest == null){
+            throw new ProtocolException(ProtocolException.MISSING_DATA);
+        }
+        if (dataQueryRequest.getResourceCredentials() == null){
+            throw new NotAuthorizedException("Missing credentials");
+        }
+        ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+        String body;
+        try {
+            body = json.writeValueAsString(dataQueryRequest);
+        } catch (JsonProcessingException e){
+            logger.error("Unable to encode data query");
+            throw new ProtocolException("Unable to encode data query", e);
+        }
+        return retrievePostResponseAsync(endpoint.query(), endpoint.headers(dataQueryRequest.getResourceCredentials()), body)
+                .thenApply(response -> readOk(response, rsURL, QueryStatus.class));
+    }
+
+    public CompletableFuture<QueryStatus> queryStatus(String rsURL, String queryId, QueryRequest queryRequest){
+        return queryStatus(rsURL, queryId, queryRequest, null);
+    }
+
+    /**
+     * @param bulkhead the bulkhead this call holds a slot of, or null
+     */
+    public CompletableFuture<QueryStatus> queryStatus(String rsURL, String queryId, QueryRequest queryRequest, Bulkhead bulkhead){
+        logger.debug("Calling AsyncResourceWebClient queryStatus()");
+        if (queryRequest == null){
+            throw new ProtocolException(ProtocolException.MISSING_DATA);
+        }
+        if (queryRequest.getResourceCredentials() == null){
+            throw new NotAuthorizedException("Missing credentials");
+        }
+        if (rsURL == null){
+            throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+        }
+        if (queryId == null){
+            throw new ProtocolException("Missing query id");
+        }
+        ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+        String body;
+        try {
+            body = json.writeValueAsString(queryRequest);
+        } catch (JsonProcessingException e){
+            logger.error("Unable to encode resource credentials");
+            throw new ProtocolException("Unable to encode resource credentials", e);
+        }
+        return RetryPolicy.IDEMPOTENT.executeAsync("queryStatus",
+                () -> HedgePolicy.IDEMPOTENT.execute("queryStatus", rsURL, bulkhead,
+                        () -> retrievePostResponseAsync(endpoint.queryStatus(queryId), endpoint.headers(queryRequest.getResourceCredentials()), body)))
+                .thenApply(response -> readOk(response, rsURL, QueryStatus.class));
+    }
+
+    /**
+     * The returned response streams the result from the resource, it is not buffered in memory.
+     */
+    public CompletableFuture<Response> querySync(String rsURL, QueryRequest queryRequest) {
+        logger.debug("Calling AsyncResourceWebClient querySync()");
+        if (queryRequest == null) {
+            throw new ProtocolException("Missing query data");
+        }
+        if (queryRequest.getResourceCredentials() == null) {
+            throw new NotAuthorizedException("Missing credentials");
+        }
+        if (rsURL == null) {
+            throw new ApplicationException("Missing resource URL");
+        }
+        ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+        String body;
+        try {
+            body = json.writeValueAsString(queryRequest);
+        } catch (JsonProcessingException e) {
+            logger.error("Unable to encode resource credentials");
+            throw new NotAuthorizedException("Unable to encode resource credentials", e);
+        }
+        return retrievePostResponseStreamAsync(endpoint.querySync(), endpoint.headers(queryRequest.getResourceCredentials()), body)
+                .thenApply(response -> {
+                    if (response.getStatusLine().getStatusCode() != 200) {
+                        logger.error("ResourceRS did not return a 200");
+                        throwResponseError(response, rsURL);
+                    }
+                    return ResultStreamingOutput.proxy(response, ResourceWebClient.QUERY_METADATA_FIELD).build();
+                });
+    }
+
+    private <T> T readOk(HttpResponse response, String rsURL, Class<T> expectedType) {
+        if (response.getStatusLine().getStatusCode() != 200) {
+            logger.error("ResourceRS did not return a 200");
+            throwResponseError(response, rsURL);
+        }
+        return readObjectFromResponse(response, expectedType);
+    }
+}
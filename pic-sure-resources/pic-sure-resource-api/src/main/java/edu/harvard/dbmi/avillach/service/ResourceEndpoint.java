@@ -0,0 +1,147 @@
+package edu.harvard.dbmi.avillach.service;
+
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static edu.harvard.dbmi.avillach.util.HttpClientUtil.composeURL;
+
+/**
+ * The URLs and request headers of a single resource, resolved once from its resourceRSPath instead of on every call.
+ *
+ * Endpoints are cached by resourceRSPath. Call {@link #invalidate(String)} when a resource is updated or removed so
+ * the next call picks up its new configuration.
+ */
+public final class ResourceEndpoint {
+
+    private static final Map<String, ResourceEndpoint> endpoints = new ConcurrentHashMap<>();
+
+    private static final Header CONTENT_TYPE_HEADER = new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+
+    /** Query ids made only of these characters can be appended to the path without escaping. */
+    private static final Pattern PLAIN_SEGMENT = Pattern.compile("[A-Za-z0-9._~-]+");
+
+    private final String baseURL;
+    private final String info;
+    private final String search;
+    private final String query;
+    private final String querySync;
+    private final String queryFormat;
+    private final String queryPrefix;
+
+    private volatile Credentials credentials;
+
+    private ResourceEndpoint(String baseURL) {
+        this.baseURL = baseURL;
+        this.info = composeURL(baseURL, "/info");
+        this.search = composeURL(baseURL, "/search");
+        this.query = composeURL(baseURL, "/query");
+        this.querySync = composeURL(baseURL, "/query/sync");
+        this.queryFormat = composeURL(baseURL, "/query/format");
+        this.queryPrefix = hasQueryOrFragment(baseURL) ? null : query + "/";
+    }
+
+    /**
+     * @return the cached endpoint for this resourceRSPath, building it on first use
+     */
+    public static ResourceEndpoint of(String rsURL) {
+        if (rsURL == null) {
+            throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
+        }
+        ResourceEndpoint endpoint = endpoints.get(rsURL);
+        return endpoint != null ? endpoint : endpoints.computeIfAbsent(rsURL, ResourceEndpoint::new);
+    }
+
+    public static void invalidate(String rsURL) {
+        if (rsURL != null) {
+            endpoints.remove(rsURL);
+        }
+    }
+
+    public static void invalidateAll() {
+        endpoints.clear();
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public String info() {
+        return info;
+    }
+
+    public String search() {
+        return search;
+    }
+
+    public String query() {
+        return query;
+    }
+
+    public String querySync() {
+        return querySync;
+    }
+
+    public String queryFormat() {
+        return queryFormat;
+    }
+
+    public String queryStatus(String queryId) {
+        return queryPath(queryId, "/status");
+    }
+
+    public String queryResult(String queryId) {
+        return queryPath(queryId, "/result");
+    }
+
+    /**
+     * @return the Authorization and Content-Type headers for the given resource credentials. The array is shared
+     * between calls with the same bearer token and must not be modified.
+     */
+    public Header[] headers(Map<String, String> resourceCredentials) {
+        String token = resourceCredentials.get(ResourceWebClient.BEARER_TOKEN_KEY);
+        Credentials current = credentials;
+        if (current == null || !Objects.equals(current.token, token)) {
+            current = new Credentials(token);
+            credentials = current;
+        }
+        return current.headers;
+    }
+
+    private String queryPath(String queryId, String suffix) {
+        if (queryPrefix != null && PLAIN_SEGMENT.matcher(queryId).matches()) {
+            return queryPrefix + queryId + suffix;
+        }
+        return composeURL(baseURL, "/query/" + queryId + suffix);
+    }
+
+    private static boolean hasQueryOrFragment(String baseURL) {
+        try {
+            URI uri = new URI(baseURL);
+            return uri.getRawQuery() != null || uri.getRawFragment() != null;
+        } catch (URISyntaxException e) {
+            throw new ApplicationException("baseURL invalid : " + baseURL, e);
+        }
+    }
+
+    private static final class Credentials {
+        private final String token;
+        private final Header[] headers;
+
+        private Credentials(String token) {
+            this.token = token;
+            this.headers = new Header[] {
+                    new BasicHeader(HttpHeaders.AUTHORIZATION, ResourceWebClient.BEARER_STRING + token),
+                    CONTENT_TYPE_HEADER
+            };
+        }
+    }
+}
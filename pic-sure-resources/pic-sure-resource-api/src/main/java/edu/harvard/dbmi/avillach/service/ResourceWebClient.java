@@ -4,6 +4,8 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.harvard.dbmi.avillach.domain.*;
+import edu.harvard.dbmi.avillach.util.ResultStreamingOutput;
+import edu.harvard.dbmi.avillach.util.RetryPolicy;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
 import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
@@ -11,17 +13,15 @@ import edu.harvard.dbmi.avillach.util.exception.NotAuthorizedException;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
-import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Map;
 
 import static edu.harvard.dbmi.avillach.util.HttpClientUtil.*;
 
@@ -57,9 +57,10 @@ public class ResourceWebClient {
                 throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
             }
             logger.debug("Calling /info at ResourceURL: {}", rsURL);
-            String pathName = "/info";
+            ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
             String body = json.writeValueAsString(queryRequest);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(queryRequest.getResourceCredentials()), body);
+            HttpResponse resourcesResponse = RetryPolicy.IDEMPOTENT.execute("info",
+                    () -> retrievePostResponse(endpoint.info(), endpoint.headers(queryRequest.getResourceCredentials()), body));
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
@@ -80,7 +81,9 @@ public class ResourceWebClient {
             uriBuilder.addParameter("query", query);
             uriBuilder.addParameter("page", page.toString());
             uriBuilder.addParameter("size", size.toString());
-            HttpResponse resourcesResponse = retrieveGetResponse(uriBuilder.build().toString(), createHeaders(queryRequest.getResourceCredentials()));
+            String uri = uriBuilder.build().toString();
+            HttpResponse resourcesResponse = RetryPolicy.IDEMPOTENT.execute("searchConceptValues",
+                    () -> retrieveGetResponse(uri, ResourceEndpoint.of(rsURL).headers(queryRequest.getResourceCredentials())));
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
@@ -104,10 +107,11 @@ public class ResourceWebClient {
             if (searchQueryRequest.getResourceCredentials() == null){
                 throw new NotAuthorizedException(NotAuthorizedException.MISSING_CREDENTIALS);
             }
-            String pathName = "/search";
+            ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
             String body = json.writeValueAsString(searchQueryRequest);
 
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(searchQueryRequest.getResourceCredentials()), body);
+            HttpResponse resourcesResponse = RetryPolicy.IDEMPOTENT.execute("search",
+                    () -> retrievePostResponse(endpoint.search(), endpoint.headers(searchQueryRequest.getResourceCredentials()), body));
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
@@ -132,9 +136,9 @@ public class ResourceWebClient {
             if (dataQueryRequest.getResourceCredentials() == null){
                 throw new NotAuthorizedException("Missing credentials");
             }
-            String pathName = "/query";
+            ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
             String body = json.writeValueAsString(dataQueryRequest);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(dataQueryRequest.getResourceCredentials()), body);
+            HttpResponse resourcesResponse = retrievePostResponse(endpoint.query(), endpoint.headers(dataQueryRequest.getResourceCredentials()), body);
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
@@ -161,11 +165,12 @@ public class ResourceWebClient {
             if (queryId == null){
                 throw new ProtocolException("Missing query id");
             }
-            String pathName = "/query/" + queryId + "/status";
+            ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
             String body = json.writeValueAsString(queryRequest);
-            logger.debug(composeURL(rsURL, pathName));
+            logger.debug(endpoint.queryStatus(queryId));
             logger.debug(body);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(queryRequest.getResourceCredentials()), body);
+            HttpResponse resourcesResponse = RetryPolicy.IDEMPOTENT.execute("queryStatus",
+                    () -> retrievePostResponse(endpoint.queryStatus(queryId), endpoint.headers(queryRequest.getResourceCredentials()), body));
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
@@ -178,6 +183,14 @@ public class ResourceWebClient {
     }
 
     public Response queryResult(String rsURL, String queryId, QueryRequest queryRequest){
+        return queryResult(rsURL, queryId, queryRequest, false);
+    }
+
+    /**
+     * @param passThroughGzip true if the caller accepts a gzip encoded result, in which case a result the resource
+     *                        compressed is streamed on still compressed
+     */
+    public Response queryResult(String rsURL, String queryId, QueryRequest queryRequest, boolean passThroughGzip){
         logger.debug("Calling ResourceWebClient query()");
         try {
             if (queryRequest == null){
@@ -192,19 +205,20 @@ public class ResourceWebClient {
             if (queryId == null){
                 throw new ProtocolException(ProtocolException.MISSING_QUERY_ID);
             }
-            String pathName = "/query/" + queryId + "/result";
+            ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
             String body = json.writeValueAsString(queryRequest);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(queryRequest.getResourceCredentials()), body);
+            Header[] headers = endpoint.headers(queryRequest.getResourceCredentials());
+            HttpResponse resourcesResponse = RetryPolicy.IDEMPOTENT.execute("queryResult", () -> passThroughGzip
+                    ? retrievePostResponseEncoded(endpoint.queryResult(queryId), headers, body)
+                    : retrievePostResponse(endpoint.queryResult(queryId), headers, body));
             if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
                 logger.error("ResourceRS did not return a 200");
                 throwResponseError(resourcesResponse, rsURL);
             }
-            return Response.ok(resourcesResponse.getEntity().getContent()).build();
+            return ResultStreamingOutput.proxy(resourcesResponse).build();
         } catch (JsonProcessingException e){
             logger.error("Unable to encode resource credentials");
             throw new NotAuthorizedException("Unable to encode resource credentials", e);
-        } catch (IOException e){
-            throw new ResourceInterfaceException("Error getting results", e);
         }
     }
     
@@ -221,9 +235,10 @@ public class ResourceWebClient {
             if (rsURL == null){
                 throw new ApplicationException(ApplicationException.MISSING_RESOURCE_PATH);
             }
-            String pathName = "/query/format";
+            ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
             String body = json.writeValueAsString(queryRequest);
-            HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(queryRequest.getResourceCredentials()), body);
+            HttpResponse resourcesResponse = RetryPolicy.IDEMPOTENT.execute("queryFormat",
+                    () -> retrievePostResponse(endpoint.queryFormat(), endpoint.headers(queryRequest.getResourceCredentials()), body));
             int status = resourcesResponse.getStatusLine().getStatusCode();
             if (status != 200) {
                 logger.error("Query format request did not return a 200:  " + resourcesResponse.getStatusLine().getStatusCode());
@@ -251,24 +266,17 @@ public class ResourceWebClient {
 				throw new ApplicationException("Missing resource URL");
 			}
 
-			String pathName = "/query/sync";
+			ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
 			String body = json.writeValueAsString(queryRequest);
-			HttpResponse resourcesResponse = retrievePostResponse(composeURL(rsURL, pathName), createHeaders(queryRequest.getResourceCredentials()), body);
+			HttpResponse resourcesResponse = retrievePostResponse(endpoint.querySync(), endpoint.headers(queryRequest.getResourceCredentials()), body);
 			if (resourcesResponse.getStatusLine().getStatusCode() != 200) {
 				throwError(resourcesResponse, rsURL);
 			}
 
-			if (resourcesResponse.containsHeader(QUERY_METADATA_FIELD)) {
-				Header metadataHeader = ((Header[]) resourcesResponse.getHeaders(QUERY_METADATA_FIELD))[0];
-				return Response.ok(resourcesResponse.getEntity().getContent())
-						.header(QUERY_METADATA_FIELD, metadataHeader.getValue()).build();
-			}
-			return Response.ok(resourcesResponse.getEntity().getContent()).build();
+			return ResultStreamingOutput.proxy(resourcesResponse, QUERY_METADATA_FIELD).build();
 		} catch (JsonProcessingException e) {
 			logger.error("Unable to encode resource credentials");
 			throw new NotAuthorizedException("Unable to encode resource credentials", e);
-		} catch (IOException e) {
-			throw new ResourceInterfaceException("Error getting results", e);
 		}
 	}
 
@@ -281,19 +289,16 @@ public class ResourceWebClient {
                 errorMessage += "/n" + responseNode.get("message").asText();
             }
         } catch (IOException e ){
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
         }
         if (response.getStatusLine().getStatusCode() == 401) {
             throw new NotAuthorizedException(errorMessage);
         }
-        throw new ResourceInterfaceException(errorMessage);
-
-    }
+        ResourceInterfaceException error = new ResourceInterfaceException(errorMessage);
+        error.setResponseStatus(response.getStatusLine().getStatusCode());
+        throw error;
 
-    private Header[] createHeaders(Map<String, String> resourceCredentials){
-        Header authorizationHeader = new BasicHeader(HttpHeaders.AUTHORIZATION, BEARER_STRING + resourceCredentials.get(BEARER_TOKEN_KEY));
-        Header contentTypeHeader = new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/json");
-        Header[] headers = {authorizationHeader, contentTypeHeader};
-        return headers;
     }
 
 }
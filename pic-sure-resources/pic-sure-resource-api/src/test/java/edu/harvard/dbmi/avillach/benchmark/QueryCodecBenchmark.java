@@ -0,0 +1,161 @@
+package edu.harvard.dbmi.avillach.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.harvard.dbmi.avillach.util.QueryCodec;
+
+/**
+ * Compares storing and reading query JSON the way Query used to, with a new GZIPOutputStream per query and reading
+ * it back line by line, with each {@link QueryCodec}. The queries are read from the query-corpus test resources, one
+ * file per shape of HPDS query with one query per line: COUNTs with a few filters, CROSS_COUNTs over tens of concept
+ * paths, and DATAFRAME exports of up to a thousand fields. Each operation encodes or decodes every query of a file.
+ * Run the main method, which prints the stored size of each file first, and compare gc.alloc.rate.norm as well as
+ * the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryCodecBenchmark {
+
+	@Param({"count", "crossCount", "dataframe"})
+	public String shape;
+
+	@Param({"gzip", "deflate", "dictionary"})
+	public String codecName;
+
+	private List<String> queries;
+	private QueryCodec codec;
+	private List<byte[]> stored;
+	private List<byte[]> legacyStored;
+
+	@Setup
+	public void setUp() throws IOException {
+		queries = corpus(shape);
+		codec = QueryCodec.forName(codecName);
+		stored = new ArrayList<>();
+		legacyStored = new ArrayList<>();
+		for (String json : queries) {
+			stored.add(codec.encode(json));
+			legacyStored.add(legacyEncode(json));
+		}
+	}
+
+	@Benchmark
+	public void legacyEncode(Blackhole blackhole) throws IOException {
+		for (String json : queries) {
+			blackhole.consume(legacyEncode(json));
+		}
+	}
+
+	@Benchmark
+	public void legacyDecode(Blackhole blackhole) throws IOException {
+		for (byte[] query : legacyStored) {
+			StringBuilder outStr = new StringBuilder();
+			try (BufferedReader bf = new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(query)), "UTF-8"))) {
+				String line;
+				while ((line = bf.readLine()) != null) {
+					outStr.append(line);
+				}
+			}
+			blackhole.consume(outStr.toString());
+		}
+	}
+
+	@Benchmark
+	public void encode(Blackhole blackhole) {
+		for (String json : queries) {
+			blackhole.consume(codec.encode(json));
+		}
+	}
+
+	@Benchmark
+	public void decode(Blackhole blackhole) {
+		for (byte[] query : stored) {
+			blackhole.consume(QueryCodec.decode(query));
+		}
+	}
+
+	private static byte[] legacyEncode(String json) throws IOException {
+		try (ByteArrayOutputStream obj = new ByteArrayOutputStream(); GZIPOutputStream gzip = new GZIPOutputStream(obj)) {
+			gzip.write(json.getBytes("UTF-8"));
+			gzip.close();
+			return obj.toByteArray();
+		}
+	}
+
+	/**
+	 * @return the queries of the corpus file for the shape, one per line
+	 */
+	private static List<String> corpus(String shape) {
+		List<String> queries = new ArrayList<>();
+		try (InputStream in = QueryCodecBenchmark.class.getResourceAsStream("/query-corpus/" + shape + ".jsonl")) {
+			if (in == null) {
+				throw new IllegalStateException("No query corpus for " + shape);
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					queries.add(line);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return queries;
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		for (String shape : new String[] {"count", "crossCount", "dataframe"}) {
+			List<String> queries = corpus(shape);
+			StringBuilder sizes = new StringBuilder(shape + ": " + queries.size() + " queries, "
+					+ queries.stream().mapToInt(String::length).sum() + " chars, legacy gzip ");
+			int legacy = 0;
+			for (String json : queries) {
+				legacy += legacyEncode(json).length;
+			}
+			sizes.append(legacy).append(" bytes");
+			for (String codecName : new String[] {"gzip", "deflate", "dictionary"}) {
+				QueryCodec codec = QueryCodec.forName(codecName);
+				sizes.append(", ").append(codecName).append(" ").append(queries.stream().mapToInt(json -> codec.encode(json).length).sum()).append(" bytes");
+			}
+			System.out.println(sizes);
+		}
+		new Runner(new OptionsBuilder()
+				.include(QueryCodecBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
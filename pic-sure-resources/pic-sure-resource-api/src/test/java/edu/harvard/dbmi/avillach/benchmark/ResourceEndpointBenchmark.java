@@ -0,0 +1,69 @@
+package edu.harvard.dbmi.avillach.benchmark;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.harvard.dbmi.avillach.service.ResourceEndpoint;
+import edu.harvard.dbmi.avillach.service.ResourceWebClient;
+import edu.harvard.dbmi.avillach.util.HttpClientUtil;
+
+/**
+ * Compares building the status URL and headers of a resource call on every request, as ResourceWebClient used to,
+ * with looking them up on a cached {@link ResourceEndpoint}. Run the main method and compare gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceEndpointBenchmark {
+
+	private final String rsURL = "https://picsure.example.org/pic-sure-hpds/PIC-SURE/";
+	private final String queryId = UUID.randomUUID().toString();
+	private final Map<String, String> credentials = Map.of(ResourceWebClient.BEARER_TOKEN_KEY, "resource-token");
+
+	@Benchmark
+	public void composedPerCall(Blackhole blackhole) {
+		blackhole.consume(HttpClientUtil.composeURL(rsURL, "/query/" + queryId + "/status"));
+		Header[] headers = {
+				new BasicHeader(HttpHeaders.AUTHORIZATION, ResourceWebClient.BEARER_STRING + credentials.get(ResourceWebClient.BEARER_TOKEN_KEY)),
+				new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+		};
+		blackhole.consume(headers);
+	}
+
+	@Benchmark
+	public void cachedEndpoint(Blackhole blackhole) {
+		ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+		blackhole.consume(endpoint.queryStatus(queryId));
+		blackhole.consume(endpoint.headers(credentials));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ResourceEndpointBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
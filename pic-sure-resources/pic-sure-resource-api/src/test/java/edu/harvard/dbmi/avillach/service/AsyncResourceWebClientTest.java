@@ -0,0 +1,157 @@
+package edu.harvard.dbmi.avillach.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.junit.WireMockClassRule;
+import edu.harvard.dbmi.avillach.domain.*;
+import edu.harvard.dbmi.avillach.util.AsyncHttpClientUtil;
+import edu.harvard.dbmi.avillach.util.PicSureStatus;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+import org.glassfish.jersey.internal.RuntimeDelegateImpl;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.RuntimeDelegate;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.*;
+
+public class AsyncResourceWebClientTest {
+
+    private final static ObjectMapper json = new ObjectMapper();
+    private final static String token = "testToken";
+    private final static int port = 8079;
+    private final static String testURL = "http://localhost:"+port;
+    private final AsyncResourceWebClient cut = new AsyncResourceWebClient();
+
+    @Rule
+    public WireMockClassRule wireMockRule = new WireMockClassRule(port);
+
+    @BeforeClass
+    public static void beforeClass() {
+
+        //Need to be able to throw exceptions without container so we can verify correct errors are being thrown
+        RuntimeDelegate runtimeDelegate = new RuntimeDelegateImpl();
+        RuntimeDelegate.setInstance(runtimeDelegate);
+    }
+
+    @Test
+    public void testInfo() throws Exception {
+        ResourceInfo resourceInfo = new ResourceInfo();
+        resourceInfo.setName("test resource");
+        wireMockRule.stubFor(post(urlEqualTo("/info"))
+                .withHeader("Authorization", equalTo(ResourceWebClient.BEARER_STRING + token))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody(json.writeValueAsString(resourceInfo))));
+
+        //Argument problems are reported straight away, not through the future
+        try {
+            cut.info(testURL, null);
+            fail();
+        } catch (ProtocolException e) {
+            assertEquals(ProtocolException.MISSING_DATA, e.getContent());
+        }
+        try {
+            cut.info(null, credentialsRequest());
+            fail();
+        } catch (ApplicationException e) {
+            assertEquals(ApplicationException.MISSING_RESOURCE_PATH, e.getContent());
+        }
+
+        ResourceInfo result = cut.info(testURL, credentialsRequest()).get();
+        assertEquals("test resource", result.getName());
+    }
+
+    @Test
+    public void testHttp2FallsBackToHttp11() throws Exception {
+        ResourceInfo resourceInfo = new ResourceInfo();
+        resourceInfo.setName("test resource");
+        wireMockRule.stubFor(post(urlEqualTo("/info"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody(json.writeValueAsString(resourceInfo))));
+        wireMockRule.stubFor(post(urlEqualTo("/query/sync"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("4")));
+
+        // the mock server only speaks HTTP/1.1, so the opted-in client has to negotiate down
+        AsyncHttpClientUtil.setHttp2(testURL, true);
+        try {
+            assertTrue(AsyncHttpClientUtil.isHttp2(testURL + "/info"));
+            assertEquals("test resource", cut.info(testURL, credentialsRequest()).get().getName());
+            Response response = cut.querySync(testURL, credentialsRequest()).get();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            ((StreamingOutput) response.getEntity()).write(result);
+            assertEquals("4", result.toString(StandardCharsets.UTF_8));
+        } finally {
+            AsyncHttpClientUtil.setHttp2(testURL, false);
+        }
+        assertFalse(AsyncHttpClientUtil.isHttp2(testURL));
+    }
+
+    @Test
+    public void testQueryStatus() throws Exception {
+        QueryStatus status = new QueryStatus();
+        status.setStatus(PicSureStatus.AVAILABLE);
+        wireMockRule.stubFor(post(urlEqualTo("/query/abc/status"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody(json.writeValueAsString(status))));
+
+        QueryStatus result = cut.queryStatus(testURL, "abc", credentialsRequest()).get();
+        assertEquals(PicSureStatus.AVAILABLE, result.getStatus());
+    }
+
+    @Test
+    public void testResourceErrorCompletesExceptionally() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo("/query"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("{\"message\" : \"resource is down\"}")));
+
+        QueryRequest queryRequest = credentialsRequest();
+        queryRequest.setQuery("query");
+        try {
+            cut.query(testURL, queryRequest).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ResourceInterfaceException);
+            assertTrue(e.getCause().getMessage().contains("resource is down"));
+        }
+    }
+
+    @Test
+    public void testQuerySyncStreamsResultWithMetadata() throws Exception {
+        wireMockRule.stubFor(post(urlEqualTo("/query/sync"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader(ResourceWebClient.QUERY_METADATA_FIELD, "metadata-id")
+                        .withBody("4")));
+
+        Response response = cut.querySync(testURL, credentialsRequest()).get();
+        assertEquals(200, response.getStatus());
+        assertEquals("metadata-id", response.getHeaderString(ResourceWebClient.QUERY_METADATA_FIELD));
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(result);
+        assertEquals("4", result.toString(StandardCharsets.UTF_8));
+    }
+
+    private QueryRequest credentialsRequest() {
+        QueryRequest queryRequest = new QueryRequest();
+        Map<String, String> credentials = new HashMap<>();
+        credentials.put(ResourceWebClient.BEARER_TOKEN_KEY, token);
+        queryRequest.setResourceCredentials(credentials);
+        return queryRequest;
+    }
+}
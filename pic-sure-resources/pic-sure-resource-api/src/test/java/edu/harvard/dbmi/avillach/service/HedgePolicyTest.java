@@ -0,0 +1,155 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.Bulkhead;
+import edu.harvard.dbmi.avillach.util.HedgePolicy;
+import edu.harvard.dbmi.avillach.util.Metrics;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+public class HedgePolicyTest {
+
+	@Before
+	public void before() {
+		Metrics.setEnabled(true);
+		Metrics.reset();
+	}
+
+	@After
+	public void after() {
+		Metrics.reset();
+		Metrics.setEnabled(Boolean.getBoolean(Metrics.ENABLED_PROPERTY));
+	}
+
+	private static void awaitCancelled(CompletableFuture<?> future) throws InterruptedException {
+		// the loser is cancelled just after the winner completes the result
+		for (int i = 0; i < 100 && !future.isCancelled(); i++) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		assertTrue(future.isCancelled());
+	}
+
+	@Test
+	public void testHedgeWinsAndPrimaryIsCancelled() throws InterruptedException {
+		HedgePolicy policy = new HedgePolicy(true, 95, 1, 10, 0.1, 10);
+		CompletableFuture<String> slow = new CompletableFuture<>();
+		AtomicInteger calls = new AtomicInteger();
+
+		String result = policy.execute("test", "http://slow", () -> calls.incrementAndGet() == 1
+				? slow : CompletableFuture.completedFuture("hedged")).join();
+
+		assertEquals("hedged", result);
+		assertEquals(2, calls.get());
+		awaitCancelled(slow);
+		assertEquals(1, Metrics.count("hedge.test.fired"));
+		assertEquals(1, Metrics.count("hedge.test.won"));
+	}
+
+	@Test
+	public void testFastCallIsNotHedged() throws InterruptedException {
+		HedgePolicy policy = new HedgePolicy(true, 95, 1, 10, 0.1, 10);
+		AtomicInteger calls = new AtomicInteger();
+
+		assertEquals("ok", policy.execute("test", "http://fast", () -> {
+			calls.incrementAndGet();
+			return CompletableFuture.completedFuture("ok");
+		}).join());
+
+		TimeUnit.MILLISECONDS.sleep(50);
+		assertEquals(1, calls.get());
+		assertEquals(0, Metrics.count("hedge.test.fired"));
+	}
+
+	@Test
+	public void testNoHedgeWithoutBudget() {
+		HedgePolicy policy = new HedgePolicy(true, 95, 1, 10, 0, 0);
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<String> slow = new CompletableFuture<>();
+
+		CompletableFuture<String> result = policy.execute("test", "http://slow", () -> {
+			calls.incrementAndGet();
+			return slow;
+		});
+		CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(() -> slow.complete("primary"));
+
+		assertEquals("primary", result.join());
+		assertEquals(1, calls.get());
+		assertEquals(1, Metrics.count("hedge.test.budgetExhausted"));
+	}
+
+	@Test
+	public void testFailsOnlyWhenEveryRequestFails() {
+		HedgePolicy policy = new HedgePolicy(true, 95, 1, 10, 0.1, 10);
+		CompletableFuture<String> slow = new CompletableFuture<>();
+		AtomicInteger calls = new AtomicInteger();
+
+		CompletableFuture<String> result = policy.execute("test", "http://failing", () -> {
+			if (calls.incrementAndGet() == 1) {
+				return slow;
+			}
+			slow.completeExceptionally(new ResourceInterfaceException("primary"));
+			return CompletableFuture.failedFuture(new ResourceInterfaceException("hedge"));
+		});
+
+		try {
+			result.join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals("primary", e.getCause().getMessage());
+		}
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testHedgeTakesABulkheadSlot() throws InterruptedException {
+		HedgePolicy policy = new HedgePolicy(true, 95, 1, 10, 0.1, 10);
+		Bulkhead bulkhead = new Bulkhead(2, 0, 0);
+		assertTrue(bulkhead.tryAcquireNow());
+		CompletableFuture<String> slow = new CompletableFuture<>();
+		CompletableFuture<String> hedge = new CompletableFuture<>();
+		AtomicInteger calls = new AtomicInteger();
+
+		CompletableFuture<String> result = policy.execute("test", "http://slot", bulkhead, () -> calls.incrementAndGet() == 1 ? slow : hedge);
+		for (int i = 0; i < 100 && calls.get() < 2; i++) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		assertEquals(2, calls.get());
+		assertEquals(2, bulkhead.getActive());
+
+		hedge.complete("hedged");
+		assertEquals("hedged", result.join());
+		assertEquals(1, bulkhead.getActive());
+		bulkhead.release();
+	}
+
+	@Test
+	public void testNoHedgeWithoutAFreeSlot() {
+		HedgePolicy policy = new HedgePolicy(true, 95, 1, 10, 0.1, 10);
+		Bulkhead bulkhead = new Bulkhead(1, 0, 0);
+		assertTrue(bulkhead.tryAcquireNow());
+		CompletableFuture<String> slow = new CompletableFuture<>();
+		AtomicInteger calls = new AtomicInteger();
+
+		CompletableFuture<String> result = policy.execute("test", "http://full", bulkhead, () -> {
+			calls.incrementAndGet();
+			return slow;
+		});
+		CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(() -> slow.complete("primary"));
+
+		assertEquals("primary", result.join());
+		assertEquals(1, calls.get());
+		assertEquals(1, Metrics.count("hedge.test.busy"));
+		bulkhead.release();
+	}
+}
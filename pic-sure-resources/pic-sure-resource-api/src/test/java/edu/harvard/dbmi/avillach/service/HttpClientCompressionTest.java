@@ -0,0 +1,127 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.RuntimeDelegate;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.glassfish.jersey.internal.RuntimeDelegateImpl;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import edu.harvard.dbmi.avillach.util.HttpClientUtil;
+import edu.harvard.dbmi.avillach.util.ResultStreamingOutput;
+
+public class HttpClientCompressionTest {
+
+	private static final String RESULT = "patient_id,age\n1,42\n2,37\n";
+
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+	@BeforeClass
+	public static void beforeClass() {
+		RuntimeDelegate.setInstance(new RuntimeDelegateImpl());
+	}
+
+	@After
+	public void after() {
+		System.clearProperty(HttpClientUtil.GZIP_REQUESTS_OVER_PROPERTY);
+	}
+
+	private String url(String path) {
+		return "http://localhost:" + wireMockRule.port() + path;
+	}
+
+	private static byte[] gzip(String value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(value.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testAcceptsGzip() {
+		assertTrue(HttpClientUtil.acceptsGzip("gzip, deflate, br"));
+		assertTrue(HttpClientUtil.acceptsGzip("deflate;q=1.0, GZIP;q=0.5"));
+		assertTrue(HttpClientUtil.acceptsGzip("*"));
+		assertFalse(HttpClientUtil.acceptsGzip("gzip;q=0"));
+		assertFalse(HttpClientUtil.acceptsGzip("identity"));
+		assertFalse(HttpClientUtil.acceptsGzip(null));
+	}
+
+	@Test
+	public void testCompressedResultIsPassedThrough() throws IOException {
+		byte[] compressed = gzip(RESULT);
+		stubFor(post(urlEqualTo("/query/1/result"))
+				.willReturn(aResponse().withStatus(200)
+						.withHeader("Content-Type", "text/csv")
+						.withHeader("Content-Encoding", "gzip")
+						.withBody(compressed)));
+
+		HttpResponse upstream = HttpClientUtil.retrievePostResponseEncoded(url("/query/1/result"), new Header[0], "{}");
+		Response response = ResultStreamingOutput.proxy(upstream).build();
+		assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(client);
+		assertArrayEquals(compressed, client.toByteArray());
+		verify(postRequestedFor(urlEqualTo("/query/1/result")).withHeader("Accept-Encoding", equalTo("gzip")));
+	}
+
+	@Test
+	public void testCompressedResultIsDecodedByDefault() throws IOException {
+		stubFor(post(urlEqualTo("/query/1/result"))
+				.willReturn(aResponse().withStatus(200)
+						.withHeader("Content-Type", "text/csv")
+						.withHeader("Content-Encoding", "gzip")
+						.withBody(gzip(RESULT))));
+
+		HttpResponse upstream = HttpClientUtil.retrievePostResponse(url("/query/1/result"), new Header[0], "{}");
+		Response response = ResultStreamingOutput.proxy(upstream).build();
+		assertNull(response.getHeaderString("Content-Encoding"));
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(client);
+		assertEquals(RESULT, new String(client.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testLargeRequestsAreCompressedUntilRejected() throws IOException {
+		System.setProperty(HttpClientUtil.GZIP_REQUESTS_OVER_PROPERTY, "10");
+		stubFor(post(urlEqualTo("/query/format")).withHeader("Content-Encoding", equalTo("gzip"))
+				.willReturn(aResponse().withStatus(415)));
+		stubFor(post(urlEqualTo("/query/format")).withHeader("Content-Encoding", absent())
+				.willReturn(aResponse().withStatus(200).withBody("ok")));
+		String body = "{\"query\":\"" + "x".repeat(100) + "\"}";
+
+		HttpResponse first = HttpClientUtil.retrievePostResponse(url("/query/format"), new Header[0], body);
+		assertEquals(200, first.getStatusLine().getStatusCode());
+		EntityUtils.consume(first.getEntity());
+		HttpResponse second = HttpClientUtil.retrievePostResponse(url("/query/format"), new Header[0], body);
+		assertEquals(200, second.getStatusLine().getStatusCode());
+		EntityUtils.consume(second.getEntity());
+
+		// one compressed attempt, then plain bodies only
+		verify(1, postRequestedFor(urlEqualTo("/query/format")).withHeader("Content-Encoding", equalTo("gzip")));
+		verify(2, postRequestedFor(urlEqualTo("/query/format")).withHeader("Content-Encoding", absent()));
+	}
+}
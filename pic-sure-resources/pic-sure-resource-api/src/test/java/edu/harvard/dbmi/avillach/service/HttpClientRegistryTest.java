@@ -0,0 +1,49 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.HttpClientRegistry;
+
+public class HttpClientRegistryTest {
+
+	@Before
+	@After
+	public void reset() {
+		HttpClientRegistry.shutdown();
+	}
+
+	@Test
+	public void testClientIsReusedForTheSameResource() {
+		CloseableHttpClient info = HttpClientRegistry.getClient("http://foo.bar.com/pic-sure/info");
+		CloseableHttpClient query = HttpClientRegistry.getClient("http://FOO.bar.com:80/pic-sure/query/sync");
+		assertSame(info, query);
+		assertEquals(1, HttpClientRegistry.size());
+	}
+
+	@Test
+	public void testEachResourceGetsItsOwnPool() {
+		CloseableHttpClient first = HttpClientRegistry.getClient("http://foo.bar.com/pic-sure/info");
+		CloseableHttpClient second = HttpClientRegistry.getClient("http://foo.bar.com:8080/pic-sure/info");
+		CloseableHttpClient third = HttpClientRegistry.getClient("https://foo.bar.com/pic-sure/info");
+		assertNotSame(first, second);
+		assertNotSame(first, third);
+		assertEquals(3, HttpClientRegistry.size());
+	}
+
+	@Test
+	public void testShutdownReleasesAllPools() {
+		CloseableHttpClient before = HttpClientRegistry.getClient("http://foo.bar.com/pic-sure/info");
+		HttpClientRegistry.shutdown();
+		assertEquals(0, HttpClientRegistry.size());
+
+		CloseableHttpClient after = HttpClientRegistry.getClient("http://foo.bar.com/pic-sure/info");
+		assertNotSame(before, after);
+	}
+}
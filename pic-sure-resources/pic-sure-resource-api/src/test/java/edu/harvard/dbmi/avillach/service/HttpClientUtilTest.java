@@ -1,8 +1,21 @@
 package edu.harvard.dbmi.avillach.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.harvard.dbmi.avillach.domain.ResourceInfo;
 import edu.harvard.dbmi.avillach.util.HttpClientUtil;
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.junit.Test;
 
 public class HttpClientUtilTest {
@@ -30,4 +43,46 @@ public class HttpClientUtilTest {
 		test = HttpClientUtil.composeURL("http://localhost:8080/", "/info");
 		assertEquals("http://localhost:8080/info", test);
 	}
+
+	@Test
+	public void testReadObjectFromResponseConsumesEntity() {
+		AtomicBoolean closed = new AtomicBoolean();
+		HttpResponse response = response("{\"name\":\"test resource\"}", closed);
+
+		ResourceInfo info = HttpClientUtil.readObjectFromResponse(response, ResourceInfo.class);
+		assertEquals("test resource", info.getName());
+		assertTrue("entity stream should be released", closed.get());
+	}
+
+	@Test
+	public void testReadObjectFromResponseConsumesEntityOnError() {
+		AtomicBoolean closed = new AtomicBoolean();
+		HttpResponse response = response("{\"unexpected\":", closed);
+		try {
+			HttpClientUtil.readObjectFromResponse(response, ResourceInfo.class);
+			fail();
+		} catch (ApplicationException e) {
+			assertTrue("entity stream should be released", closed.get());
+		}
+	}
+
+	@Test
+	public void testReadListFromResponse() {
+		HttpResponse response = response("[{\"name\":\"a\"},{\"name\":\"b\"}]", new AtomicBoolean());
+
+		List<ResourceInfo> infos = HttpClientUtil.readListFromResponse(response, ResourceInfo.class);
+		assertEquals(2, infos.size());
+		assertEquals("b", infos.get(1).getName());
+	}
+
+	private HttpResponse response(String body, AtomicBoolean closed) {
+		BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		response.setEntity(new InputStreamEntity(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)) {
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		}));
+		return response;
+	}
 }
@@ -0,0 +1,80 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.QueryCodec;
+
+public class QueryCodecTest {
+
+	private static String query(int paths) {
+		StringBuilder query = new StringBuilder("{\"resourceUUID\":\"8694e3d4-5cb4-410f-8431-993445e6d3f6\",\"query\":{\"fields\":[");
+		for (int i = 0; i < paths; i++) {
+			query.append(i == 0 ? "" : ",").append("\"\\\\phs000007\\\\pht000009\\\\phv0000").append(i).append("\\\\Période d'examen\\\\\"");
+		}
+		return query.append("],\"expectedResultType\":\"DATAFRAME\"}}\n").toString();
+	}
+
+	private static byte[] legacyGzip(String json) throws IOException {
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(stored)) {
+			gzip.write(json.getBytes(StandardCharsets.UTF_8));
+		}
+		return stored.toByteArray();
+	}
+
+	@Test
+	public void testEveryFormatRoundTripsExactly() {
+		String json = "{\"query\":\"line one\nline two\r\n\",\"name\":\"é中😀\"}\n" + query(500);
+		for (QueryCodec codec : new QueryCodec[] {QueryCodec.GZIP, QueryCodec.DEFLATE, QueryCodec.DICTIONARY}) {
+			assertEquals(json, QueryCodec.decode(codec.encode(json)));
+			assertEquals("x", QueryCodec.decode(codec.encode("x")));
+		}
+		assertEquals("", QueryCodec.decode(new byte[0]));
+		assertEquals("", QueryCodec.decode(null));
+	}
+
+	@Test
+	public void testStoredGzipIsStillReadAndStillWritten() throws IOException {
+		String json = query(50);
+		assertEquals(json, QueryCodec.decode(legacyGzip(json)));
+		assertArrayEquals("gzip is written byte for byte as GZIPOutputStream writes it",
+				legacyGzip(json), QueryCodec.GZIP.encode(json));
+	}
+
+	@Test
+	public void testTheDictionaryShrinksSmallQueries() {
+		String json = "{\"resourceUUID\":\"8694e3d4-5cb4-410f-8431-993445e6d3f6\",\"query\":{\"categoryFilters\":{\"\\\\_studies_consents\\\\\":[\"phs000007.c1\"]},"
+				+ "\"numericFilters\":{},\"requiredFields\":[],\"anyRecordOf\":[],\"expectedResultType\":\"COUNT\"}}";
+		int deflated = QueryCodec.DEFLATE.encode(json).length;
+		int withDictionary = QueryCodec.DICTIONARY.encode(json).length;
+		assertTrue(withDictionary + " bytes should be less than " + deflated, withDictionary < deflated);
+	}
+
+	@Test
+	public void testCorruptQueriesAreRejected() {
+		byte[] stored = QueryCodec.DICTIONARY.encode(query(5));
+		stored[stored.length / 2] ^= 0x55;
+		try {
+			QueryCodec.decode(stored);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			QueryCodec.decode(new byte[] {9, 1, 2});
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.HttpClientUtil;
+
+public class ResourceEndpointTest {
+
+	@After
+	public void after() {
+		ResourceEndpoint.invalidateAll();
+	}
+
+	@Test
+	public void testUrlsMatchComposeURL() {
+		for (String rsURL : new String[] {"http://localhost:8080/pic-sure/", "http://localhost/pic-sure?tenant=a"}) {
+			ResourceEndpoint endpoint = ResourceEndpoint.of(rsURL);
+			assertEquals(HttpClientUtil.composeURL(rsURL, "/info"), endpoint.info());
+			assertEquals(HttpClientUtil.composeURL(rsURL, "/search"), endpoint.search());
+			assertEquals(HttpClientUtil.composeURL(rsURL, "/query"), endpoint.query());
+			assertEquals(HttpClientUtil.composeURL(rsURL, "/query/sync"), endpoint.querySync());
+			assertEquals(HttpClientUtil.composeURL(rsURL, "/query/format"), endpoint.queryFormat());
+			for (String queryId : new String[] {"4fd3b7a5-9fd9-4a3e-8d5e-3f7e8c4d2c1a", "id with spaces"}) {
+				assertEquals(HttpClientUtil.composeURL(rsURL, "/query/" + queryId + "/status"), endpoint.queryStatus(queryId));
+				assertEquals(HttpClientUtil.composeURL(rsURL, "/query/" + queryId + "/result"), endpoint.queryResult(queryId));
+			}
+		}
+	}
+
+	@Test
+	public void testEndpointAndHeadersAreReused() {
+		ResourceEndpoint endpoint = ResourceEndpoint.of("http://localhost/pic-sure");
+		assertSame(endpoint, ResourceEndpoint.of("http://localhost/pic-sure"));
+
+		Header[] headers = endpoint.headers(Map.of(ResourceWebClient.BEARER_TOKEN_KEY, "token"));
+		assertEquals("Bearer token", headers[0].getValue());
+		assertSame(headers, endpoint.headers(Map.of(ResourceWebClient.BEARER_TOKEN_KEY, "token")));
+
+		Header[] rotated = endpoint.headers(Map.of(ResourceWebClient.BEARER_TOKEN_KEY, "rotated"));
+		assertEquals("Bearer rotated", rotated[0].getValue());
+
+		ResourceEndpoint.invalidate("http://localhost/pic-sure");
+		assertNotSame(endpoint, ResourceEndpoint.of("http://localhost/pic-sure"));
+	}
+}
@@ -8,7 +8,6 @@ import edu.harvard.dbmi.avillach.util.PicSureStatus;
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.NotAuthorizedException;
 import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
-import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.internal.RuntimeDelegateImpl;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -17,9 +16,10 @@ import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.ext.RuntimeDelegate;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -368,7 +368,9 @@ public class ResourceWebClientTest {
         Response result = cut.queryResult(testURL,testId, queryRequest);
         assertNotNull("Result should not be null", result);
         try {
-            String resultContent = IOUtils.toString((InputStream) result.getEntity(), "UTF-8");
+            ByteArrayOutputStream resultStream = new ByteArrayOutputStream();
+            ((StreamingOutput) result.getEntity()).write(resultStream);
+            String resultContent = resultStream.toString("UTF-8");
             assertEquals("Result should match " + mockResult, mockResult, resultContent);
         } catch (IOException e ){
             fail("Result content was unreadable");
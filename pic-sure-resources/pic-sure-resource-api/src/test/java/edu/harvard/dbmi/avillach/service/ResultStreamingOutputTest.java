@@ -0,0 +1,91 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.RuntimeDelegate;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHeader;
+import org.glassfish.jersey.internal.RuntimeDelegateImpl;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.ResultStreamingOutput;
+
+public class ResultStreamingOutputTest {
+
+	@BeforeClass
+	public static void beforeClass() {
+		RuntimeDelegate.setInstance(new RuntimeDelegateImpl());
+	}
+
+	@Test
+	public void testResultIsCopiedAndHeadersForwarded() throws IOException {
+		byte[] body = new byte[300_000];
+		new Random(42).nextBytes(body);
+		AtomicBoolean released = new AtomicBoolean();
+		CloseableHttpResponse upstream = upstream(body, released);
+		when(upstream.getFirstHeader(ResourceWebClient.QUERY_METADATA_FIELD))
+				.thenReturn(new BasicHeader(ResourceWebClient.QUERY_METADATA_FIELD, "metadata-id"));
+
+		Response response = ResultStreamingOutput.proxy(upstream, ResourceWebClient.QUERY_METADATA_FIELD).build();
+		assertEquals("application/octet-stream", response.getHeaderString("Content-Type"));
+		assertEquals(String.valueOf(body.length), response.getHeaderString("Content-Length"));
+		assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+		assertEquals("metadata-id", response.getHeaderString(ResourceWebClient.QUERY_METADATA_FIELD));
+
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(client);
+		assertArrayEquals(body, client.toByteArray());
+		assertTrue("upstream entity should be released", released.get());
+	}
+
+	@Test
+	public void testClientAbortClosesUpstream() throws IOException {
+		CloseableHttpResponse upstream = upstream(new byte[300_000], new AtomicBoolean());
+		OutputStream disconnectedClient = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+		};
+
+		try {
+			new ResultStreamingOutput(upstream).write(disconnectedClient);
+			fail("the client error should be propagated");
+		} catch (IOException e) {
+			assertEquals("Broken pipe", e.getMessage());
+		}
+		verify(upstream).close();
+	}
+
+	private CloseableHttpResponse upstream(byte[] body, AtomicBoolean released) {
+		InputStreamEntity entity = new InputStreamEntity(new ByteArrayInputStream(body) {
+			@Override
+			public void close() {
+				released.set(true);
+			}
+		}, body.length);
+		entity.setContentType("application/octet-stream");
+		entity.setContentEncoding("gzip");
+		CloseableHttpResponse upstream = mock(CloseableHttpResponse.class);
+		when(upstream.getEntity()).thenReturn(entity);
+		return upstream;
+	}
+}
@@ -0,0 +1,110 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.RetryPolicy;
+import edu.harvard.dbmi.avillach.util.exception.ProtocolException;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+public class RetryPolicyTest {
+
+	private String failTimes(AtomicInteger calls, int failures) {
+		if (calls.incrementAndGet() <= failures) {
+			throw new ResourceInterfaceException("unreachable");
+		}
+		return "ok";
+	}
+
+	@Test
+	public void testRetriesUntilSuccess() {
+		RetryPolicy policy = new RetryPolicy(3, 1, 5, new RetryPolicy.Budget(0.1, 10));
+		AtomicInteger calls = new AtomicInteger();
+		assertEquals("ok", policy.execute("test", () -> failTimes(calls, 2)));
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		RetryPolicy policy = new RetryPolicy(3, 1, 5, new RetryPolicy.Budget(0.1, 10));
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			policy.execute("test", () -> failTimes(calls, 5));
+			fail();
+		} catch (ResourceInterfaceException e) {
+			assertEquals(3, calls.get());
+		}
+	}
+
+	@Test
+	public void testOnlyUnreachableResourceIsRetried() {
+		RetryPolicy policy = new RetryPolicy(3, 1, 5, new RetryPolicy.Budget(0.1, 10));
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			policy.execute("test", () -> {
+				calls.incrementAndGet();
+				throw new ProtocolException("bad request");
+			});
+			fail();
+		} catch (ProtocolException e) {
+			assertEquals(1, calls.get());
+		}
+	}
+
+	@Test
+	public void testBudgetLimitsRetries() {
+		RetryPolicy.Budget budget = new RetryPolicy.Budget(0, 1);
+		RetryPolicy policy = new RetryPolicy(5, 1, 5, budget);
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			policy.execute("test", () -> failTimes(calls, 5));
+			fail();
+		} catch (ResourceInterfaceException e) {
+			// the single token in the budget pays for one retry
+			assertEquals(2, calls.get());
+		}
+		assertEquals(0, budget.getTokens(), 0);
+	}
+
+	@Test
+	public void testQueriesAreNotRetried() {
+		assertSame(RetryPolicy.NONE, RetryPolicy.forPath("http://localhost/pic-sure/query"));
+		assertSame(RetryPolicy.NONE, RetryPolicy.forPath("http://localhost/pic-sure/query/sync/"));
+		assertSame(RetryPolicy.IDEMPOTENT, RetryPolicy.forPath("http://localhost/pic-sure/info"));
+		assertSame(RetryPolicy.IDEMPOTENT, RetryPolicy.forPath("http://localhost/pic-sure/query/1234/status"));
+		assertSame(RetryPolicy.IDEMPOTENT, RetryPolicy.forPath("http://localhost/pic-sure/search"));
+	}
+
+	@Test
+	public void testAsyncRetriesUntilSuccess() {
+		RetryPolicy policy = new RetryPolicy(3, 1, 5, new RetryPolicy.Budget(0.1, 10));
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<String> result = policy.executeAsync("test", () -> {
+			CompletableFuture<String> attempt = new CompletableFuture<>();
+			try {
+				attempt.complete(failTimes(calls, 2));
+			} catch (ResourceInterfaceException e) {
+				attempt.completeExceptionally(e);
+			}
+			return attempt;
+		});
+		assertEquals("ok", result.join());
+		assertEquals(3, calls.get());
+
+		try {
+			policy.executeAsync("test", () -> CompletableFuture.<String>supplyAsync(() -> {
+				throw new ProtocolException("bad request");
+			})).join();
+			fail();
+		} catch (CompletionException e) {
+			assertEquals(ProtocolException.class, e.getCause().getClass());
+		}
+	}
+}
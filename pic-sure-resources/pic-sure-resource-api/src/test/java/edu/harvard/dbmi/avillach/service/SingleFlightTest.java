@@ -0,0 +1,117 @@
+package edu.harvard.dbmi.avillach.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.harvard.dbmi.avillach.util.SingleFlight;
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+public class SingleFlightTest {
+
+	private final SingleFlight<String, String> singleFlight = new SingleFlight<>("test");
+
+	private CompletableFuture<String> leader(CountDownLatch started, CountDownLatch release, AtomicInteger calls, RuntimeException failure) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return singleFlight.execute("key", () -> {
+					calls.incrementAndGet();
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					if (failure != null) {
+						throw failure;
+					}
+					return "shared";
+				}, 1, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneCall() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<String> first = leader(started, release, calls, null);
+		started.await();
+
+		CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> {
+			try {
+				return singleFlight.execute("key", () -> "not shared", 1, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		TimeUnit.MILLISECONDS.sleep(50);
+		release.countDown();
+
+		assertEquals("shared", first.get());
+		assertEquals("shared", second.get());
+		assertEquals(1, calls.get());
+		assertEquals(0, singleFlight.size());
+	}
+
+	@Test
+	public void testWaitersShareFailuresAndTimeOut() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ResourceInterfaceException failure = new ResourceInterfaceException("unreachable");
+		CompletableFuture<String> first = leader(started, release, new AtomicInteger(), failure);
+		started.await();
+
+		try {
+			singleFlight.execute("key", () -> "not shared", 10, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (TimeoutException e) {
+			// still running
+		}
+
+		CompletableFuture<String> waiter = CompletableFuture.supplyAsync(() -> {
+			try {
+				return singleFlight.execute("key", () -> "not shared", 1, TimeUnit.SECONDS);
+			} catch (ResourceInterfaceException e) {
+				return e == failure ? "failed" : "other failure";
+			} catch (TimeoutException e) {
+				return "timeout";
+			}
+		});
+		TimeUnit.MILLISECONDS.sleep(50);
+		release.countDown();
+
+		assertEquals("failed", waiter.get());
+		first.handle((value, e) -> null).get();
+		assertEquals("next", singleFlight.execute("key", () -> "next", 1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testAsyncCallersShareOneCall() throws Exception {
+		CompletableFuture<String> upstream = new CompletableFuture<>();
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<String> first = singleFlight.executeAsync("key", () -> {
+			calls.incrementAndGet();
+			return upstream;
+		});
+		CompletableFuture<String> second = singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("not shared"));
+
+		second.cancel(false);
+		upstream.complete("shared");
+
+		assertEquals("shared", first.get(1, TimeUnit.SECONDS));
+		assertEquals(1, calls.get());
+		assertEquals(0, singleFlight.size());
+		assertEquals("next", singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("next")).get(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,282 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Authenticator;
+import java.net.PasswordAuthentication;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+/**
+ * Non-blocking counterpart of {@link HttpClientUtil}.
+ *
+ * Requests are sent with the JDK {@link HttpClient}, so no thread is held while a resource is working on a request.
+ * Completed responses are adapted to Apache {@link HttpResponse}s, which lets callers keep using the
+ * <code>readObjectFromResponse</code> and <code>throwResponseError</code> helpers in {@link HttpClientUtil}.
+ *
+ * Completion callbacks run on a small pool sized by the <code>picsure.http.async.threads</code> system property
+ * (default: number of processors). The connect timeout is read from <code>picsure.http.connectTimeoutMs</code>
+ * (default 30000).
+ *
+ * Requests use HTTP/1.1 unless HTTP/2 has been switched on for the target with {@link #setHttp2(String, boolean)},
+ * in which case concurrent requests to it share a few multiplexed connections. A server that does not negotiate
+ * HTTP/2 is still spoken to over HTTP/1.1, and a target whose HTTP/2 connection fails outright is switched back to
+ * HTTP/1.1 for good.
+ *
+ * The clients and their pool are built on first use. Applications must call {@link #shutdown()} when they are
+ * undeployed.
+ */
+public class AsyncHttpClientUtil {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncHttpClientUtil.class);
+
+	public static final String THREADS_PROPERTY = "picsure.http.async.threads";
+	public static final String CONNECT_TIMEOUT_PROPERTY = "picsure.http.connectTimeoutMs";
+
+	private static volatile Clients clients;
+
+	/**
+	 * Targets that have opted in to HTTP/2, keyed as scheme://host:port.
+	 */
+	private static final Set<String> http2Routes = ConcurrentHashMap.newKeySet();
+
+	private AsyncHttpClientUtil() {
+	}
+
+	/**
+	 * Posts the body to the url and buffers the whole response, for small JSON responses such as info and status.
+	 *
+	 * @param uri
+	 * @param headers
+	 * @param body
+	 * @return a future completing with the response, or exceptionally with a <b>ResourceInterfaceException</b> if
+	 *         no response could be read from the url. Cancelling it abandons the request.
+	 */
+	public static CompletableFuture<HttpResponse> retrievePostResponseAsync(String uri, Header[] headers, String body) {
+		CompletableFuture<java.net.http.HttpResponse<byte[]>> sent = send(uri, headers, body, BodyHandlers.ofByteArray());
+		return cancels(sent.thenApply(response -> toHttpResponse(response, new ByteArrayInputStream(response.body()), response.body().length)), sent);
+	}
+
+	/**
+	 * Posts the body to the url and completes as soon as the response headers arrive. The entity of the response
+	 * streams from the resource and must be read or closed by the caller.
+	 *
+	 * @param uri
+	 * @param headers
+	 * @param body
+	 * @return a future completing with the response, or exceptionally with a <b>ResourceInterfaceException</b> if
+	 *         no response could be read from the url. Cancelling it abandons the request.
+	 */
+	public static CompletableFuture<HttpResponse> retrievePostResponseStreamAsync(String uri, Header[] headers, String body) {
+		CompletableFuture<java.net.http.HttpResponse<InputStream>> sent = send(uri, headers, body, BodyHandlers.ofInputStream());
+		return cancels(sent.thenApply(response -> toHttpResponse(response, response.body(), -1)), sent);
+	}
+
+	/**
+	 * Switches HTTP/2 on or off for every request to the host and port of the given url.
+	 */
+	public static void setHttp2(String uri, boolean enabled) {
+		String route = HttpClientRegistry.routeKey(uri);
+		if (enabled ? http2Routes.add(route) : http2Routes.remove(route)) {
+			logger.info("HTTP/2 {} for {}", enabled ? "enabled" : "disabled", route);
+		}
+	}
+
+	public static boolean isHttp2(String uri) {
+		return !http2Routes.isEmpty() && http2Routes.contains(HttpClientRegistry.routeKey(uri));
+	}
+
+	/**
+	 * Stops the pool completion callbacks run on. Requests sent after this call build the clients again, so this is
+	 * safe to call on undeploy.
+	 */
+	public static synchronized void shutdown() {
+		if (clients != null) {
+			clients.executor.shutdownNow();
+			clients = null;
+		}
+	}
+
+	private static Clients clients() {
+		Clients current = clients;
+		if (current == null) {
+			synchronized (AsyncHttpClientUtil.class) {
+				if (clients == null) {
+					clients = new Clients();
+				}
+				current = clients;
+			}
+		}
+		return current;
+	}
+
+	private static <T> CompletableFuture<java.net.http.HttpResponse<T>> send(String uri, Header[] headers, String body, BodyHandler<T> bodyHandler) {
+		logger.debug("AsyncHttpClientUtil send() {}", uri);
+		HttpRequest.Builder request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(uri))
+					.POST(HttpRequest.BodyPublishers.ofString(body));
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(new ResourceInterfaceException(uri, e));
+		}
+		boolean hasContentType = false;
+		if (headers != null) {
+			for (Header header : headers) {
+				hasContentType |= HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(header.getName());
+				request.setHeader(header.getName(), header.getValue());
+			}
+		}
+		if (!hasContentType) {
+			request.setHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+		}
+
+		HttpRequest built = request.build();
+		Clients clients = clients();
+		if (!isHttp2(uri)) {
+			return send(clients.http1, built, bodyHandler);
+		}
+		CompletableFuture<java.net.http.HttpResponse<T>> first = send(clients.http2(), built, bodyHandler);
+		return cancels(first
+				.handle((response, e) -> {
+					if (e == null) {
+						return CompletableFuture.completedFuture(response);
+					}
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					if (!(cause.getCause() instanceof IOException) || cause.getCause() instanceof HttpTimeoutException) {
+						return CompletableFuture.<java.net.http.HttpResponse<T>>failedFuture(cause);
+					}
+					// the target claimed HTTP/2 but the connection failed, stay on HTTP/1.1 from now on
+					logger.warn("HTTP/2 request to {} failed, falling back to HTTP/1.1: {}", uri, cause.getCause().getMessage());
+					Metrics.increment("http.http2.fallback");
+					setHttp2(uri, false);
+					return send(clients.http1, built, bodyHandler);
+				})
+				.thenCompose(Function.identity()), first);
+	}
+
+	private static <T> CompletableFuture<java.net.http.HttpResponse<T>> send(HttpClient httpClient, HttpRequest request, BodyHandler<T> bodyHandler) {
+		String uri = request.uri().toString();
+		CompletableFuture<java.net.http.HttpResponse<T>> raw = httpClient.sendAsync(request, bodyHandler);
+		return cancels(raw.exceptionally(e -> {
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					logger.error("send() Exception: {}, cannot get response by POST from url: {}", cause.getMessage(), uri);
+					throw new ResourceInterfaceException(uri, cause instanceof Exception ? (Exception) cause : new Exception(cause));
+				}), raw);
+	}
+
+	/**
+	 * Dependent stages do not pass cancellation back to the stage they were built from, so a caller cancelling
+	 * the future it was handed would otherwise leave the request itself running.
+	 */
+	private static <T> CompletableFuture<T> cancels(CompletableFuture<T> derived, CompletableFuture<?> source) {
+		derived.whenComplete((result, e) -> {
+			if (derived.isCancelled()) {
+				source.cancel(true);
+			}
+		});
+		return derived;
+	}
+
+	private static HttpResponse toHttpResponse(java.net.http.HttpResponse<?> response, InputStream content, long length) {
+		ProtocolVersion version = response.version() == HttpClient.Version.HTTP_2
+				? new ProtocolVersion("HTTP", 2, 0) : HttpVersion.HTTP_1_1;
+		BasicHttpResponse httpResponse = new BasicHttpResponse(new BasicStatusLine(version, response.statusCode(), ""));
+		for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+			for (String value : header.getValue()) {
+				httpResponse.addHeader(header.getKey(), value);
+			}
+		}
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(content);
+		entity.setContentLength(length);
+		response.headers().firstValue(HttpHeaders.CONTENT_TYPE).ifPresent(entity::setContentType);
+		response.headers().firstValue(HttpHeaders.CONTENT_ENCODING).ifPresent(entity::setContentEncoding);
+		httpResponse.setEntity(entity);
+		return httpResponse;
+	}
+
+	private static HttpClient buildClient(HttpClient.Version version, ExecutorService executor) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(version)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.connectTimeout(Duration.ofMillis(Long.getLong(CONNECT_TIMEOUT_PROPERTY, 30000L)))
+				.executor(executor);
+
+		// same non-standard proxy credentials honoured by Utilities.buildHttpClientContext()
+		String proxyUser = System.getProperty("http.proxyUser");
+		String proxyPass = System.getProperty("http.proxyPassword");
+		if (proxyUser != null && proxyPass != null) {
+			builder.authenticator(new Authenticator() {
+				@Override
+				protected PasswordAuthentication getPasswordAuthentication() {
+					return new PasswordAuthentication(proxyUser, proxyPass.toCharArray());
+				}
+			});
+		}
+		return builder.build();
+	}
+
+	/**
+	 * The clients sharing one pool, until {@link #shutdown()}.
+	 */
+	private static class Clients {
+		private final ExecutorService executor = Executors.newFixedThreadPool(
+				Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory());
+
+		private final HttpClient http1 = buildClient(HttpClient.Version.HTTP_1_1, executor);
+
+		private HttpClient http2;
+
+		/**
+		 * Built on first use, most deployments never enable HTTP/2.
+		 */
+		private synchronized HttpClient http2() {
+			if (http2 == null) {
+				http2 = buildClient(HttpClient.Version.HTTP_2, executor);
+			}
+			return http2;
+		}
+	}
+
+	private static class DaemonThreadFactory implements java.util.concurrent.ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "picsure-http-async-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of concurrent calls to a single target.
+ *
+ * Up to <code>maxConcurrent</code> calls run at once, up to <code>maxQueue</code> further callers wait at most
+ * <code>queueTimeoutMs</code> for a slot, and everyone else is turned away immediately. Callers that must not block,
+ * such as the callbacks of non-blocking calls, use {@link #tryAcquireNow()} and never queue. Every successful
+ * acquire must be paired with a {@link #release()}.
+ */
+public class Bulkhead {
+
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long queueTimeoutMs;
+	private final Semaphore permits;
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	public Bulkhead(int maxConcurrent, int maxQueue, long queueTimeoutMs) {
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.maxQueue = Math.max(0, maxQueue);
+		this.queueTimeoutMs = queueTimeoutMs;
+		this.permits = new Semaphore(this.maxConcurrent, true);
+	}
+
+	/**
+	 * @return true if the caller holds a slot and must call {@link #release()} when done
+	 */
+	public boolean tryAcquire() {
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		if (waiting.incrementAndGet() > maxQueue) {
+			waiting.decrementAndGet();
+			return false;
+		}
+		try {
+			return permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes a slot only if one is free right away.
+	 *
+	 * @return true if the caller holds a slot and must call {@link #release()} when done
+	 */
+	public boolean tryAcquireNow() {
+		return permits.tryAcquire();
+	}
+
+	public void release() {
+		permits.release();
+	}
+
+	public int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+}
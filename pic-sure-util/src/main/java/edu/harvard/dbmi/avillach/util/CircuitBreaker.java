@@ -0,0 +1,99 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Consecutive-failure circuit breaker.
+ *
+ * The breaker opens after <code>failureThreshold</code> failures in a row and rejects calls until
+ * <code>openMs</code> has passed. It then lets up to <code>halfOpenProbes</code> calls through; the first of them
+ * to succeed closes the breaker again, a failure re-opens it.
+ *
+ * Callers must report the outcome of every permitted call with {@link #onSuccess()}, {@link #onFailure()} or
+ * {@link #onIgnored()}.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openMs;
+	private final int halfOpenProbes;
+	private final LongSupplier clock;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private int probesInFlight;
+
+	public CircuitBreaker(int failureThreshold, long openMs, int halfOpenProbes) {
+		this(failureThreshold, openMs, halfOpenProbes, System::currentTimeMillis);
+	}
+
+	CircuitBreaker(int failureThreshold, long openMs, int halfOpenProbes, LongSupplier clock) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMs = openMs;
+		this.halfOpenProbes = Math.max(1, halfOpenProbes);
+		this.clock = clock;
+	}
+
+	/**
+	 * @return true if the call may go ahead
+	 */
+	public synchronized boolean tryAcquire() {
+		if (state == State.OPEN) {
+			if (clock.getAsLong() - openedAt < openMs) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probesInFlight = 0;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probesInFlight >= halfOpenProbes) {
+				return false;
+			}
+			probesInFlight++;
+		}
+		return true;
+	}
+
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		if (state == State.HALF_OPEN) {
+			state = State.CLOSED;
+			probesInFlight = 0;
+		}
+	}
+
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = clock.getAsLong();
+			probesInFlight = 0;
+		}
+	}
+
+	/**
+	 * Releases a permitted call whose outcome says nothing about the health of the target, such as a rejected
+	 * request.
+	 */
+	public synchronized void onIgnored() {
+		if (state == State.HALF_OPEN && probesInFlight > 0) {
+			probesInFlight--;
+		}
+	}
+
+	public synchronized State getState() {
+		if (state == State.OPEN && clock.getAsLong() - openedAt >= openMs) {
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+}
@@ -0,0 +1,90 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A small thread safe cache with a bounded number of entries, each of which expires after its own time to live.
+ * When the cache is full the least recently used entry is evicted.
+ *
+ * Lookups take a lock on the whole cache, which is fine for the few thousand entries of short lived data it is meant
+ * for, such as token introspection outcomes or query results.
+ */
+public class ExpiringLruCache<K, V> {
+
+	private final int maxEntries;
+
+	private final LinkedHashMap<K, Expiring<V>> entries;
+
+	public ExpiringLruCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<K, Expiring<V>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Expiring<V>> eldest) {
+				return size() > ExpiringLruCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value, or null if there is none or it has expired
+	 */
+	public synchronized V get(K key) {
+		Expiring<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expiresAtNanos - System.nanoTime() <= 0) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Caches the value for the given time to live. Values with no time to live left are not cached.
+	 */
+	public synchronized void put(K key, V value, long ttl, TimeUnit unit) {
+		if (ttl <= 0 || maxEntries <= 0) {
+			entries.remove(key);
+			return;
+		}
+		entries.put(key, new Expiring<>(value, System.nanoTime() + unit.toNanos(ttl)));
+	}
+
+	public synchronized void invalidate(K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Removes every entry whose key matches.
+	 */
+	public synchronized void invalidateIf(Predicate<K> matches) {
+		for (Iterator<K> keys = entries.keySet().iterator(); keys.hasNext(); ) {
+			if (matches.test(keys.next())) {
+				keys.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Expiring<V> {
+		private final V value;
+		private final long expiresAtNanos;
+
+		private Expiring(V value, long expiresAtNanos) {
+			this.value = value;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedged requests for idempotent calls, such as info and query status.
+ *
+ * If a call has not completed once the target's recent latency percentile has passed, an identical second call is
+ * sent and whichever succeeds first is used. The other one is cancelled. A slow replica behind a resource URL then
+ * costs one extra request instead of the full tail latency.
+ *
+ * Hedges are paid for from a {@link RetryPolicy.Budget} kept per target, so they add at most a small fraction of
+ * extra load. When the target's calls are limited by a {@link Bulkhead}, a hedge takes a slot of its own for as long
+ * as it runs, and is not sent if no slot is free. Until a target has enough latency samples the initial delay is used instead of the percentile.
+ * Samples are taken from the start of the call to whichever request completes it, and from the primary request
+ * when it finishes or is cancelled after losing to a hedge, so slow calls are not left out of the percentile.
+ *
+ * The shared {@link #IDEMPOTENT} policy is configured through system properties:
+ * <ul>
+ *     <li>picsure.hedge.enabled - default true</li>
+ *     <li>picsure.hedge.percentile - latency percentile to wait for before hedging, default 95</li>
+ *     <li>picsure.hedge.minDelayMs - lower bound on the delay, default 50</li>
+ *     <li>picsure.hedge.initialDelayMs - delay used until enough samples are recorded, default 1000</li>
+ *     <li>picsure.hedge.budgetRatio - hedges allowed per call, default 0.05</li>
+ *     <li>picsure.hedge.budgetMax - hedges that can be saved up per target, default 10</li>
+ * </ul>
+ * Metrics are recorded as <code>hedge.&lt;operation&gt;.fired</code>, <code>.won</code>, <code>.budgetExhausted</code>
+ * and <code>.busy</code>.
+ */
+public class HedgePolicy {
+
+	public static final HedgePolicy IDEMPOTENT = new HedgePolicy(
+			Boolean.parseBoolean(System.getProperty("picsure.hedge.enabled", "true")),
+			Double.parseDouble(System.getProperty("picsure.hedge.percentile", "95")),
+			Long.getLong("picsure.hedge.minDelayMs", 50),
+			Long.getLong("picsure.hedge.initialDelayMs", 1000),
+			Double.parseDouble(System.getProperty("picsure.hedge.budgetRatio", "0.05")),
+			Integer.getInteger("picsure.hedge.budgetMax", 10));
+
+	private static final int SAMPLES = 128;
+	private static final int MIN_SAMPLES = 20;
+
+	private final boolean enabled;
+	private final double percentile;
+	private final long minDelayMs;
+	private final long initialDelayMs;
+	private final double budgetRatio;
+	private final int budgetMax;
+
+	private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+	public HedgePolicy(boolean enabled, double percentile, long minDelayMs, long initialDelayMs, double budgetRatio,
+			int budgetMax) {
+		this.enabled = enabled;
+		this.percentile = Math.min(100, Math.max(0, percentile));
+		this.minDelayMs = minDelayMs;
+		this.initialDelayMs = initialDelayMs;
+		this.budgetRatio = budgetRatio;
+		this.budgetMax = budgetMax;
+	}
+
+	/**
+	 * Runs the call, hedging it if it is slow. The call must be safe to send twice, and cancelling the future it
+	 * returns should abort the request.
+	 *
+	 * @param operation name used in the metrics
+	 * @param target the resource the call goes to, each target has its own latency samples and budget
+	 */
+	public <T> CompletableFuture<T> execute(String operation, String target, Supplier<CompletableFuture<T>> call) {
+		return execute(operation, target, null, call);
+	}
+
+	/**
+	 * Runs the call as {@link #execute(String, String, Supplier)} does, sending a hedge only if it can take a slot
+	 * of the bulkhead the call itself was admitted by.
+	 *
+	 * @param bulkhead limits the calls to the target, or null if they are not limited
+	 */
+	public <T> CompletableFuture<T> execute(String operation, String target, Bulkhead bulkhead, Supplier<CompletableFuture<T>> call) {
+		if (!enabled) {
+			return call.get();
+		}
+		Target state = targets.computeIfAbsent(target, key -> new Target(new RetryPolicy.Budget(budgetRatio, budgetMax)));
+		state.budget.deposit();
+
+		CompletableFuture<T> result = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger(1);
+		AtomicReference<Throwable> firstError = new AtomicReference<>();
+		AtomicReference<CompletableFuture<T>> hedge = new AtomicReference<>();
+		long startNanos = System.nanoTime();
+
+		CompletableFuture<T> primary = call.get();
+		primary.whenComplete((value, error) -> {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			if (error == null && result.complete(value)) {
+				state.record(elapsedNanos);
+				cancel(hedge.get());
+				return;
+			}
+			if (error == null || primary.isCancelled()) {
+				// lost to the hedge, how long it took (or at least, when cancelled) is still a sample of the target
+				state.record(elapsedNanos);
+			}
+			if (error != null) {
+				fail(result, pending, firstError, error);
+			}
+		});
+
+		CompletableFuture.delayedExecutor(state.delayMs(), TimeUnit.MILLISECONDS).execute(() -> {
+			if (result.isDone()) {
+				return;
+			}
+			if (bulkhead != null && !bulkhead.tryAcquireNow()) {
+				Metrics.increment("hedge." + operation + ".busy");
+				return;
+			}
+			if (!state.budget.withdraw()) {
+				Metrics.increment("hedge." + operation + ".budgetExhausted");
+				release(bulkhead);
+				return;
+			}
+			Metrics.increment("hedge." + operation + ".fired");
+			pending.incrementAndGet();
+			CompletableFuture<T> second;
+			try {
+				second = call.get();
+			} catch (RuntimeException e) {
+				release(bulkhead);
+				fail(result, pending, firstError, e);
+				return;
+			}
+			hedge.set(second);
+			second.whenComplete((value, error) -> {
+				release(bulkhead);
+				if (error == null && result.complete(value)) {
+					state.record(System.nanoTime() - startNanos);
+					Metrics.increment("hedge." + operation + ".won");
+					cancel(primary);
+				} else if (error != null) {
+					fail(result, pending, firstError, error);
+				}
+			});
+			if (result.isDone()) {
+				cancel(second);
+			}
+		});
+		return result;
+	}
+
+	private static <T> void fail(CompletableFuture<T> result, AtomicInteger pending, AtomicReference<Throwable> firstError, Throwable error) {
+		firstError.compareAndSet(null, error);
+		// only give up once every request that was sent has failed
+		if (pending.decrementAndGet() == 0) {
+			result.completeExceptionally(firstError.get());
+		}
+	}
+
+	private static void release(Bulkhead bulkhead) {
+		if (bulkhead != null) {
+			bulkhead.release();
+		}
+	}
+
+	private static void cancel(CompletableFuture<?> future) {
+		if (future != null && !future.isDone()) {
+			future.cancel(true);
+		}
+	}
+
+	private class Target {
+		private final RetryPolicy.Budget budget;
+		private final long[] latencies = new long[SAMPLES];
+		private int count;
+
+		private Target(RetryPolicy.Budget budget) {
+			this.budget = budget;
+		}
+
+		private synchronized void record(long nanos) {
+			latencies[count % SAMPLES] = nanos;
+			count++;
+		}
+
+		private synchronized long delayMs() {
+			if (count < MIN_SAMPLES) {
+				return initialDelayMs;
+			}
+			long[] sorted = Arrays.copyOf(latencies, Math.min(count, SAMPLES));
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+			long percentileMs = TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+			return Math.max(minDelayMs, percentileMs);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
+
+/**
+ * Long-lived registry of pooled HTTP clients, one per resource base URL (scheme, host and port).
+ *
+ * Each entry owns its own {@link PoolingHttpClientConnectionManager}, so a slow or saturated resource can only
+ * exhaust its own connections. Idle and expired connections are evicted by a single background thread.
+ * Applications must call {@link #shutdown()} when they are undeployed.
+ *
+ * Pool sizing is read from system properties:
+ * <ul>
+ *     <li>picsure.http.maxPerRoute - maximum connections to a single resource (default 50)</li>
+ *     <li>picsure.http.maxTotal - maximum connections held by a single pool (default 100)</li>
+ *     <li>picsure.http.keepAliveMs - keep-alive used when the server does not send one (default 30000)</li>
+ *     <li>picsure.http.idleTimeoutMs - idle time after which a pooled connection is closed (default 60000)</li>
+ *     <li>picsure.http.connectionRequestTimeoutMs - how long to wait for a pooled connection (default 30000)</li>
+ * </ul>
+ */
+public class HttpClientRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(HttpClientRegistry.class);
+
+	public static final String MAX_PER_ROUTE_PROPERTY = "picsure.http.maxPerRoute";
+	public static final String MAX_TOTAL_PROPERTY = "picsure.http.maxTotal";
+	public static final String KEEP_ALIVE_PROPERTY = "picsure.http.keepAliveMs";
+	public static final String IDLE_TIMEOUT_PROPERTY = "picsure.http.idleTimeoutMs";
+	public static final String CONNECTION_REQUEST_TIMEOUT_PROPERTY = "picsure.http.connectionRequestTimeoutMs";
+
+	private static final long EVICTION_INTERVAL_MS = 5000;
+	private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+	/**
+	 * A pooled connection may have been closed by the resource (for example after a restart) while it sat idle.
+	 * The resource never saw the request in that case, so it is sent once more on a fresh connection.
+	 */
+	private static final HttpRequestRetryHandler STALE_CONNECTION_RETRY = (exception, executionCount, context) ->
+			executionCount <= 1 && exception instanceof NoHttpResponseException;
+
+	private static final Map<String, PooledClient> clients = new ConcurrentHashMap<>();
+
+	private static ScheduledExecutorService evictor;
+
+	private HttpClientRegistry() {
+	}
+
+	/**
+	 * Returns the pooled client for the resource serving the given url, creating it on first use.
+	 *
+	 * @param uri any url on the target resource
+	 * @return a shared client, which must not be closed by the caller
+	 */
+	public static CloseableHttpClient getClient(String uri) {
+		String key = routeKey(uri);
+		PooledClient pooledClient = clients.get(key);
+		if (pooledClient == null) {
+			pooledClient = clients.computeIfAbsent(key, HttpClientRegistry::createClient);
+		}
+		return pooledClient.client;
+	}
+
+	/**
+	 * @return the number of resources that currently have a connection pool
+	 */
+	public static int size() {
+		return clients.size();
+	}
+
+	/**
+	 * Closes every pooled client and stops the idle connection evictor. Clients requested after this call are
+	 * created again, so this is safe to call on undeploy.
+	 */
+	public static synchronized void shutdown() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		for (String key : clients.keySet()) {
+			PooledClient pooledClient = clients.remove(key);
+			if (pooledClient != null) {
+				pooledClient.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the scheme, host and port of the url, which is what clients and settings are shared by
+	 */
+	public static String routeKey(String uri) {
+		try {
+			URI parsed = URI.create(uri);
+			if (parsed.getScheme() == null || parsed.getHost() == null) {
+				throw new ApplicationException("url invalid : " + uri, null);
+			}
+			int port = parsed.getPort();
+			if (port == -1) {
+				port = "https".equalsIgnoreCase(parsed.getScheme()) ? 443 : 80;
+			}
+			return parsed.getScheme().toLowerCase() + "://" + parsed.getHost().toLowerCase() + ":" + port;
+		} catch (IllegalArgumentException e) {
+			throw new ApplicationException("url invalid : " + uri, e);
+		}
+	}
+
+	private static PooledClient createClient(String key) {
+		logger.info("Creating pooled http client for {}", key);
+
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", SslSocketFactoryHolder.INSTANCE)
+				.build();
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		connectionManager.setMaxTotal(Integer.getInteger(MAX_TOTAL_PROPERTY, 100));
+		connectionManager.setDefaultMaxPerRoute(Integer.getInteger(MAX_PER_ROUTE_PROPERTY, 50));
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+		CloseableHttpClient client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(keepAliveStrategy(Long.getLong(KEEP_ALIVE_PROPERTY, 30000L)))
+				.setDefaultRequestConfig(requestConfig())
+				.setRetryHandler(STALE_CONNECTION_RETRY)
+				.build();
+
+		startEvictor();
+		return new PooledClient(client, connectionManager);
+	}
+
+	/**
+	 * The request configuration every pooled client uses by default. Requests that need to change a setting should
+	 * start from a copy of this rather than an empty configuration, which would drop the timeouts.
+	 */
+	static RequestConfig requestConfig() {
+		return RequestConfig.custom()
+				.setConnectionRequestTimeout(Integer.getInteger(CONNECTION_REQUEST_TIMEOUT_PROPERTY, 30000))
+				.build();
+	}
+
+	/**
+	 * Honours the Keep-Alive timeout sent by the server, falling back to the configured default.
+	 */
+	private static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAliveMs) {
+		return (HttpResponse response, org.apache.http.protocol.HttpContext context) -> {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement element = it.nextElement();
+				if (element.getValue() != null && element.getName().equalsIgnoreCase("timeout")) {
+					try {
+						return Long.parseLong(element.getValue()) * 1000;
+					} catch (NumberFormatException e) {
+						// ignore and use the default
+					}
+				}
+			}
+			return defaultKeepAliveMs;
+		};
+	}
+
+	private static synchronized void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "picsure-http-idle-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long idleTimeoutMs = Long.getLong(IDLE_TIMEOUT_PROPERTY, 60000L);
+		evictor.scheduleWithFixedDelay(() -> {
+			for (PooledClient pooledClient : clients.values()) {
+				pooledClient.connectionManager.closeExpiredConnections();
+				pooledClient.connectionManager.closeIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS);
+			}
+		}, EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private static class PooledClient {
+		private final CloseableHttpClient client;
+		private final PoolingHttpClientConnectionManager connectionManager;
+
+		private PooledClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+			this.client = client;
+			this.connectionManager = connectionManager;
+		}
+
+		private void close() {
+			try {
+				client.close();
+			} catch (Exception e) {
+				logger.warn("Error closing pooled http client", e);
+			}
+		}
+	}
+
+	/**
+	 * The TLS socket factory is expensive to build, so it is created once and shared by every pool.
+	 * Diffie-Hellman ciphers are filtered out, as they were when a client was built per request.
+	 */
+	private static class SslSocketFactoryHolder {
+		private static final ConnectionSocketFactory INSTANCE = create();
+
+		private static ConnectionSocketFactory create() {
+			try {
+				SSLContext sslContext = SSLContext.getInstance("TLS");
+				sslContext.init(null, null, null);
+				String[] defaultCiphers = sslContext.getServerSocketFactory().getDefaultCipherSuites();
+
+				List<String> limited = new LinkedList<String>();
+				for (String suite : defaultCiphers) {
+					//filter out Diffie-Hellman ciphers
+					if (!(suite.contains("_DHE_") || suite.contains("_DH_"))) {
+						limited.add(suite);
+					}
+				}
+
+				return new SSLConnectionSocketFactory(
+						SSLContexts.createSystemDefault(),
+						new String[]{"TLSv1.2"},
+						limited.toArray(new String[limited.size()]),
+						SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+			} catch (Exception e) {
+				logger.warn("Unable to establish SSL context.  using default socket factory", e);
+				return SSLConnectionSocketFactory.getSystemSocketFactory();
+			}
+		}
+	}
+}
@@ -8,37 +8,34 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-import javax.net.ssl.SSLContext;
 import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
-import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import edu.harvard.dbmi.avillach.util.exception.ApplicationException;
 import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
@@ -46,8 +43,27 @@ import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
 public class HttpClientUtil {
 	private static final ObjectMapper json = new ObjectMapper();
 
+	/**
+	 * Readers are immutable and thread safe, so one is built per target type and reused for every response.
+	 */
+	private static final Map<Class<?>, ObjectReader> objectReaders = new ConcurrentHashMap<>();
+	private static final Map<Class<?>, ObjectReader> listReaders = new ConcurrentHashMap<>();
+
 	private static final Logger logger = LoggerFactory.getLogger(HttpClientUtil.class);
 
+	public static final String GZIP = "gzip";
+
+	/**
+	 * Request bodies at least this long are gzip compressed. Off by default, as not every resource decodes
+	 * compressed requests.
+	 */
+	public static final String GZIP_REQUESTS_OVER_PROPERTY = "picsure.http.gzipRequestsOver";
+
+	/**
+	 * Hosts that rejected a compressed request, keyed as scheme://host:port.
+	 */
+	private static final Set<String> identityOnlyHosts = ConcurrentHashMap.newKeySet();
+
 	public static HttpResponse retrieveGetResponse(String uri, List<Header> headers) {
 		return retrieveGetResponse(uri, headers.toArray(new Header[headers.size()]));
 	}
@@ -63,7 +79,7 @@ public class HttpClientUtil {
 		try {
 			logger.debug("HttpClientUtil retrieveGetResponse()");
 
-			HttpClient client = getConfiguredHttpClient();
+			HttpClient client = getConfiguredHttpClient(uri);
 			return simpleGet(client, uri, headers);
 		} catch (ApplicationException e) {
 			throw new ResourceInterfaceException(uri, e);
@@ -96,12 +112,29 @@ public class HttpClientUtil {
 	/**
 	 * resource level post, which will throw a <b>ResourceInterfaceException</b> if cannot get response back from the
 	 * url
+	 *
+	 * Bodies of at least <code>picsure.http.gzipRequestsOver</code> bytes are sent gzip compressed, unless the host
+	 * has already answered a compressed request with 415 Unsupported Media Type. Compressed responses are
+	 * decompressed transparently.
 	 * 
 	 * @param uri
 	 * @param headers
 	 * @return
 	 */
 	public static HttpResponse retrievePostResponse(String uri, Header[] headers, String body) {
+		return retrievePostResponse(uri, headers, body, true);
+	}
+
+	/**
+	 * Same as {@link #retrievePostResponse(String, Header[], String)}, but asks the resource for a gzip response and
+	 * leaves it compressed, for callers that hand the body on to a client that accepts gzip without reading it. The
+	 * entity's Content-Encoding tells whether the resource actually compressed the response.
+	 */
+	public static HttpResponse retrievePostResponseEncoded(String uri, Header[] headers, String body) {
+		return retrievePostResponse(uri, headers, body, false);
+	}
+
+	private static HttpResponse retrievePostResponse(String uri, Header[] headers, String body, boolean decompress) {
 		try {
 			logger.debug("HttpClientUtil retrievePostResponse()");
 
@@ -110,58 +143,116 @@ public class HttpClientUtil {
 			if (headers != null)
 				headerList = new ArrayList<>(Arrays.asList(headers));
 			headerList.add(new BasicHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON));
-
-			HttpClient client = getConfiguredHttpClient();
-			return simplePost(uri, client, new StringEntity(body), headerList.toArray(new Header[headerList.size()]));
+			RequestConfig config = null;
+			if (!decompress) {
+				headerList.add(new BasicHeader(HttpHeaders.ACCEPT_ENCODING, GZIP));
+				config = RequestConfig.copy(HttpClientRegistry.requestConfig()).setContentCompressionEnabled(false).build();
+			}
+			Header[] allHeaders = headerList.toArray(new Header[headerList.size()]);
+
+			HttpClient client = getConfiguredHttpClient(uri);
+			if (shouldCompressRequest(uri, body)) {
+				HttpResponse response = post(uri, client, new GzipCompressingEntity(new StringEntity(body)), allHeaders, config);
+				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+					Metrics.increment("http.request.gzip");
+					return response;
+				}
+				EntityUtils.consumeQuietly(response.getEntity());
+				identityOnlyHosts.add(HttpClientRegistry.routeKey(uri));
+				Metrics.increment("http.request.gzip.rejected");
+				logger.info("{} does not accept compressed requests, sending them uncompressed from now on", uri);
+			}
+			return post(uri, client, new StringEntity(body), allHeaders, config);
 		} catch (ApplicationException | UnsupportedEncodingException e) {
 			throw new ResourceInterfaceException(uri, e);
 		}
 	}
 
+	private static boolean shouldCompressRequest(String uri, String body) {
+		int threshold = Integer.getInteger(GZIP_REQUESTS_OVER_PROPERTY, -1);
+		return threshold >= 0 && body != null && body.length() >= threshold
+				&& !identityOnlyHosts.contains(HttpClientRegistry.routeKey(uri));
+	}
+
+	/**
+	 * @return true if an Accept-Encoding header value allows a gzip response
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.trim().split(";");
+			String name = parameters[0].trim();
+			if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) {
+				continue;
+			}
+			boolean rejected = false;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						rejected = Double.parseDouble(parameter.substring(2)) <= 0;
+					} catch (NumberFormatException e) {
+						rejected = true;
+					}
+				}
+			}
+			if (!rejected) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public static HttpResponse retrievePostResponse(String uri, List<Header> headers, String body) {
 		return retrievePostResponse(uri, headers.toArray(new Header[headers.size()]), body);
 	}
 
 	public static <T> List<T> readListFromResponse(HttpResponse response, Class<T> expectedElementType) {
 		logger.debug("HttpClientUtil readListFromResponse()");
-		try {
-			String responseBody = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
-			return json.readValue(responseBody, new TypeReference<List<T>>() {
-			});
+		long startTime = Metrics.startTimer();
+		try (InputStream content = response.getEntity().getContent()) {
+			return listReaders.computeIfAbsent(expectedElementType,
+					type -> json.readerFor(json.getTypeFactory().constructCollectionType(List.class, type)))
+					.readValue(content);
 		} catch (IOException e) {
 			throw new ApplicationException("Incorrect list type returned");
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+			Metrics.recordSince("http.response.decode." + expectedElementType.getSimpleName(), startTime);
 		}
 	}
 
 	public static String readObjectFromResponse(HttpResponse response) {
 		logger.debug("HttpClientUtil readObjectFromResponse(HttpResponse response)");
 		try {
-			String responseBody = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
+			String responseBody = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
 			logger.debug("readObjectFromResponse() responseBody {}", responseBody);
 			return responseBody;
 		} catch (IOException e) {
 			throw new ApplicationException("Incorrect object type returned", e);
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
 		}
 	}
 
+	/**
+	 * Decodes the response body straight from the entity stream, without first copying it into a String. The
+	 * entity is always consumed, so the connection goes back to the pool even when decoding fails.
+	 *
+	 * When metrics are enabled the decode time is recorded as <code>http.response.decode.{type}</code>.
+	 */
 	public static <T> T readObjectFromResponse(HttpResponse response, Class<T> expectedElementType) {
 		logger.debug("HttpClientUtil readObjectFromResponse()");
-		try {
-			long startTime = System.nanoTime();
-			String responseBody = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
-			logger.debug(
-					"readObjectFromResponse() line: IOUtils.toString(response.getEntity().getContent(), \"UTF-8\"), took {}",
-					(System.nanoTime() - startTime));
-			logger.trace("readObjectFromResponse() responseBody {}", responseBody);
-
-			startTime = System.nanoTime();
-			T t = json.readValue(responseBody, json.getTypeFactory().constructType(expectedElementType));
-			logger.debug(
-					"readObjectFromResponse() line: json.readValue(responseBody, json.getTypeFactory().constructType(expectedElementType)), took {}",
-					(System.nanoTime() - startTime));
-			return t;
+		long startTime = Metrics.startTimer();
+		try (InputStream content = response.getEntity().getContent()) {
+			return objectReaders.computeIfAbsent(expectedElementType, json::readerFor).readValue(content);
 		} catch (IOException e) {
 			throw new ApplicationException("Incorrect object type returned", e);
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+			Metrics.recordSince("http.response.decode." + expectedElementType.getSimpleName(), startTime);
 		}
 	}
 
@@ -175,11 +266,16 @@ public class HttpClientUtil {
 			}
 		} catch (IOException e) {
 			// That's fine, there's no message
+		} finally {
+			// release the pooled connection, the body is not needed past this point
+			EntityUtils.consumeQuietly(response.getEntity());
 		}
 		if (response.getStatusLine().getStatusCode() == 401) {
 			throw new NotAuthorizedException(errorMessage);
 		}
-		throw new ResourceInterfaceException(errorMessage);
+		ResourceInterfaceException error = new ResourceInterfaceException(errorMessage);
+		error.setResponseStatus(response.getStatusLine().getStatusCode());
+		throw error;
 	}
 
 	/**
@@ -195,12 +291,20 @@ public class HttpClientUtil {
 	public static HttpResponse simplePost(String uri, HttpClient client, StringEntity requestBody, Header... headers)
 			throws ApplicationException {
 		if (client == null) {
-			client = getConfiguredHttpClient();
+			client = getConfiguredHttpClient(uri);
 		}
 
+		return post(uri, client, requestBody, headers, null);
+	}
+
+	private static HttpResponse post(String uri, HttpClient client, HttpEntity requestBody, Header[] headers,
+			RequestConfig config) {
 		HttpPost post = new HttpPost(uri);
 		post.setHeaders(headers);
 		post.setEntity(requestBody);
+		if (config != null) {
+			post.setConfig(config);
+		}
 
 		try {
 			return client.execute(post, buildHttpClientContext());
@@ -262,7 +366,7 @@ public class HttpClientUtil {
 	 */
 	public static HttpResponse simpleGet(HttpClient client, String uri, Header... headers) throws ApplicationException {
 		if (client == null) {
-			client = getConfiguredHttpClient();
+			client = getConfiguredHttpClient(uri);
 		}
 
 		HttpGet get = new HttpGet(uri);
@@ -328,35 +432,7 @@ public class HttpClientUtil {
 		}
 	}
 	
-	private static HttpClient getConfiguredHttpClient() {
-		try {
-			SSLConnectionSocketFactory.getSocketFactory();
-			SSLContext sslContext = SSLContext.getInstance("TLS");
-		    sslContext.init(null, null, null);
-		    String[] defaultCiphers = sslContext.getServerSocketFactory().getDefaultCipherSuites();
-			
-			List<String> limited = new LinkedList<String>();
-			for(String suite : defaultCiphers)
-			{
-				//filter out Diffie-Hellman ciphers
-			    if( ! (suite.contains("_DHE_") || suite.contains("_DH_")))
-			    {
-			        limited.add(suite);
-			    }
-			}
-			
-			return HttpClients.custom()
-				    .setSSLSocketFactory(new SSLConnectionSocketFactory(
-			            SSLContexts.createSystemDefault(),
-			            new String[]{"TLSv1.2"},
-			            limited.toArray(new String[limited.size()]),
-			            SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
-				    .build();
-		} catch( NoSuchAlgorithmException | KeyManagementException e) {
-			logger.warn("Unable to establish SSL context.  using default client", e);
-		}
-		
-		//default
-		return HttpClientBuilder.create().useSystemProperties().build();
+	private static HttpClient getConfiguredHttpClient(String uri) {
+		return HttpClientRegistry.getClient(uri);
 	}
 }
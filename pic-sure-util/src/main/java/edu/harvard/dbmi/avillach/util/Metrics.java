@@ -0,0 +1,106 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Minimal in-process counters and timers.
+ *
+ * Recording is switched off unless the <code>picsure.metrics.enabled</code> system property is true, in which case
+ * every call is a lock-free update. {@link #snapshot()} returns the current values keyed by metric name, timers are
+ * reported as count, total and max in milliseconds.
+ */
+public class Metrics {
+
+	public static final String ENABLED_PROPERTY = "picsure.metrics.enabled";
+
+	private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+	private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+	private Metrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when metrics are enabled, otherwise 0 so callers can skip the clock read
+	 */
+	public static long startTimer() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	public static void add(String name, long amount) {
+		if (enabled) {
+			counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+		}
+	}
+
+	/**
+	 * Records the time elapsed since <code>startNanos</code>, as returned by {@link #startTimer()}.
+	 */
+	public static void recordSince(String name, long startNanos) {
+		if (enabled && startNanos != 0) {
+			record(name, System.nanoTime() - startNanos);
+		}
+	}
+
+	public static void record(String name, long nanos) {
+		if (enabled) {
+			timers.computeIfAbsent(name, key -> new Timer()).record(nanos);
+		}
+	}
+
+	public static long count(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter != null) {
+			return counter.sum();
+		}
+		Timer timer = timers.get(name);
+		return timer == null ? 0 : timer.count.sum();
+	}
+
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new TreeMap<>();
+		counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+		timers.forEach((name, timer) -> {
+			Map<String, Object> values = new TreeMap<>();
+			values.put("count", timer.count.sum());
+			values.put("totalMs", timer.totalNanos.sum() / 1_000_000);
+			values.put("maxMs", timer.maxNanos.get() / 1_000_000);
+			snapshot.put(name, values);
+		});
+		return snapshot;
+	}
+
+	public static void reset() {
+		counters.clear();
+		timers.clear();
+	}
+
+	private static class Timer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		private void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+	}
+}
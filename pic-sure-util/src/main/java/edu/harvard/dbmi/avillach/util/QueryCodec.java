@@ -0,0 +1,389 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses the query JSON stored with each Query entity.
+ *
+ * There are three formats, all of which are always readable, whichever one is written:
+ * <ul>
+ *     <li>gzip - what has always been stored, recognised by its magic bytes</li>
+ *     <li>deflate - a version byte of 1, the length of the JSON, then a raw deflate stream</li>
+ *     <li>dictionary - a version byte of 2, the length of the JSON, then a zlib stream compressed with a preset
+ *     dictionary of the keys and concept paths most queries share. The zlib stream names its dictionary by checksum.</li>
+ * </ul>
+ *
+ * New queries are written in the format named by <code>picsure.query.codec</code> (default gzip), as older servers
+ * only read gzip. Switch to dictionary once every server reads it. A site can add a dictionary built from its own
+ * queries with <code>picsure.query.codec.dictionary</code>, the path of a file whose most common strings come last.
+ * Queries written with that dictionary need it to be read, so a dictionary file must not be changed once used.
+ *
+ * Deflaters and inflaters are kept in pools of <code>picsure.query.codec.poolSize</code> (default 16) each, instead
+ * of every query allocating native zlib state and releasing it on finalization.
+ */
+public abstract class QueryCodec {
+
+	private static final Logger logger = LoggerFactory.getLogger(QueryCodec.class);
+
+	public static final byte DEFLATE_VERSION = 1;
+	public static final byte DICTIONARY_VERSION = 2;
+
+	private static final int POOL_SIZE = Integer.getInteger("picsure.query.codec.poolSize", 16);
+
+	/**
+	 * Keys and concept paths found in most queries. Must never change, the queries stored with it need it to be read.
+	 * Add another dictionary instead.
+	 */
+	private static final byte[] BUILT_IN_DICTIONARY = String.join("",
+			"\"resourceCredentials\":{},\"resourceUUID\":\"",
+			"\"numericVariantInfoFilters\":{},\"categoryVariantInfoFilters\":{}",
+			"\"variantInfoFilters\":[{",
+			"\"crossCountFields\":[\"",
+			"\"anyRecordOf\":[\"",
+			"\"anyRecordOfMulti\":[[\"",
+			"\"numericFilters\":{\"",
+			"\"min\":",
+			"\"max\":",
+			"\"categoryFilters\":{\"",
+			"\"requiredFields\":[\"",
+			"\"fields\":[\"",
+			"\"expectedResultType\":\"DATAFRAME\"",
+			"\"expectedResultType\":\"CROSS_COUNT\"",
+			"\"expectedResultType\":\"COUNT\"",
+			"\"picSureId\":\"",
+			"\"id\":null,",
+			"\\\\_Parent Study Accession with Subject ID\\\\",
+			"\\\\_Topmed Study Accession with Subject ID\\\\",
+			"\\\\_studies_consents\\\\",
+			"\\\\_consents\\\\",
+			"\\\\_harmonized_consent\\\\",
+			"\\\\DCC Harmonized data set\\\\",
+			"\\\\demographics\\\\",
+			"\\\\phs",
+			"\",\"\\\\",
+			"\"},\"query\":{\"").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Preset dictionaries by the checksum a zlib stream names them with.
+	 */
+	private static final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+	private static final byte[] writeDictionary = loadDictionaries();
+
+	private static final Pool<Deflater> rawDeflaters = new Pool<>(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true), Deflater::reset, Deflater::end);
+	private static final Pool<Deflater> zlibDeflaters = new Pool<>(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, false), Deflater::reset, Deflater::end);
+	private static final Pool<Inflater> rawInflaters = new Pool<>(() -> new Inflater(true), Inflater::reset, Inflater::end);
+	private static final Pool<Inflater> zlibInflaters = new Pool<>(() -> new Inflater(false), Inflater::reset, Inflater::end);
+
+	public static final QueryCodec GZIP = new Gzip();
+	public static final QueryCodec DEFLATE = new VersionedDeflate(DEFLATE_VERSION, rawDeflaters, null);
+	public static final QueryCodec DICTIONARY = new VersionedDeflate(DICTIONARY_VERSION, zlibDeflaters, writeDictionary);
+
+	private static final QueryCodec configured = forName(System.getProperty("picsure.query.codec", "gzip"));
+
+	/**
+	 * @return the compressed JSON
+	 */
+	public abstract byte[] encode(String json);
+
+	/**
+	 * @return the codec new queries are written with
+	 */
+	public static QueryCodec configured() {
+		return configured;
+	}
+
+	public static QueryCodec forName(String name) {
+		switch (name) {
+			case "gzip":
+				return GZIP;
+			case "deflate":
+				return DEFLATE;
+			case "dictionary":
+				return DICTIONARY;
+			default:
+				logger.warn("Unknown picsure.query.codec {}, writing gzip", name);
+				return GZIP;
+		}
+	}
+
+	/**
+	 * Decompresses a query written in any of the formats.
+	 *
+	 * @throws IllegalArgumentException if the bytes are not a query in a known format
+	 */
+	public static String decode(byte[] stored) {
+		if (stored == null || stored.length == 0) {
+			return "";
+		}
+		try {
+			if (stored.length >= 2 && (stored[0] & 0xff) == 0x1f && (stored[1] & 0xff) == 0x8b) {
+				return Gzip.read(stored);
+			}
+			if (stored[0] == DEFLATE_VERSION) {
+				return VersionedDeflate.read(stored, rawInflaters);
+			}
+			if (stored[0] == DICTIONARY_VERSION) {
+				return VersionedDeflate.read(stored, zlibInflaters);
+			}
+		} catch (DataFormatException | IOException | RuntimeException e) {
+			throw new IllegalArgumentException("Unable to decompress query: " + e.getMessage(), e);
+		}
+		throw new IllegalArgumentException("Unknown query format " + stored[0]);
+	}
+
+	/**
+	 * gzip, written the way GZIPOutputStream writes it: a 10 byte header without optional fields or a known OS, the
+	 * raw deflate stream, then the CRC-32 and length of the JSON.
+	 */
+	private static class Gzip extends QueryCodec {
+
+		private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+		@Override
+		public byte[] encode(String json) {
+			byte[] input = json.getBytes(StandardCharsets.UTF_8);
+			Deflater deflater = rawDeflaters.borrow();
+			try {
+				deflater.setInput(input);
+				deflater.finish();
+				byte[] output = deflate(deflater, Arrays.copyOf(HEADER, HEADER.length + bound(input.length) + 8), HEADER.length, 8);
+				int length = output.length - 8;
+				CRC32 crc = new CRC32();
+				crc.update(input);
+				writeIntLE(output, length, (int) crc.getValue());
+				writeIntLE(output, length + 4, input.length);
+				return output;
+			} finally {
+				rawDeflaters.release(deflater);
+			}
+		}
+
+		private static String read(byte[] stored) throws DataFormatException, IOException {
+			if (stored.length < HEADER.length + 8 || stored[2] != 8 || stored[3] != 0) {
+				// optional header fields, written by another gzip implementation
+				return decodeStream(stored);
+			}
+			int length = readIntLE(stored, stored.length - 4);
+			if (!plausible(length, stored.length)) {
+				// over 4GB, or not a length at all
+				return decodeStream(stored);
+			}
+			Inflater inflater = rawInflaters.borrow();
+			try {
+				inflater.setInput(stored, HEADER.length, stored.length - HEADER.length);
+				byte[] output = inflate(inflater, new byte[length]);
+				if (inflater.getRemaining() != 8 || output.length != length) {
+					// more than one gzip member
+					return decodeStream(stored);
+				}
+				CRC32 crc = new CRC32();
+				crc.update(output);
+				if ((int) crc.getValue() != readIntLE(stored, stored.length - 8)) {
+					throw new DataFormatException("CRC mismatch");
+				}
+				return new String(output, StandardCharsets.UTF_8);
+			} finally {
+				rawInflaters.release(inflater);
+			}
+		}
+
+		private static String decodeStream(byte[] stored) throws IOException {
+			try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(stored))) {
+				return IOUtils.toString(gzip, StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * A version byte, the length of the JSON, then the deflate stream.
+	 */
+	private static class VersionedDeflate extends QueryCodec {
+
+		private final byte version;
+		private final Pool<Deflater> deflaters;
+		private final byte[] dictionary;
+
+		private VersionedDeflate(byte version, Pool<Deflater> deflaters, byte[] dictionary) {
+			this.version = version;
+			this.deflaters = deflaters;
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		public byte[] encode(String json) {
+			byte[] input = json.getBytes(StandardCharsets.UTF_8);
+			Deflater deflater = deflaters.borrow();
+			try {
+				if (dictionary != null) {
+					deflater.setDictionary(dictionary);
+				}
+				deflater.setInput(input);
+				deflater.finish();
+				byte[] output = new byte[5 + bound(input.length)];
+				output[0] = version;
+				writeIntLE(output, 1, input.length);
+				return deflate(deflater, output, 5, 0);
+			} finally {
+				deflaters.release(deflater);
+			}
+		}
+
+		private static String read(byte[] stored, Pool<Inflater> inflaters) throws DataFormatException {
+			if (stored.length < 5) {
+				throw new DataFormatException("Truncated query");
+			}
+			int length = readIntLE(stored, 1);
+			if (!plausible(length, stored.length)) {
+				throw new DataFormatException("Corrupt length " + length);
+			}
+			Inflater inflater = inflaters.borrow();
+			try {
+				inflater.setInput(stored, 5, stored.length - 5);
+				byte[] output = inflate(inflater, new byte[length]);
+				if (output.length != length) {
+					throw new DataFormatException("Expected " + length + " bytes, found " + output.length);
+				}
+				return new String(output, StandardCharsets.UTF_8);
+			} finally {
+				inflaters.release(inflater);
+			}
+		}
+	}
+
+	/**
+	 * @return the output, trimmed to what was written past <code>offset</code> plus <code>trailer</code> bytes
+	 */
+	private static byte[] deflate(Deflater deflater, byte[] output, int offset, int trailer) {
+		while (!deflater.finished()) {
+			if (offset + trailer >= output.length) {
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			offset += deflater.deflate(output, offset, output.length - offset - trailer);
+		}
+		return offset + trailer == output.length ? output : Arrays.copyOf(output, offset + trailer);
+	}
+
+	private static byte[] inflate(Inflater inflater, byte[] output) throws DataFormatException {
+		int offset = 0;
+		while (!inflater.finished()) {
+			if (offset == output.length) {
+				output = Arrays.copyOf(output, Math.max(64, output.length * 2));
+			}
+			int inflated = inflater.inflate(output, offset, output.length - offset);
+			offset += inflated;
+			if (inflated == 0) {
+				if (inflater.needsDictionary()) {
+					byte[] dictionary = dictionaries.get(inflater.getAdler() & 0xffffffffL);
+					if (dictionary == null) {
+						throw new DataFormatException("Missing dictionary " + Long.toHexString(inflater.getAdler() & 0xffffffffL));
+					}
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput()) {
+					throw new DataFormatException("Truncated query");
+				}
+			}
+		}
+		return offset == output.length ? output : Arrays.copyOf(output, offset);
+	}
+
+	/**
+	 * @return whether the JSON could be that long, given that deflate compresses at most 1032 to 1
+	 */
+	private static boolean plausible(int length, int storedLength) {
+		return length >= 0 && length <= storedLength * 1032L;
+	}
+
+	/**
+	 * An upper bound of the deflated size, as computed by zlib's deflateBound.
+	 */
+	private static int bound(int length) {
+		return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 6;
+	}
+
+	private static void writeIntLE(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+		bytes[offset + 2] = (byte) (value >> 16);
+		bytes[offset + 3] = (byte) (value >> 24);
+	}
+
+	private static int readIntLE(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+	}
+
+	/**
+	 * Registers every dictionary.
+	 *
+	 * @return the dictionary new queries are written with, the site's own if there is one
+	 */
+	private static byte[] loadDictionaries() {
+		register(BUILT_IN_DICTIONARY);
+		String path = System.getProperty("picsure.query.codec.dictionary");
+		if (path == null || path.isEmpty()) {
+			return BUILT_IN_DICTIONARY;
+		}
+		try {
+			byte[] dictionary = Files.readAllBytes(Paths.get(path));
+			register(dictionary);
+			return dictionary;
+		} catch (IOException e) {
+			logger.error("Unable to read the query dictionary " + path + ", queries written with it cannot be read", e);
+			return BUILT_IN_DICTIONARY;
+		}
+	}
+
+	private static void register(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		dictionaries.put(adler.getValue(), dictionary);
+	}
+
+	private static class Pool<T> {
+		private final BlockingQueue<T> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+		private final Supplier<T> create;
+		private final Consumer<T> reset;
+		private final Consumer<T> end;
+
+		private Pool(Supplier<T> create, Consumer<T> reset, Consumer<T> end) {
+			this.create = create;
+			this.reset = reset;
+			this.end = end;
+		}
+
+		private T borrow() {
+			T pooled = idle.poll();
+			return pooled == null ? create.get() : pooled;
+		}
+
+		private void release(T pooled) {
+			reset.accept(pooled);
+			if (!idle.offer(pooled)) {
+				// the pool is full, free the native memory now
+				end.accept(pooled);
+			}
+		}
+	}
+}
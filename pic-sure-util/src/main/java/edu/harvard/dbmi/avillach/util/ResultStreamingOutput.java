@@ -0,0 +1,157 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pipes the body of a resource response to the PIC-SURE client without buffering it.
+ *
+ * Bytes are copied through large buffers taken from a shared pool, so big result exports do not allocate a new
+ * buffer per request. Once the body has been written the upstream connection is handed back to the pool. If the
+ * client goes away, or the resource fails mid-stream, the upstream response is aborted instead of being drained.
+ *
+ * Buffer sizing is read from system properties:
+ * <ul>
+ *     <li>picsure.result.bufferSize - size of each copy buffer in bytes (default 65536)</li>
+ *     <li>picsure.result.bufferPoolSize - number of idle buffers kept for reuse (default 32)</li>
+ * </ul>
+ */
+public class ResultStreamingOutput implements StreamingOutput, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResultStreamingOutput.class);
+
+	public static final String BUFFER_SIZE_PROPERTY = "picsure.result.bufferSize";
+	public static final String BUFFER_POOL_SIZE_PROPERTY = "picsure.result.bufferPoolSize";
+
+	private static final int bufferSize = Integer.getInteger(BUFFER_SIZE_PROPERTY, 64 * 1024);
+	private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(Integer.getInteger(BUFFER_POOL_SIZE_PROPERTY, 32));
+
+	private final HttpResponse upstream;
+
+	public ResultStreamingOutput(HttpResponse upstream) {
+		this.upstream = upstream;
+	}
+
+	/**
+	 * Builds a 200 response that streams the upstream body, forwarding its Content-Type, Content-Length and
+	 * Content-Encoding along with any additional named headers. A compressed body is passed through as is, without
+	 * being decompressed and compressed again, when it was requested with
+	 * {@link HttpClientUtil#retrievePostResponseEncoded(String, Header[], String)}.
+	 *
+	 * @param upstream a successful response from a resource
+	 * @param forwardedHeaders names of other upstream headers to copy, e.g. queryMetadata
+	 * @return a builder the caller may add to before building
+	 */
+	public static Response.ResponseBuilder proxy(HttpResponse upstream, String... forwardedHeaders) {
+		Response.ResponseBuilder builder = Response.ok(new ResultStreamingOutput(upstream));
+		HttpEntity entity = upstream.getEntity();
+		if (entity != null) {
+			if (entity.getContentType() != null) {
+				builder.type(entity.getContentType().getValue());
+			}
+			if (entity.getContentLength() >= 0) {
+				builder.header(HttpHeaders.CONTENT_LENGTH, entity.getContentLength());
+			}
+			// a DecompressingEntity still reports the upstream encoding, but its content is already decoded
+			if (entity.getContentEncoding() != null && !(entity instanceof DecompressingEntity)) {
+				builder.header(HttpHeaders.CONTENT_ENCODING, entity.getContentEncoding().getValue());
+			}
+		}
+		for (String name : forwardedHeaders) {
+			Header header = upstream.getFirstHeader(name);
+			if (header != null) {
+				builder.header(name, header.getValue());
+			}
+		}
+		return builder;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		HttpEntity entity = upstream.getEntity();
+		if (entity == null) {
+			return;
+		}
+		long startTime = Metrics.startTimer();
+		byte[] buffer = borrowBuffer();
+		InputStream content = null;
+		boolean complete = false;
+		try {
+			content = entity.getContent();
+			long total = 0;
+			int read;
+			while ((read = content.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+				total += read;
+			}
+			output.flush();
+			complete = true;
+			Metrics.add("result.stream.bytes", total);
+		} catch (IOException e) {
+			// either the client disconnected or the resource stopped sending, neither side can be recovered
+			logger.warn("Result stream aborted: {}", e.getMessage());
+			Metrics.increment("result.stream.aborted");
+			throw e;
+		} finally {
+			buffers.offer(buffer);
+			if (complete) {
+				// the body has been read to the end, so the connection can go back to the pool
+				EntityUtils.consumeQuietly(entity);
+			} else {
+				abort(content);
+			}
+			Metrics.recordSince("result.stream", startTime);
+		}
+	}
+
+	/**
+	 * Drops the upstream response without reading the rest of its body, for a result that is not going to be sent.
+	 */
+	@Override
+	public void close() {
+		abort(null);
+	}
+
+	/**
+	 * Closing a CloseableHttpResponse before its entity is consumed shuts the connection down, where closing the
+	 * content stream alone would read the rest of a possibly very large body first.
+	 */
+	private void abort(InputStream content) {
+		if (upstream instanceof CloseableHttpResponse) {
+			try {
+				((CloseableHttpResponse) upstream).close();
+			} catch (IOException e) {
+				logger.debug("Error closing aborted upstream response", e);
+			}
+		}
+		if (content != null) {
+			try {
+				content.close();
+			} catch (IOException e) {
+				logger.debug("Error closing aborted upstream stream", e);
+			}
+		}
+	}
+
+	private static byte[] borrowBuffer() {
+		byte[] buffer = buffers.poll();
+		return buffer == null ? new byte[bufferSize] : buffer;
+	}
+}
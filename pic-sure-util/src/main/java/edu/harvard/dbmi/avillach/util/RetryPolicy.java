@@ -0,0 +1,190 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.harvard.dbmi.avillach.util.exception.ResourceInterfaceException;
+
+/**
+ * Retries calls to a remote resource that failed with a {@link ResourceInterfaceException}, meaning the resource
+ * could not be reached at all. Error responses from the resource are returned to the caller and never retried.
+ *
+ * Attempts are spaced by exponential backoff with full jitter, and every retry has to be paid for from a
+ * {@link Budget} shared by the whole process, so a resource that is down does not receive a multiple of the
+ * normal traffic. Only use {@link #IDEMPOTENT} for calls that are safe to repeat, such as info, search and status;
+ * calls that start work on the resource, such as query, should use {@link #NONE}.
+ *
+ * Configured through the <code>picsure.retry.maxAttempts</code>, <code>picsure.retry.baseDelayMs</code> and
+ * <code>picsure.retry.maxDelayMs</code> system properties.
+ */
+public class RetryPolicy {
+
+	private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+	public static final RetryPolicy IDEMPOTENT = new RetryPolicy(
+			Integer.getInteger("picsure.retry.maxAttempts", 3),
+			Long.getLong("picsure.retry.baseDelayMs", 100),
+			Long.getLong("picsure.retry.maxDelayMs", 2000),
+			Budget.SHARED);
+
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, Budget.SHARED);
+
+	private final int maxAttempts;
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final Budget budget;
+
+	public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, Budget budget) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.budget = budget;
+	}
+
+	/**
+	 * Policy for a resource endpoint: the paths that start work on the resource, /query and /query/sync, are never
+	 * retried, everything else is.
+	 */
+	public static RetryPolicy forPath(String uri) {
+		String path = uri == null ? "" : uri.replaceAll("[?#].*$", "").replaceAll("/+$", "");
+		return path.endsWith("/query") || path.endsWith("/query/sync") ? NONE : IDEMPOTENT;
+	}
+
+	/**
+	 * Runs the call, retrying it if it fails with a ResourceInterfaceException and attempts and budget remain.
+	 *
+	 * @param operation name used in logs and in the <code>retry.&lt;operation&gt;.*</code> metrics
+	 */
+	public <T> T execute(String operation, Supplier<T> call) {
+		budget.deposit();
+		for (int attempt = 1; ; attempt++) {
+			Metrics.increment("retry." + operation + ".attempts");
+			try {
+				return call.get();
+			} catch (ResourceInterfaceException e) {
+				if (!shouldRetry(operation, attempt, e)) {
+					throw e;
+				}
+				try {
+					Thread.sleep(delayMs(attempt));
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Non-blocking version of {@link #execute(String, Supplier)}, the delay between attempts does not hold a thread.
+	 */
+	public <T> CompletableFuture<T> executeAsync(String operation, Supplier<CompletableFuture<T>> call) {
+		budget.deposit();
+		return attemptAsync(operation, call, 1);
+	}
+
+	private <T> CompletableFuture<T> attemptAsync(String operation, Supplier<CompletableFuture<T>> call, int attempt) {
+		Metrics.increment("retry." + operation + ".attempts");
+		CompletableFuture<T> result = new CompletableFuture<>();
+		call.get().whenComplete((value, error) -> {
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			if (cause == null) {
+				result.complete(value);
+			} else if (cause instanceof ResourceInterfaceException
+					&& shouldRetry(operation, attempt, (ResourceInterfaceException) cause)) {
+				CompletableFuture.delayedExecutor(delayMs(attempt), TimeUnit.MILLISECONDS)
+						.execute(() -> {
+							try {
+								attemptAsync(operation, call, attempt + 1).whenComplete((retried, retryError) -> {
+									if (retryError == null) {
+										result.complete(retried);
+									} else {
+										result.completeExceptionally(retryError);
+									}
+								});
+							} catch (RuntimeException e) {
+								result.completeExceptionally(e);
+							}
+						});
+			} else {
+				result.completeExceptionally(cause);
+			}
+		});
+		return result;
+	}
+
+	private boolean shouldRetry(String operation, int attempt, ResourceInterfaceException e) {
+		if (attempt >= maxAttempts) {
+			if (maxAttempts > 1) {
+				Metrics.increment("retry." + operation + ".exhausted");
+				logger.error("{} failed after {} attempts, giving up: {}", operation, attempt, e.getMessage());
+			}
+			return false;
+		}
+		if (!budget.withdraw()) {
+			Metrics.increment("retry.budget.exhausted");
+			logger.warn("{} failed and the retry budget is spent, not retrying: {}", operation, e.getMessage());
+			return false;
+		}
+		Metrics.increment("retry." + operation + ".retries");
+		logger.warn("{} failed on attempt {} of {}, retrying: {}", operation, attempt, maxAttempts, e.getMessage());
+		return true;
+	}
+
+	long delayMs(int attempt) {
+		long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 30));
+		return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * Token bucket limiting retries to a fraction of all calls. Every call adds <code>ratio</code> of a token up to
+	 * <code>maxTokens</code>, and every retry takes a whole one.
+	 *
+	 * The shared budget is configured through the <code>picsure.retry.budgetRatio</code> (default 0.1) and
+	 * <code>picsure.retry.budgetMax</code> (default 20) system properties.
+	 */
+	public static class Budget {
+
+		public static final Budget SHARED = new Budget(
+				Double.parseDouble(System.getProperty("picsure.retry.budgetRatio", "0.1")),
+				Integer.getInteger("picsure.retry.budgetMax", 20));
+
+		private static final long TOKEN = 1000;
+
+		private final long deposit;
+		private final long max;
+		private final AtomicLong balance;
+
+		public Budget(double ratio, int maxTokens) {
+			this.deposit = (long) (ratio * TOKEN);
+			this.max = maxTokens * TOKEN;
+			this.balance = new AtomicLong(max);
+		}
+
+		void deposit() {
+			balance.accumulateAndGet(deposit, (current, amount) -> Math.min(max, current + amount));
+		}
+
+		boolean withdraw() {
+			long current;
+			do {
+				current = balance.get();
+				if (current < TOKEN) {
+					return false;
+				}
+			} while (!balance.compareAndSet(current, current - TOKEN));
+			return true;
+		}
+
+		public double getTokens() {
+			return balance.get() / (double) TOKEN;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package edu.harvard.dbmi.avillach.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller runs the call, and callers arriving while
+ * it is in flight wait for and share its outcome, including any exception it throws. Once the call completes the
+ * next caller for the key runs it again, nothing is cached.
+ */
+public class SingleFlight<K, V> {
+
+	private final String name;
+
+	private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * @param name used in the metrics <code>&lt;name&gt;.singleFlight.shared</code> and <code>.timeout</code>
+	 */
+	public SingleFlight(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Runs the call on this thread, or waits for the same call already running on another one.
+	 *
+	 * @param timeout how long to wait for a call running on another thread
+	 * @throws TimeoutException if the call running on another thread did not complete in time
+	 */
+	public V execute(K key, Supplier<V> call, long timeout, TimeUnit unit) throws TimeoutException {
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if (running == null) {
+			try {
+				V value = call.get();
+				mine.complete(value);
+				return value;
+			} catch (RuntimeException | Error e) {
+				mine.completeExceptionally(e);
+				throw e;
+			} finally {
+				inFlight.remove(key, mine);
+			}
+		}
+		Metrics.increment(name + ".singleFlight.shared");
+		try {
+			return running.get(timeout, unit);
+		} catch (TimeoutException e) {
+			Metrics.increment(name + ".singleFlight.timeout");
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new CompletionException(e.getCause());
+		}
+	}
+
+	/**
+	 * Non-blocking version of {@link #execute}. Starts the call, or joins the same call already in flight.
+	 *
+	 * Each caller gets its own future, so a caller cancelling its future does not cancel the call for the others.
+	 */
+	public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			Metrics.increment(name + ".singleFlight.shared");
+			return running.copy();
+		}
+		CompletableFuture<V> started;
+		try {
+			started = call.get();
+		} catch (RuntimeException | Error e) {
+			started = CompletableFuture.failedFuture(e);
+		}
+		started.whenComplete((value, error) -> {
+			// removed first, so that a caller arriving once the outcome is known runs the call again
+			inFlight.remove(key, mine);
+			if (error == null) {
+				mine.complete(value);
+			} else {
+				mine.completeExceptionally(error);
+			}
+		});
+		return mine.copy();
+	}
+
+	/**
+	 * @return how many calls are in flight
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+}
@@ -12,6 +12,8 @@ public class ResourceInterfaceException extends WebApplicationException {
 
 	private Object content;
 
+	private int responseStatus;
+
 	public ResourceInterfaceException() {
 	}
 
@@ -54,4 +56,15 @@ public class ResourceInterfaceException extends WebApplicationException {
 	public void setContent(Object content) {
 		this.content = content;
 	}
+
+	/**
+	 * @return the HTTP status the resource responded with, or 0 if no response was received
+	 */
+	public int getResponseStatus() {
+		return responseStatus;
+	}
+
+	public void setResponseStatus(int responseStatus) {
+		this.responseStatus = responseStatus;
+	}
 }